@@ -0,0 +1,100 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.Chatroom;
+import edu.oswego.cs.ClientConnection;
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.OverflowPolicy;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.packets.SoundData;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One 20 ms round of a room where every member sends a frame, a few of them speech and the rest background noise,
+ * relayed to everyone (activeSpeakers 0) against relaying only the loudest members. Members sit on a transport that
+ * only counts bytes so the socket is not measured.
+ *
+ *   java -jar target/benchmarks.jar ActiveSpeakerBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActiveSpeakerBenchmark {
+
+    @Param({"50"})
+    public int roomSize;
+
+    @Param({"5"})
+    public int talking;
+
+    @Param({"0", "3"})
+    public int activeSpeakers;
+
+    private Chatroom chatroom;
+    private ClientConnection[] members;
+    private SoundData[] frames;
+    private long bytesSent;
+
+    @Setup
+    public void setup() {
+        chatroom = new Chatroom("bench", roomSize);
+        chatroom.setActiveSpeakers(activeSpeakers);
+        members = new ClientConnection[roomSize];
+        frames = new SoundData[roomSize];
+        Random random = new Random(1);
+        for (int i = 0; i < roomSize; i++) {
+            members[i] = new ClientConnection(5000 + i, null);
+            members[i].attach(new CountingTransport());
+            chatroom.addClientConnection(5000 + i, members[i]);
+            // speech around -20 dBFS for the talkers, noise around -60 dBFS for everyone else
+            int amplitude = i < talking ? 3000 + i * 500 : 30;
+            ByteBuffer samples = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+            for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+                samples.putShort((short) (random.nextGaussian() * amplitude));
+            frames[i] = new SoundData(5000 + i, 1, 20, samples.array());
+        }
+    }
+
+    @Benchmark
+    public long round() {
+        // what ClientConnection does with every SOUND frame
+        for (int i = 0; i < roomSize; i++) {
+            if (chatroom.isForwarded(members[i], ByteBuffer.wrap(frames[i].getData())))
+                chatroom.broadcastPacketToChatroom(frames[i], members[i]);
+        }
+        return bytesSent;
+    }
+
+    private class CountingTransport implements Transport {
+        private final SendQueue sendQueue = new SendQueue(1, OverflowPolicy.DROP_OLDEST);
+
+        @Override
+        public void send(ByteBuffer bytes) {
+            bytesSent += bytes.remaining();
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void setCipher(SessionCipher cipher) {}
+
+        @Override
+        public SendQueue getSendQueue() {
+            return sendQueue;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.audio.codec.AudioCodec;
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding one 20 ms frame with each codec, what a speaker pays per frame sent and a listener per frame
+ * played. The bytes per second a speaker sends with each codec are printed at the end of each fork.
+ *
+ *   java -jar target/benchmarks.jar AudioCodecBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioCodecBenchmark {
+
+    @Param({"pcm", "pcmu", "pcma", "ima-adpcm"})
+    public String codecName;
+
+    private AudioCodec codec;
+    private short[] samples;
+    private short[] decoded;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() {
+        codec = AudioCodecs.forName(codecName);
+        samples = new short[AudioMixer.SAMPLES_PER_FRAME];
+        decoded = new short[AudioMixer.SAMPLES_PER_FRAME];
+        Random random = new Random(1);
+        for (int s = 0; s < samples.length; s++)
+            samples[s] = (short) (Math.sin(2 * Math.PI * 220 * s / AudioMixer.SAMPLE_RATE) * 8000
+                    + random.nextGaussian() * 200);
+        encoded = ByteBuffer.allocate(codec.encodedLength(samples.length));
+        codec.encode(samples, samples.length, encoded);
+        encoded.flip();
+    }
+
+    @TearDown
+    public void printBandwidth() {
+        int bytesPerSecond = codec.encodedLength(AudioMixer.SAMPLES_PER_FRAME) * 1000 / 20;
+        System.out.println(codecName + ": " + bytesPerSecond + " B/s of sound data per speaker ("
+                + bytesPerSecond * 8 / 1000.0 + " kbit/s)");
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        ByteBuffer out = encoded.duplicate().clear();
+        codec.encode(samples, samples.length, out);
+        return out;
+    }
+
+    @Benchmark
+    public int decode() {
+        return codec.decode(encoded, decoded);
+    }
+}
@@ -0,0 +1,89 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.Chatroom;
+import edu.oswego.cs.ClientConnection;
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.OverflowPolicy;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One 20 ms tick of a mixing chatroom: every speaker submits a frame, then the tick sums them and sends every member
+ * its N-1 mix. A tick has to stay far below 20 ms for one mixer thread to serve many rooms. Members sit on a transport
+ * that only counts bytes so the socket is not measured. Run with the gc profiler to see the allocations per tick:
+ *
+ *   java -jar target/benchmarks.jar AudioMixerBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioMixerBenchmark {
+
+    @Param({"10", "50", "200"})
+    public int participants;
+
+    @Param({"3"})
+    public int speakers;
+
+    private AudioMixer mixer;
+    private ByteBuffer samples;
+    private long bytesSent;
+    private int sequenceNumber = 0;
+
+    @Setup
+    public void setup() {
+        Chatroom chatroom = new Chatroom("bench", participants);
+        mixer = new AudioMixer(chatroom, null);
+        for (int i = 0; i < participants; i++) {
+            ClientConnection member = new ClientConnection(5000 + i, null);
+            member.attach(new CountingTransport());
+            chatroom.addClientConnection(5000 + i, member);
+        }
+        samples = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+        for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+            samples.putShort((short) (Math.sin(s / 10.0) * 8000));
+        samples.flip();
+    }
+
+    @Benchmark
+    public long tick() {
+        for (int i = 0; i < speakers; i++)
+            mixer.submit(5000 + i, sequenceNumber, sequenceNumber * 20, samples.duplicate());
+        sequenceNumber++;
+        mixer.tick();
+        return bytesSent;
+    }
+
+    private class CountingTransport implements Transport {
+        private final SendQueue sendQueue = new SendQueue(1, OverflowPolicy.DROP_OLDEST);
+
+        @Override
+        public void send(ByteBuffer bytes) {
+            bytesSent += bytes.remaining();
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void setCipher(SessionCipher cipher) {}
+
+        @Override
+        public SendQueue getSendQueue() {
+            return sendQueue;
+        }
+    }
+}
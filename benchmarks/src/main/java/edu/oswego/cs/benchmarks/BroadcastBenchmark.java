@@ -0,0 +1,89 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.Chatroom;
+import edu.oswego.cs.ClientConnection;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.OverflowPolicy;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.packets.SoundData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcasting one 20 ms SOUND frame to a room, encoding it again for every member (what the broadcast did before)
+ * against encoding it once and handing every member a duplicate of the same frame. Members sit on a transport that
+ * only counts bytes so the socket is not measured. Run with the gc profiler:
+ *
+ *   java -jar target/benchmarks.jar BroadcastBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+
+    @Param({"10", "50"})
+    public int roomSize;
+
+    private Chatroom chatroom;
+    private ClientConnection[] members;
+    private SoundData frame;
+    private long bytesSent;
+
+    @Setup
+    public void setup() {
+        chatroom = new Chatroom("bench", roomSize);
+        members = new ClientConnection[roomSize];
+        for (int i = 0; i < roomSize; i++) {
+            members[i] = new ClientConnection(5000 + i, null);
+            members[i].attach(new CountingTransport());
+            chatroom.addClientConnection(5000 + i, members[i]);
+        }
+        // 20 ms of 44.1 kHz 16 bit mono
+        frame = new SoundData(5000, 1, 20, new byte[1764]);
+    }
+
+    @Benchmark
+    public long encodePerMember() throws IOException {
+        for (ClientConnection member : members)
+            if (member != members[0]) member.sendPacketToClient(frame);
+        return bytesSent;
+    }
+
+    @Benchmark
+    public long encodeOnce() {
+        chatroom.broadcastPacketToChatroom(frame, members[0]);
+        return bytesSent;
+    }
+
+    private class CountingTransport implements Transport {
+        private final SendQueue sendQueue = new SendQueue(1, OverflowPolicy.DROP_OLDEST);
+
+        @Override
+        public void send(ByteBuffer bytes) {
+            bytesSent += bytes.remaining();
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void setCipher(SessionCipher cipher) {}
+
+        @Override
+        public SendQueue getSendQueue() {
+            return sendQueue;
+        }
+    }
+}
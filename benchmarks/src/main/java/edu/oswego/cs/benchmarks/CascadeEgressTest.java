@@ -0,0 +1,143 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.cluster.HashRing;
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what every node of a cluster sends when one large chatroom spans all of them. Starts a number of nio
+ * nodes in child processes on loopback, creates a spanning chatroom on the node the ring places it on and joins its
+ * members round robin across the nodes, so every node but that one opens an edge of it. A few members speak in real
+ * time, 20 ms frames every 20 ms, and every node's egress is read from its console before and after. The egress a
+ * single node would need for the same chatroom is what all the members received, which is printed next to it.
+ *
+ * Usage: java -cp benchmarks.jar edu.oswego.cs.benchmarks.CascadeEgressTest [members] [nodes] [speakers] [seconds]
+ *   members   members of the chatroom, default 500
+ *   nodes     nodes of the cluster, default 3
+ *   speakers  members speaking at once, default 2
+ *   seconds   how long they speak for, default 10
+ */
+public class CascadeEgressTest {
+    // 20 ms of 44.1 kHz 16 bit mono, what AudioCapture sends
+    private static final int FRAME_LENGTH = 1764;
+    // SERVER_PORT of the first node, the others follow this far apart so their client ids never overlap
+    private static final int FIRST_PORT = 9000;
+    private static final int PORT_STEP = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int nodeCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int speakerCount = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        if (members > PORT_STEP - 10) throw new IllegalArgumentException("At most " + (PORT_STEP - 10) + " members");
+
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++)
+            nodes.add("localhost:" + (FIRST_PORT + i * PORT_STEP));
+        String room = "cascade";
+        int owner = nodes.indexOf(new HashRing(nodes).nodeFor(room));
+
+        List<ServerProcess> servers = new ArrayList<>();
+        List<TestClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        AtomicLong received = new AtomicLong();
+        AtomicBoolean sending = new AtomicBoolean(true);
+        try {
+            for (int i = 0; i < nodeCount; i++)
+                servers.add(new ServerProcess("nio", FIRST_PORT + i * PORT_STEP,
+                        "CLUSTER_NODES=" + String.join(",", nodes), "SEND_QUEUE_CAPACITY=512"));
+
+            TestClient creator = servers.get(owner).connect();
+            clients.add(creator);
+            creator.create(room, members, "span");
+            List<TestClient> speakers = new ArrayList<>();
+            for (int i = 0; i < members; i++) {
+                TestClient member = servers.get(i % nodeCount).connect();
+                clients.add(member);
+                member.join(room);
+                if (i < speakerCount) speakers.add(member);
+                threads.add(startReader(member, received));
+            }
+            System.out.println(members + " members on " + nodeCount + " nodes, " + speakerCount
+                    + " speakers, chatroom on " + nodes.get(owner));
+
+            long[] before = new long[nodeCount];
+            for (int i = 0; i < nodeCount; i++)
+                before[i] = ServerProcess.field(servers.get(i).command("-e", "EGRESS"), "bytes=");
+            long receivedBefore = received.get();
+            long startNanos = System.nanoTime();
+
+            byte[] payload = new byte[FRAME_LENGTH];
+            for (TestClient speaker : speakers) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        long next = System.nanoTime();
+                        for (int sequence = 0; sending.get(); sequence++) {
+                            speaker.send(new SoundData(speaker.getPort(), sequence,
+                                    sequence * SoundData.FRAME_DURATION_MS, payload));
+                            next += TimeUnit.MILLISECONDS.toNanos(SoundData.FRAME_DURATION_MS);
+                            long wait = next - System.nanoTime();
+                            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    } catch (IOException | InterruptedException closed) {
+                        // the run is over
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            sending.set(false);
+            // let the last frames drain before reading the counters
+            Thread.sleep(500);
+
+            double elapsed = (System.nanoTime() - startNanos) / 1e9;
+            System.out.printf("%-18s %8s %12s%n", "node", "edge", "Mbit/s");
+            double total = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                long after = ServerProcess.field(servers.get(i).command("-e", "EGRESS"), "bytes=");
+                double rate = (after - before[i]) * 8 / elapsed / 1e6;
+                total += rate;
+                System.out.printf("%-18s %8s %12.1f%n", nodes.get(i), i == owner ? "owner" : "yes", rate);
+            }
+            double single = (received.get() - receivedBefore) * 8 / elapsed / 1e6;
+            System.out.printf("%-18s %8s %12.1f%n", "all nodes", "", total);
+            System.out.printf("%-18s %8s %12.1f%n", "single node", "", single);
+        } finally {
+            sending.set(false);
+            clients.forEach(TestClient::close);
+            for (Thread thread : threads)
+                thread.join();
+            for (ServerProcess server : servers)
+                server.close();
+        }
+    }
+
+    /**
+     * Counts the bytes of every SOUND frame a member receives, length prefix included
+     */
+    private static Thread startReader(TestClient member, AtomicLong received) {
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Packet packet = member.read();
+                    if (packet.getOpcode() == PacketOpcode.SOUND) received.addAndGet(4 + packet.getBytes().length);
+                }
+            } catch (IOException closed) {
+                // the sockets are closed once the run is over
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,100 @@
+package edu.oswego.cs.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test that starts the server in a child JVM once per server mode, joins tens of thousands of loopback clients to
+ * one chatroom and reports the server's heap, RSS and thread count together with the join latency seen by the clients.
+ *
+ * Usage: java -cp benchmarks.jar edu.oswego.cs.benchmarks.ConnectionLoadTest [connections] [modes] [serverPort]
+ *   connections  number of clients to join, default 20000
+ *   modes        comma separated SERVER_MODE values (socket, virtual, nio), default socket,virtual
+ *   serverPort   SERVER_PORT of the child server, clients in socket mode are handed the ports right after it
+ *
+ * Keep serverPort + connections below the start of the ephemeral port range, otherwise the handoff ports of the
+ * socket modes collide with the client side of the test's own connections. The open file limit (ulimit -n) has to
+ * cover the number of connections in both processes.
+ */
+public class ConnectionLoadTest {
+    private static final String ROOM = "load";
+    private static final int CLIENT_THREADS = 32;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String[] modes = args.length > 1 ? args[1].split(",") : new String[]{"socket", "virtual"};
+        int serverPort = args.length > 2 ? Integer.parseInt(args[2]) : 9000;
+
+        List<String> results = new ArrayList<>();
+        for (String mode : modes)
+            results.add(run(mode.trim(), connections, serverPort));
+
+        System.out.println();
+        System.out.printf("%-8s %8s %7s %9s %9s %9s %10s %10s %8s%n",
+                "mode", "joined", "failed", "p50 ms", "p99 ms", "max ms", "heap MB", "rss MB", "threads");
+        results.forEach(System.out::println);
+    }
+
+    private static String run(String mode, int connections, int serverPort) throws Exception {
+        System.out.println("== " + mode + ": " + connections + " connections");
+        List<TestClient> clients = new CopyOnWriteArrayList<>();
+        try (ServerProcess server = new ServerProcess(mode, serverPort)) {
+            try {
+                TestClient owner = server.connect();
+                clients.add(owner);
+                owner.create(ROOM, connections);
+
+                long[] latencies = new long[connections];
+                AtomicInteger joined = new AtomicInteger();
+                AtomicInteger failed = new AtomicInteger();
+                AtomicInteger next = new AtomicInteger();
+                ExecutorService pool = Executors.newFixedThreadPool(CLIENT_THREADS);
+                long started = System.nanoTime();
+                for (int t = 0; t < CLIENT_THREADS; t++) {
+                    pool.execute(() -> {
+                        int index;
+                        while ((index = next.getAndIncrement()) < connections) {
+                            long start = System.nanoTime();
+                            try {
+                                TestClient client = server.connect();
+                                clients.add(client);
+                                client.join(ROOM);
+                                latencies[joined.getAndIncrement()] = System.nanoTime() - start;
+                            } catch (IOException e) {
+                                failed.incrementAndGet();
+                            }
+                            if (index > 0 && index % 5000 == 0) System.out.println("  " + index + " connections");
+                        }
+                    });
+                }
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.HOURS);
+                System.out.printf("  joined in %.1f s%n", (System.nanoTime() - started) / 1e9);
+
+                // let the server settle before sampling it
+                Thread.sleep(2000);
+                String memory = server.command("-m", "MEMORY:");
+                long heap = ServerProcess.field(memory, "heap=");
+                long threads = ServerProcess.field(memory, "threads=");
+                long rss = server.residentSetSize();
+
+                long[] sorted = Arrays.copyOf(latencies, joined.get());
+                Arrays.sort(sorted);
+                return String.format("%-8s %8d %7d %9.2f %9.2f %9.2f %10.1f %10s %8d",
+                        mode, joined.get(), failed.get(),
+                        ServerProcess.percentile(sorted, 0.50), ServerProcess.percentile(sorted, 0.99),
+                        ServerProcess.percentile(sorted, 1.0),
+                        heap / 1048576.0, rss < 0 ? "n/a" : String.format("%.1f", rss / 1024.0), threads);
+            } finally {
+                clients.forEach(TestClient::close);
+            }
+        }
+    }
+}
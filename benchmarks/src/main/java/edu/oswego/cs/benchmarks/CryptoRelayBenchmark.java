@@ -0,0 +1,107 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.crypto.RoomCipher;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SoundData;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames relayed per second on one core, plaintext against encrypted. Relaying a frame is taking it out of the
+ * receive buffer, decoding it and framing it again for one listener; encrypted relaying adds opening the speaker's
+ * envelope in place and sealing a new one with the listener's keys. Sealed relaying is a frame the speaker encrypted
+ * with the room key, which the server relays like plaintext without touching the crypto.
+ *
+ *   java -jar target/benchmarks.jar CryptoRelayBenchmark
+ *
+ * Sizes are 20 ms of 8 kHz 8 bit audio and 20 ms of 44.1 kHz 16 bit audio.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoRelayBenchmark {
+
+    // speaker envelopes are sealed up front, an envelope only ever opens once
+    private static final int SEALED_FRAMES = 1024;
+
+    @Param({"160", "1764"})
+    public int frameLength;
+
+    private byte[] speakerToServer;
+    private byte[] serverToSpeaker;
+    private SessionCipher speakerSession;
+    private SessionCipher listenerSession;
+    private ByteBuffer plainFrame;
+    private ByteBuffer roomSealedFrame;
+    private ByteBuffer[] sealedFrames;
+    private int next;
+    private ByteBuffer receiveBuffer;
+
+    @Setup
+    public void setup() {
+        SecureRandom random = new SecureRandom();
+        speakerToServer = new byte[16];
+        serverToSpeaker = new byte[16];
+        random.nextBytes(speakerToServer);
+        random.nextBytes(serverToSpeaker);
+        byte[] listenerKey = new byte[16];
+        random.nextBytes(listenerKey);
+
+        SessionCipher speaker = new SessionCipher(speakerToServer, serverToSpeaker);
+        speakerSession = new SessionCipher(serverToSpeaker, speakerToServer);
+        listenerSession = new SessionCipher(listenerKey, listenerKey);
+
+        plainFrame = Framing.frame(new SoundData(5000, 1, 20, new byte[frameLength]));
+        roomSealedFrame = Framing.frame(new RoomCipher(1, 1, RoomCipher.generateKey())
+                .seal(new SoundData(5000, 1, 20, new byte[frameLength])));
+        sealedFrames = new ByteBuffer[SEALED_FRAMES];
+        for (int i = 0; i < SEALED_FRAMES; i++)
+            sealedFrames[i] = speaker.seal(plainFrame);
+        receiveBuffer = ByteBuffer.allocate(4096);
+    }
+
+    @Benchmark
+    public ByteBuffer plaintext() {
+        receive(plainFrame);
+        Packet packet = Packet.decode(receiveBuffer);
+        return Framing.frame(packet);
+    }
+
+    @Benchmark
+    public ByteBuffer encrypted() throws ProtocolException {
+        if (next == SEALED_FRAMES) {
+            // starting over on the same envelopes needs a session that has not seen their counters yet
+            speakerSession = new SessionCipher(serverToSpeaker, speakerToServer);
+            next = 0;
+        }
+        receive(sealedFrames[next++]);
+        speakerSession.open(receiveBuffer);
+        Packet packet = Packet.decode(receiveBuffer);
+        return listenerSession.seal(Framing.frame(packet));
+    }
+
+    @Benchmark
+    public ByteBuffer sealed() {
+        receive(roomSealedFrame);
+        Packet packet = Packet.decode(receiveBuffer);
+        return Framing.frame(packet);
+    }
+
+    /**
+     * Copies a frame into the receive buffer the way a socket read would and skips its length header
+     */
+    private void receive(ByteBuffer frame) {
+        receiveBuffer.clear();
+        receiveBuffer.put(frame.duplicate()).flip();
+        receiveBuffer.position(Framing.HEADER_LENGTH);
+    }
+}
@@ -0,0 +1,95 @@
+package edu.oswego.cs.benchmarks;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The packet encoding and parsing as it was before packets learned to encode into ByteBuffers, kept here so the
+ * benchmarks have something to compare against. Only the packets used by the benchmarks are covered.
+ */
+final class LegacyPacketCodec {
+
+    private LegacyPacketCodec() {}
+
+    static byte[] participantData(int opcode, int port, int participantOpcode, String[] params) {
+        List<Byte> byteList = new ArrayList<>();
+        byte[] portBytes = new BigInteger(String.valueOf(port)).toByteArray();
+
+        Collections.addAll( byteList, (byte) 0, (byte) opcode );
+        if (port > 255) byteList.addAll(arrayToList(portBytes));
+        else               Collections.addAll(byteList, (byte) 0, (byte) port);
+        Collections.addAll( byteList, (byte) 0, (byte) participantOpcode );
+
+        for (String param : params) {
+            byteList.addAll(arrayToList(param.getBytes()));
+            byteList.add( (byte) 0);
+        }
+
+        return listToArray(byteList);
+    }
+
+    static byte[] debug(int opcode, int port, String msg) {
+        List<Byte> byteList = new ArrayList<>();
+        byte[] portBytes = new BigInteger(String.valueOf(port)).toByteArray();
+
+        Collections.addAll(byteList , (byte) 0, (byte) opcode);
+        if (port > 255) byteList.addAll(arrayToList(portBytes));
+        else            Collections.addAll(byteList, (byte) 0, (byte) port);
+        byteList.addAll(arrayToList(msg.getBytes()));
+
+        return listToArray(byteList);
+    }
+
+    /**
+     * @return The port followed by the params, the way PacketFactory used to read a participant packet
+     */
+    static Object[] parseParticipantData(byte[] bytes) {
+        int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
+        int participantOpcode = new BigInteger(new byte[]{bytes[4], bytes[5]}).intValue();
+        String [] parameters = null;
+        if (bytes.length > 6) {
+            byte[] subArray = Arrays.copyOfRange(bytes, 6, bytes.length);
+            parameters = parseParam(subArray);
+        }
+        return new Object[]{port, participantOpcode, parameters};
+    }
+
+    static String parseDebug(byte[] bytes) {
+        int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
+        return new String(Arrays.copyOfRange(bytes, 4, bytes.length)) + port;
+    }
+
+    private static String[] parseParam(byte[] subArray) {
+        ArrayList<String> parameters = new ArrayList<>();
+        ArrayList<Byte> bytes = new ArrayList<>();
+        for (byte b : subArray) {
+            if (b == (byte) 0) {
+                if (bytes.size() == 0) break;
+                parameters.add(new String(listToArray(bytes)));
+                bytes = new ArrayList<>();
+                continue;
+            }
+            bytes.add(b);
+        }
+        return parameters.toArray(new String[0]);
+    }
+
+    private static byte[] listToArray(List<Byte> byteList) {
+        byte[] bytes = new byte[byteList.size()];
+        for (int b = 0; b < byteList.size(); b++)
+            bytes[b] = byteList.get(b);
+
+        return bytes;
+    }
+
+    private static List<Byte> arrayToList(byte[] bytes) {
+        List<Byte> byteList = new ArrayList<>();
+        for (byte b : bytes)
+            byteList.add(b);
+
+        return byteList;
+    }
+}
@@ -0,0 +1,104 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.DebugPacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantData;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Old List&lt;Byte&gt; packet encoding against encoding into a reused ByteBuffer, for a participant packet with
+ * params and a debug packet. Run with the gc profiler to see bytes allocated per operation:
+ *
+ *   java -jar target/benchmarks.jar PacketCodecBenchmark -prof gc
+ *
+ * and compare the gc.alloc.rate.norm rows next to the ns/op scores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+    @Param({"heap", "direct"})
+    public String bufferType;
+
+    private final String[] params = new String[]{"lobby", "25"};
+    private final String msg = "debug message from a client";
+    private ParticipantData participantData;
+    private DebugPacket debugPacket;
+    private byte[] participantBytes;
+    private byte[] debugBytes;
+    private ByteBuffer buffer;
+    private ByteBuffer participantBuffer;
+    private ByteBuffer debugBuffer;
+
+    @Setup
+    public void setup() {
+        participantData = new ParticipantData(ParticipantOpcode.CREATE_SERVER, 5001, params);
+        debugPacket = new DebugPacket(5001, msg);
+        participantBytes = participantData.getBytes();
+        debugBytes = debugPacket.getBytes();
+
+        boolean direct = bufferType.equals("direct");
+        buffer = direct ? ByteBuffer.allocateDirect(1024) : ByteBuffer.allocate(1024);
+        participantBuffer = copy(participantBytes, direct);
+        debugBuffer = copy(debugBytes, direct);
+    }
+
+    @Benchmark
+    public byte[] legacyEncodeParticipant() {
+        return LegacyPacketCodec.participantData(1, 5001, ParticipantOpcode.CREATE_SERVER.getInt(), params);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeParticipant() {
+        buffer.clear();
+        participantData.encode(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] legacyEncodeDebug() {
+        return LegacyPacketCodec.debug(6, 5001, msg);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDebug() {
+        buffer.clear();
+        debugPacket.encode(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Object[] legacyDecodeParticipant() {
+        return LegacyPacketCodec.parseParticipantData(participantBytes);
+    }
+
+    @Benchmark
+    public Packet decodeParticipant() {
+        participantBuffer.rewind();
+        return Packet.decode(participantBuffer);
+    }
+
+    @Benchmark
+    public String legacyDecodeDebug() {
+        return LegacyPacketCodec.parseDebug(debugBytes);
+    }
+
+    @Benchmark
+    public Packet decodeDebug() {
+        debugBuffer.rewind();
+        return Packet.decode(debugBuffer);
+    }
+
+    private static ByteBuffer copy(byte[] bytes, boolean direct) {
+        ByteBuffer copy = direct ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        return copy.put(bytes).flip();
+    }
+}
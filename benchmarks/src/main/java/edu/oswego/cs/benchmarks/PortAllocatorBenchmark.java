@@ -0,0 +1,75 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.PortAllocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One client leaving and a new one being accepted while a given number of clients stay connected. sortAndScan is how
+ * the server picked a port before: copy the ports in use, sort them and look for the first gap. The allocator frees
+ * and claims a bit.
+ *
+ *   java -jar target/benchmarks.jar PortAllocatorBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PortAllocatorBenchmark {
+    private static final int FIRST_PORT = 1024;
+
+    @Param({"1000", "10000", "50000"})
+    public int connections;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+    private ConcurrentHashMap<Integer, Boolean> clientConnections;
+    private int connectionPort;
+    private PortAllocator allocator;
+    private int[] live;
+
+    @Setup
+    public void setup() {
+        clientConnections = new ConcurrentHashMap<>();
+        allocator = new PortAllocator(FIRST_PORT, 65536 - FIRST_PORT);
+        live = new int[connections];
+        for (int i = 0; i < connections; i++) {
+            clientConnections.put(FIRST_PORT + i, Boolean.TRUE);
+            live[i] = allocator.allocate();
+        }
+        connectionPort = FIRST_PORT + connections;
+    }
+
+    @Benchmark
+    public int sortAndScan() {
+        clientConnections.remove(FIRST_PORT + random.nextInt(connections));
+        List<Integer> usedPorts = new ArrayList<>(clientConnections.keySet());
+        Collections.sort(usedPorts);
+
+        int port = -1;
+        for (int portIndex = 0; portIndex < usedPorts.size(); portIndex++) {
+            if (portIndex == usedPorts.size() - 1) continue;
+            if (usedPorts.get(portIndex) == usedPorts.get(portIndex + 1) - 1 ) continue;
+            port = usedPorts.get(portIndex) + 1;
+            break;
+        }
+        if (port == -1) port = connectionPort++;
+        clientConnections.put(port, Boolean.TRUE);
+        return port;
+    }
+
+    @Benchmark
+    public int allocator() {
+        int slot = random.nextInt(connections);
+        allocator.release(live[slot]);
+        live[slot] = allocator.allocate();
+        return live[slot];
+    }
+}
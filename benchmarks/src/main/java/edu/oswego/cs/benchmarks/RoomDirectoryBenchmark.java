@@ -0,0 +1,66 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.Chatroom;
+import edu.oswego.cs.RoomDirectory;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answering one LIST_SERVERS request. formatEveryRoom is what the server did before: walk every chatroom, format
+ * "name;size/max" and encode the strings into the ACK. The directory answers from entries encoded up front, first the
+ * cached first page, then a page filtered by name prefix. Run with the gc profiler:
+ *
+ *   java -jar target/benchmarks.jar RoomDirectoryBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoomDirectoryBenchmark {
+
+    @Param({"100", "1000"})
+    public int rooms;
+
+    private final ConcurrentHashMap<String, Chatroom> chatrooms = new ConcurrentHashMap<>();
+    private final RoomDirectory directory = new RoomDirectory();
+    private final String[] firstPage = new String[0];
+    private final String[] prefixPage = new String[]{"prefix=room-5", "limit=20"};
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < rooms; i++) {
+            Chatroom chatroom = new Chatroom("room-" + i, 10, directory);
+            chatrooms.put(chatroom.getChatroomName(), chatroom);
+            chatroom.publish();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer formatEveryRoom() {
+        List<String> chatroomNames = new ArrayList<>();
+        chatrooms.forEach( (name, chatroom) -> {
+            chatroomNames.add(chatroom.getChatroomName() + ";" + chatroom.getChatroomSize() + "/" + chatroom.getMaxParticipants());
+        });
+        return Framing.frame(new ParticipantACK(ParticipantOpcode.LIST_SERVERS, 5000, chatroomNames.toArray(new String[0])));
+    }
+
+    @Benchmark
+    public ByteBuffer directoryFirstPage() {
+        return Framing.frame(new ParticipantACK(ParticipantOpcode.LIST_SERVERS, 5000, directory.list(firstPage)));
+    }
+
+    @Benchmark
+    public ByteBuffer directoryPrefixPage() {
+        return Framing.frame(new ParticipantACK(ParticipantOpcode.LIST_SERVERS, 5000, directory.list(prefixPage)));
+    }
+}
@@ -0,0 +1,136 @@
+package edu.oswego.cs.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A voicechat server running in a child JVM, in a temporary directory holding its .env file. Everything it prints
+ * is drained so it never blocks on a full pipe; lines can be waited for with {@link #command(String, String)}.
+ */
+final class ServerProcess implements AutoCloseable {
+    private final String mode;
+    private final int serverPort;
+    private final Path dir;
+    private final Process process;
+    private final BlockingQueue<String> output = new LinkedBlockingQueue<>();
+
+    /**
+     * @param mode SERVER_MODE of the server
+     * @param serverPort SERVER_PORT of the server, clients in the socket modes are handed the ports after it
+     * @param env Any further .env lines
+     */
+    ServerProcess(String mode, int serverPort, String... env) throws IOException {
+        this.mode = mode;
+        this.serverPort = serverPort;
+        this.dir = Files.createTempDirectory("voicechat-server");
+
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "HOST=localhost",
+                "SERVER_PORT=" + serverPort,
+                "CONNECTION_STARTING_PORT=" + (serverPort + 1),
+                "SERVER_MODE=" + mode));
+        lines.addAll(Arrays.asList(env));
+        Files.write(dir.resolve(".env"), lines, StandardCharsets.US_ASCII);
+
+        process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath(),
+                "edu.oswego.cs.VoicechatServer")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .start();
+        Thread drain = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    output.add(line);
+            } catch (IOException ignored) {}
+        });
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    /**
+     * Connects a new client, doing whatever handshake the server mode needs
+     */
+    TestClient connect() throws IOException {
+        return TestClient.connect(serverPort, ! mode.equalsIgnoreCase("nio"));
+    }
+
+    /**
+     * Types a command into the server's console and waits for the first line of output containing the given text
+     * @return The matching line or null if none showed up in time
+     */
+    String command(String command, String match) throws IOException, InterruptedException {
+        output.clear();
+        process.getOutputStream().write((command + "\n").getBytes(StandardCharsets.US_ASCII));
+        process.getOutputStream().flush();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        String line;
+        while ((line = output.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null)
+            if (line.contains(match)) return line;
+        return null;
+    }
+
+    /**
+     * @return Resident set size of the server in KiB, or -1 where /proc is not available
+     */
+    long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(process.pid()), "status")))
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        } catch (IOException ignored) {}
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        process.destroy();
+        process.waitFor(10, TimeUnit.SECONDS);
+        Files.deleteIfExists(dir.resolve(".env"));
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * @return Numeric value following name in a line like "heap=123 threads=4"
+     */
+    static long field(String line, String name) {
+        if (line == null) return -1;
+        int start = line.indexOf(name) + name.length();
+        int end = line.indexOf(' ', start);
+        return Long.parseLong(end == -1 ? line.substring(start) : line.substring(start, end));
+    }
+
+    /**
+     * @return Value at the given fraction of a sorted array of nanoseconds, in milliseconds
+     */
+    static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * The child runs in its own directory for its .env file, so relative class path entries have to be resolved here
+     */
+    private static String classPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) classPath.append(File.pathSeparator);
+            classPath.append(Paths.get(entry).toAbsolutePath());
+        }
+        return classPath.toString();
+    }
+}
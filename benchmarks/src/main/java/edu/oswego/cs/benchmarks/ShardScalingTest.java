@@ -0,0 +1,126 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many frames a nio server forwards per second with 1, 2, 4 and 8 event loops. Every run starts a fresh
+ * server in a child process, creates a number of chatrooms, which the server spreads across its loops, and has one
+ * speaker per chatroom send SOUND frames as fast as the server takes them while the other members count what they
+ * receive. The first second is not counted. Forwarded frames can only go up with the number of loops while there
+ * are cores left for them, and the clients run on the same machine and take their share of the cores too. The frames
+ * go over TCP, the server has no MEDIA_PORT: datagrams are relayed by a single thread whatever the number of loops.
+ *
+ * Usage: java -cp benchmarks.jar edu.oswego.cs.benchmarks.ShardScalingTest [rooms] [listeners] [seconds] [shards] [serverPort]
+ *   rooms       number of chatrooms, default 8
+ *   listeners   members of every chatroom besides its speaker, default 8
+ *   seconds     how long the speakers send for every shard count, default 10
+ *   shards      comma separated EVENT_LOOP_THREADS to run with, default 1,2,4,8
+ *   serverPort  SERVER_PORT of the child server
+ */
+public class ShardScalingTest {
+    // 20 ms of 44.1 kHz 16 bit mono, what AudioCapture sends
+    private static final int FRAME_LENGTH = 1764;
+    private static final long WARMUP_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int rooms = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int listeners = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String[] shardCounts = (args.length > 3 ? args[3] : "1,2,4,8").split(",");
+        int serverPort = args.length > 4 ? Integer.parseInt(args[4]) : 9000;
+
+        System.out.println(rooms + " rooms of " + (listeners + 1) + " members, " + seconds + " s per run, "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        List<String> results = new ArrayList<>();
+        for (String shardCount : shardCounts) {
+            int shards = Integer.parseInt(shardCount.trim());
+            double forwarded = run(rooms, listeners, seconds, shards, serverPort);
+            results.add(String.format("%-8d %15.0f %15.0f", shards, forwarded, forwarded / shards));
+        }
+        System.out.printf("%-8s %15s %15s%n", "shards", "frames/s", "per shard");
+        results.forEach(System.out::println);
+    }
+
+    /**
+     * @return Frames received by all listeners per second, after the warmup
+     */
+    private static double run(int rooms, int listeners, int seconds, int shards, int serverPort) throws Exception {
+        List<TestClient> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        AtomicLong received = new AtomicLong();
+        AtomicBoolean sending = new AtomicBoolean(true);
+        try (ServerProcess server = new ServerProcess("nio", serverPort, "EVENT_LOOP_THREADS=" + shards,
+                "SEND_QUEUE_CAPACITY=512")) {
+            try {
+                List<TestClient> speakers = new ArrayList<>();
+                for (int room = 0; room < rooms; room++) {
+                    TestClient speaker = server.connect();
+                    clients.add(speaker);
+                    speakers.add(speaker);
+                    speaker.create("shard-" + room, listeners + 1);
+                    for (int i = 0; i < listeners; i++) {
+                        TestClient listener = server.connect();
+                        clients.add(listener);
+                        listener.join("shard-" + room);
+                        threads.add(startReader(listener, received));
+                    }
+                    speaker.join("shard-" + room);
+                }
+
+                byte[] payload = new byte[FRAME_LENGTH];
+                for (TestClient speaker : speakers) {
+                    Thread thread = new Thread(() -> {
+                        try {
+                            for (int sequence = 0; sending.get(); sequence++)
+                                speaker.send(new SoundData(speaker.getPort(), sequence,
+                                        sequence * SoundData.FRAME_DURATION_MS, payload));
+                        } catch (IOException closed) {
+                            // the run is over
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                    threads.add(thread);
+                }
+
+                Thread.sleep(WARMUP_MILLIS);
+                long start = received.get();
+                long startNanos = System.nanoTime();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+                double forwarded = (received.get() - start) / ((System.nanoTime() - startNanos) / 1e9);
+                System.out.printf("%d shards: %.0f frames/s%n", shards, forwarded);
+                return forwarded;
+            } finally {
+                sending.set(false);
+                clients.forEach(TestClient::close);
+                for (Thread thread : threads)
+                    thread.join();
+            }
+        }
+    }
+
+    private static Thread startReader(TestClient listener, AtomicLong received) {
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Packet packet = listener.read();
+                    if (packet.getOpcode() == PacketOpcode.SOUND) received.incrementAndGet();
+                }
+            } catch (IOException closed) {
+                // the sockets are closed once the run is over
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,264 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.crypto.KeyExchange;
+import edu.oswego.cs.crypto.RoomCipher;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.PacketDecoder;
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.DebugPacket;
+import edu.oswego.cs.network.packets.ErrorPacket;
+import edu.oswego.cs.network.packets.KeyExchangePacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.ParticipantData;
+import edu.oswego.cs.network.packets.SealedSoundData;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.HexFormat;
+
+/**
+ * Minimal blocking client for the load tests
+ */
+final class TestClient implements AutoCloseable {
+    private final Socket socket;
+    private final int port;
+    private final DataInputStream in;
+    private final OutputStream out;
+    // UDP media session, only there after joinMedia
+    private DatagramSocket media;
+    private InetSocketAddress mediaAddress;
+    private long mediaToken;
+    // only there after exchangeKeys
+    private SessionCipher cipher;
+    // latest room key read, one cipher for the thread sending and one for the thread reading
+    private volatile RoomCipher sealCipher;
+    private volatile RoomCipher openCipher;
+
+    private TestClient(Socket socket, int port) throws IOException {
+        this.socket = socket;
+        this.port = port;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * Does the client side of the handshake. In the socket modes the client moves to the port the server handed
+     * out, in nio mode it stays on the first connection.
+     */
+    static TestClient connect(int serverPort, boolean handoff) throws IOException {
+        Socket socket = retry(serverPort);
+        // read the greeting a byte at a time so nothing after it is swallowed by a buffer
+        InputStream in = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.append((char) b);
+        int port;
+        try {
+            port = Integer.parseInt(line.toString().trim());
+        } catch (NumberFormatException e) {
+            // turned away, the server sent an error packet instead of the greeting
+            socket.close();
+            throw new IOException("Connection refused by the server");
+        }
+        if (! handoff) return new TestClient(socket, port);
+
+        socket.close();
+        return new TestClient(retry(port), port);
+    }
+
+    private static Socket retry(int port) throws IOException {
+        // the server announces a port slightly before the thread behind it is listening, and the very first
+        // connection also waits for the child JVM to start
+        for (int attempt = 0;; attempt++) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(30000);
+                return socket;
+            } catch (ConnectException e) {
+                if (attempt == 2000) throw e;
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException interrupted) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * Shrinks the receive buffer for a client that will never read, so the server notices sooner
+     */
+    void stall() throws IOException {
+        socket.setReceiveBufferSize(1024);
+    }
+
+    /**
+     * Runs the key exchange, everything sent and read afterwards is encrypted
+     */
+    void exchangeKeys() throws IOException {
+        try {
+            KeyPair keyPair = KeyExchange.generateKeyPair();
+            send(new KeyExchangePacket(port, keyPair.getPublic().getEncoded()));
+            Packet reply = read();
+            if (! (reply instanceof KeyExchangePacket)) throw new IOException("Key exchange refused: " + reply);
+            cipher = KeyExchange.clientSession(keyPair, ((KeyExchangePacket) reply).getPublicKey());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    void send(Packet packet) throws IOException {
+        synchronized (out) {
+            ByteBuffer frame = Framing.frame(packet);
+            if (cipher != null) frame = cipher.seal(frame);
+            out.write(frame.array(), 0, frame.limit());
+        }
+    }
+
+    /**
+     * Reads the next packet from the control connection, taking note of any room key in it
+     */
+    Packet read() throws IOException {
+        byte[] packet = new byte[in.readInt()];
+        in.readFully(packet);
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        if (cipher != null && ! PacketDecoder.isSealedSound(buffer)) cipher.open(buffer);
+        Packet decoded = Packet.decode(buffer);
+        if (decoded instanceof ParticipantACK
+                && ((ParticipantACK) decoded).getParticipantOpcode() == ParticipantOpcode.ROOM_KEY) {
+            String[] params = ((ParticipantACK) decoded).getParams();
+            byte[] key = HexFormat.of().parseHex(params[2]);
+            sealCipher = new RoomCipher(Integer.parseInt(params[0]), Integer.parseInt(params[1]), key);
+            openCipher = new RoomCipher(Integer.parseInt(params[0]), Integer.parseInt(params[1]), key);
+        }
+        return decoded;
+    }
+
+    /**
+     * Reads until the room key handed out for this client's join arrives
+     */
+    void awaitRoomKey() throws IOException {
+        while (sealCipher == null)
+            read();
+    }
+
+    /**
+     * @return The frame sealed with the latest room key
+     */
+    SealedSoundData seal(SoundData frame) {
+        return sealCipher.seal(frame);
+    }
+
+    /**
+     * @return The sound in a sealed frame, null if it is not for the latest room key
+     */
+    SoundData open(SealedSoundData frame) {
+        try {
+            return openCipher == null ? null : openCipher.open(frame);
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    void create(String room, int maxParticipants) throws IOException {
+        send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, port,
+                new String[]{room, String.valueOf(maxParticipants)}));
+    }
+
+    /**
+     * Creates a room with an option such as mix or span
+     */
+    void create(String room, int maxParticipants, String option) throws IOException {
+        send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, port,
+                new String[]{room, String.valueOf(maxParticipants), option}));
+    }
+
+    /**
+     * Joins a room, retrying while it does not exist yet - a join on one connection can overtake the create
+     * request on another
+     */
+    ParticipantACK join(String room) throws IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            send(new ParticipantData(ParticipantOpcode.JOIN, port, new String[]{room}));
+            Packet reply = read();
+            // the room key for this join comes before the ACK
+            while (reply instanceof ParticipantACK
+                    && ((ParticipantACK) reply).getParticipantOpcode() == ParticipantOpcode.ROOM_KEY)
+                reply = read();
+            if (reply.getOpcode() == PacketOpcode.PARTICIPANT_ACK) return (ParticipantACK) reply;
+            if (! (reply instanceof ErrorPacket) || ((ErrorPacket) reply).getErrorOpcode() != ErrorOpcode.CHATROOM_DNE)
+                break;
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        throw new IOException("Join was not acknowledged");
+    }
+
+    /**
+     * Joins a room and registers with the server's UDP media port using the token from the JOIN ACK
+     */
+    void joinMedia(String room) throws IOException {
+        String[] params = join(room).getParams();
+        if (params.length < 2) throw new IOException("Server has no media port");
+        mediaAddress = new InetSocketAddress(socket.getInetAddress(), Integer.parseInt(params[0]));
+        mediaToken = Long.parseUnsignedLong(params[1], 16);
+        media = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        media.setReceiveBufferSize(1 << 20);
+        // an encrypted session has to register with an envelope, the token alone is refused
+        sendMedia(cipher == null ? null : new DebugPacket(port, ""));
+    }
+
+    /**
+     * Sends a packet over the media port, or registers the client's address when the packet is null
+     */
+    void sendMedia(Packet packet) throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocate(65536).putLong(mediaToken);
+        if (packet instanceof SealedSoundData) packet.encode(datagram);
+        else if (packet != null && cipher != null) cipher.sealDatagram(ByteBuffer.wrap(packet.getBytes()), datagram);
+        else if (packet != null) packet.encode(datagram);
+        media.send(new DatagramPacket(datagram.array(), datagram.position(), mediaAddress));
+    }
+
+    Packet readMedia() throws IOException {
+        DatagramPacket datagram = new DatagramPacket(new byte[65536], 65536);
+        media.receive(datagram);
+        ByteBuffer buffer = ByteBuffer.wrap(datagram.getData(), 0, datagram.getLength());
+        if (cipher != null && ! PacketDecoder.isSealedSound(buffer)) cipher.openDatagram(buffer);
+        return Packet.decode(buffer);
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        if (media != null) media.close();
+    }
+}
@@ -0,0 +1,50 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.audio.VoiceActivityDetector;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deciding whether one 20 ms capture frame is speech, the price every speaker pays for not sending silence.
+ * Frames alternate between a second of noise and a second of a voiced tone, so both branches are measured.
+ *
+ *   java -jar target/benchmarks.jar VoiceActivityBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VoiceActivityBenchmark {
+
+    private final VoiceActivityDetector detector = new VoiceActivityDetector();
+    private byte[][] frames;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        frames = new byte[100][];
+        for (int i = 0; i < frames.length; i++) {
+            ByteBuffer frame = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+            for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++) {
+                double sample = random.nextGaussian() * 40;
+                if (i >= 50) sample += Math.sin(2 * Math.PI * 200 * s / AudioMixer.SAMPLE_RATE) * 4000;
+                frame.putShort((short) sample);
+            }
+            frames[i] = frame.array();
+        }
+    }
+
+    @Benchmark
+    public boolean isSpeech() {
+        byte[] frame = frames[next];
+        next = (next + 1) % frames.length;
+        return detector.isSpeech(frame, frame.length);
+    }
+}
@@ -0,0 +1,157 @@
+package edu.oswego.cs.benchmarks;
+
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SealedSoundData;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a voice frame takes to get from a speaker through the server to every listener in the room.
+ * One client speaks at the real frame rate, one SOUND frame every 20 ms stamped with System.nanoTime, while the
+ * listeners record the delay of each frame they receive. Everything runs on one machine so both ends share a clock.
+ * Stalled listeners join too but never read, to show they only cost their own frames. The first two seconds of
+ * speech are not counted, they mostly measure the JIT compiling the relay and crypto code.
+ *
+ * Usage: java -cp benchmarks.jar edu.oswego.cs.benchmarks.VoiceRelayLatencyTest [listeners] [seconds] [mode] [media] [stalled] [encryption] [serverPort]
+ *   listeners   number of clients in the room besides the speaker, default 50
+ *   seconds     how long the speaker talks, default 10
+ *   mode        SERVER_MODE of the child server, default nio
+ *   media       tcp to send frames on the control connection (default), udp to use the media port
+ *   stalled     number of extra listeners on TCP that never read, default 0
+ *   encryption  plain (default), encrypted to have every client exchange keys first, or sealed to also encrypt the
+ *               sound with the room key so the server relays it without decrypting
+ *   serverPort  SERVER_PORT of the child server, the media port is the one below it
+ */
+public class VoiceRelayLatencyTest {
+    private static final String ROOM = "relay";
+    // 20 ms of 44.1 kHz 16 bit mono, what AudioCapture sends
+    private static final int FRAME_LENGTH = 1764;
+    private static final int WARMUP_FRAMES = 2000 / SoundData.FRAME_DURATION_MS;
+
+    public static void main(String[] args) throws Exception {
+        int listenerCount = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String mode = args.length > 2 ? args[2] : "nio";
+        boolean udp = args.length > 3 && args[3].equalsIgnoreCase("udp");
+        int stalled = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        String encryption = args.length > 5 ? args[5].toLowerCase() : "plain";
+        boolean sealed = encryption.equals("sealed");
+        boolean encrypted = sealed || encryption.equals("encrypted");
+        int serverPort = args.length > 6 ? Integer.parseInt(args[6]) : 9000;
+        int frames = seconds * 1000 / SoundData.FRAME_DURATION_MS;
+
+        List<TestClient> clients = new ArrayList<>();
+        try (ServerProcess server = new ServerProcess(mode, serverPort, "MEDIA_PORT=" + (serverPort - 1))) {
+            try {
+                TestClient speaker = server.connect();
+                clients.add(speaker);
+                if (encrypted) speaker.exchangeKeys();
+                speaker.create(ROOM, listenerCount + stalled + 1);
+
+                long[][] latencies = new long[listenerCount][frames];
+                AtomicInteger[] received = new AtomicInteger[listenerCount];
+                List<Thread> readers = new ArrayList<>();
+                for (int i = 0; i < listenerCount; i++) {
+                    TestClient listener = server.connect();
+                    clients.add(listener);
+                    if (encrypted) listener.exchangeKeys();
+                    join(listener, udp);
+                    received[i] = new AtomicInteger();
+                    readers.add(startReader(listener, udp, latencies[i], received[i]));
+                    // room keys come over the control connection even when the sound does not
+                    if (udp && sealed) readers.add(startReader(listener, false, new long[0], new AtomicInteger()));
+                }
+                List<TestClient> stalledClients = new ArrayList<>();
+                for (int i = 0; i < stalled; i++) {
+                    TestClient listener = server.connect();
+                    stalledClients.add(listener);
+                    clients.add(listener);
+                    if (encrypted) listener.exchangeKeys();
+                    listener.join(ROOM);
+                    listener.stall();
+                }
+                // the speaker joins last, so the room key it gets is the one every listener ends up with
+                join(speaker, udp);
+                if (sealed) speaker.awaitRoomKey();
+                System.out.println(listenerCount + " listeners joined, speaking for " + seconds + " s");
+
+                byte[] payload = new byte[FRAME_LENGTH];
+                long next = System.nanoTime();
+                for (int sequence = 0; sequence < WARMUP_FRAMES + frames; sequence++) {
+                    ByteBuffer.wrap(payload).putLong(System.nanoTime());
+                    Packet frame = new SoundData(speaker.getPort(), sequence,
+                            sequence * SoundData.FRAME_DURATION_MS, payload);
+                    if (sealed) frame = speaker.seal((SoundData) frame);
+                    if (udp) speaker.sendMedia(frame);
+                    else     speaker.send(frame);
+                    next += TimeUnit.MILLISECONDS.toNanos(SoundData.FRAME_DURATION_MS);
+                    LockSupport.parkNanos(next - System.nanoTime());
+                }
+
+                // give the last frames time to arrive, then stop the readers by closing their sockets
+                Thread.sleep(1000);
+                for (TestClient listener : stalledClients)
+                    System.out.println("stalled " + server.command("-q", listener.getPort() + "\tqueue="));
+                clients.forEach(TestClient::close);
+                for (Thread reader : readers)
+                    reader.join();
+
+                int total = 0;
+                for (AtomicInteger count : received)
+                    total += Math.min(count.get(), frames);
+                long[] sorted = new long[total];
+                int offset = 0;
+                for (int i = 0; i < listenerCount; i++) {
+                    int count = Math.min(received[i].get(), frames);
+                    System.arraycopy(latencies[i], 0, sorted, offset, count);
+                    offset += count;
+                }
+                Arrays.sort(sorted);
+                System.out.printf("%-8s %-6s %-10s %9s %9s %9s %9s %9s%n",
+                        "mode", "media", "encryption", "received", "expected", "p50 ms", "p99 ms", "max ms");
+                System.out.printf("%-8s %-6s %-10s %9d %9d %9.2f %9.2f %9.2f%n", mode, udp ? "udp" : "tcp",
+                        encryption,
+                        total, (long) frames * listenerCount,
+                        ServerProcess.percentile(sorted, 0.50), ServerProcess.percentile(sorted, 0.99),
+                        ServerProcess.percentile(sorted, 1.0));
+            } finally {
+                clients.forEach(TestClient::close);
+            }
+        }
+    }
+
+    private static void join(TestClient client, boolean udp) throws IOException {
+        if (udp) client.joinMedia(ROOM);
+        else     client.join(ROOM);
+    }
+
+    private static Thread startReader(TestClient listener, boolean udp, long[] latencies, AtomicInteger received) {
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Packet packet = udp ? listener.readMedia() : listener.read();
+                    if (packet instanceof SealedSoundData) packet = listener.open((SealedSoundData) packet);
+                    if (packet == null || packet.getOpcode() != PacketOpcode.SOUND) continue;
+                    if (((SoundData) packet).getSequenceNumber() < WARMUP_FRAMES) continue;
+                    long latency = System.nanoTime() - ByteBuffer.wrap(((SoundData) packet).getData()).getLong();
+                    int index = received.getAndIncrement();
+                    if (index < latencies.length) latencies[index] = latency;
+                }
+            } catch (IOException closed) {
+                // the sockets are closed once the speaker is done
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+}
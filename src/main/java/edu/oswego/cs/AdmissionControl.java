@@ -0,0 +1,65 @@
+package edu.oswego.cs;
+
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides on the accepting thread whether a new connection is let in at all, before any work is spent on it. A
+ * connection limit caps how many clients are connected at once, a token bucket caps how fast new ones come in so a
+ * storm of reconnects after a restart is turned away early instead of slowing down everyone already connected.
+ * A limit of 0 turns that check off.
+ */
+public class AdmissionControl {
+    private final int maxConnections;
+    private final int acceptsPerSecond;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // token bucket holding up to one second of accepts, only touched by the accepting thread
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param maxConnections Clients connected at once, 0 for no limit
+     * @param acceptsPerSecond New clients per second, 0 for no limit
+     */
+    public AdmissionControl(int maxConnections, int acceptsPerSecond) {
+        this.maxConnections = maxConnections;
+        this.acceptsPerSecond = acceptsPerSecond;
+        this.tokens = acceptsPerSecond;
+    }
+
+    /**
+     * Lets a connection in, every admitted connection has to be {@link #release() released} again
+     * @return Null if the connection is admitted, otherwise the error to turn it away with
+     */
+    public ErrorOpcode admit() {
+        if (acceptsPerSecond > 0) {
+            long now = System.nanoTime();
+            tokens = Math.min(acceptsPerSecond, tokens + (now - lastRefill) * acceptsPerSecond / 1e9);
+            lastRefill = now;
+            if (tokens < 1) return ErrorOpcode.SERVER_BUSY;
+            tokens--;
+        }
+        int current = connections.incrementAndGet();
+        if (maxConnections > 0 && current > maxConnections) {
+            connections.decrementAndGet();
+            return ErrorOpcode.SERVER_FULL;
+        }
+        return null;
+    }
+
+    /**
+     * Frees the place of a connection that was admitted, once it disconnects or its handshake fails
+     */
+    public void release() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * @return Number of connections admitted and not released yet
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+}
@@ -1,26 +1,32 @@
 package edu.oswego.cs;
 
-import edu.oswego.cs.network.packets.*;
+import edu.oswego.cs.audio.VoiceActivityDetector;
+import edu.oswego.cs.audio.codec.AudioCodec;
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.packets.SoundData;
 
 import javax.sound.sampled.*;
 import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
- * Audio Capture class to record audio input from user and save audio to .WAV file. This audio
- * will be sent over a TCP connection to members of a voice chat room.
+ * Audio Capture class to record audio input from user, either to a .WAV file or as a live stream of SOUND frames
+ * sent over the TCP connection to the members of a voice chat room.
  */
 public class AudioCapture {
 
+    // one comfort noise frame a second while the speaker is silent
+    public static final int COMFORT_NOISE_REFRESH_FRAMES = 1000 / SoundData.FRAME_DURATION_MS;
+
     private AudioInputStream audioIn;
     private AudioFormat audioFormat;
     private double audioDuration;
     public Thread thread;
     public TargetDataLine dataLine;
+
     String fileName = "audio_test.wav";
     File wavFile = new File(fileName);
 
@@ -79,29 +85,66 @@ public class AudioCapture {
         System.out.println("Record complete");
     }
 
-//    public void sendWavOverTCP(Socket socket) throws IOException {
-//        byte[] wavBytes = Files.readAllBytes(Path.of(fileName));
-//        final int dataLimit = (wavBytes.length/8) + 1;
-//        int seqNumber = 0;
-//        while (wavBytes.length > 0) {
-//            if (wavBytes.length >= dataLimit) {
-//                System.out.println(wavBytes.length);
-//                byte[] tempBytes = Arrays.copyOfRange(wavBytes, 0, dataLimit + 1);
-//                wavBytes = Arrays.copyOfRange(wavBytes, dataLimit + 1, wavBytes.length);
-//                SoundData soundData = new SoundData(socket.getPort(), tempBytes, seqNumber);
-////                System.out.println(Arrays.toString(soundData.getBytes()));
-//                socket.getOutputStream().write(soundData.getBytes());
-////                Thread.sleep(500);
-//            } else {
-//                SoundData soundData = new SoundData(socket.getPort(), wavBytes, seqNumber);
-////                System.out.println(Arrays.toString(soundData.getBytes()));
-//                socket.getOutputStream().write(soundData.getBytes());
-////                Thread.sleep(750);
-//                wavBytes = new byte[]{};
-//            }
-//            seqNumber++;
-//        }
-//        socket.getOutputStream().write(new EndPacket(socket.getPort()).getBytes());
-//        System.out.println("sent end packet");
-//    }
+    /**
+     * Streams the microphone to the server as SOUND frames of {@link SoundData#FRAME_DURATION_MS} each until the
+     * capture is stopped. Blocks the calling thread. Only speech is sent: when the speaker goes quiet one comfort
+     * noise frame tells listeners so, and nothing else is sent until the speaker talks again but a comfort noise
+     * frame every {@link #COMFORT_NOISE_REFRESH_FRAMES}, which keeps a NAT binding to the media port open.
+     * @param out Stream of the connection to the server
+     * @param port Port the server handed to this client
+     * @throws IOException If a frame can not be sent
+     */
+    public void startStreaming(OutputStream out, int port) throws IOException {
+        startStreaming(out, port, AudioCodecs.PCM);
+    }
+
+    /**
+     * Streams the microphone like {@link #startStreaming(OutputStream, int)}, every frame encoded with the codec
+     * agreed on in the JOIN
+     * @param codec Codec the chatroom uses
+     */
+    public void startStreaming(OutputStream out, int port, AudioCodec codec) throws IOException {
+        audioFormat = setAudioFormat();
+        getTDL();
+        dataLine.start();
+        System.out.println("Starting audio stream.");
+
+        byte[] frame = new byte[frameLength(audioFormat)];
+        short[] samples = new short[frame.length / 2];
+        VoiceActivityDetector voiceActivityDetector = new VoiceActivityDetector();
+        int sequenceNumber = 0;
+        int silentFrames = -1;
+        for (int captured = 0; dataLine.isOpen(); captured++) {
+            // blocks until a whole frame has been captured, or returns short once the line is stopped
+            int read = dataLine.read(frame, 0, frame.length);
+            if (read <= 0) break;
+            // timestamps follow the capture clock rather than the wall clock, so they stay evenly spaced
+            int timestamp = captured * SoundData.FRAME_DURATION_MS;
+            SoundData soundData;
+            if (voiceActivityDetector.isSpeech(frame, read)) {
+                // the line delivers 16 bit big-endian PCM
+                int count = AudioCodecs.PCM.decode(ByteBuffer.wrap(frame, 0, read), samples);
+                ByteBuffer encoded = ByteBuffer.allocate(codec.encodedLength(count));
+                codec.encode(samples, count, encoded);
+                soundData = new SoundData(port, sequenceNumber, timestamp, encoded.array());
+                silentFrames = -1;
+            }
+            else if (++silentFrames % COMFORT_NOISE_REFRESH_FRAMES == 0) {
+                soundData = SoundData.comfortNoise(port, sequenceNumber, timestamp,
+                        voiceActivityDetector.getNoiseLevel());
+            }
+            else continue;
+            ByteBuffer framed = Framing.frame(soundData);
+            out.write(framed.array(), 0, framed.limit());
+            sequenceNumber++;
+        }
+    }
+
+    /**
+     * @return Number of bytes in one frame of audio in the given format
+     */
+    public static int frameLength(AudioFormat format) {
+        int framesPerPacket = (int) (format.getFrameRate() * SoundData.FRAME_DURATION_MS / 1000);
+        return framesPerPacket * format.getFrameSize();
+    }
 }
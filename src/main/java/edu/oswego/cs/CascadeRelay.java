@@ -0,0 +1,284 @@
+package edu.oswego.cs;
+
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import edu.oswego.cs.cluster.NodeClient;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.TransportListener;
+import edu.oswego.cs.network.nio.NioTransport;
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ErrorPacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.ParticipantData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lets a chatroom span the nodes of a cluster. A chatroom created with the option "span" still lives on one node,
+ * but clients may join it on any node. The first client to join it elsewhere makes that node open an edge: a copy of
+ * the chatroom for the node's own members, plus one uplink to the chatroom's node that joins the chatroom there like
+ * a member. Every frame then crosses each link between nodes once. A frame from an edge member goes to the rest of
+ * its edge and up the uplink, the chatroom's node relays it to its own members and down every other uplink, and each
+ * edge relays what comes down to its own members. Every node sends a frame to its own members, and the chatroom's
+ * node also sends one copy per edge.
+ *
+ * An edge has no room key of its own. Its joins and leaves ask the chatroom's node for a new key, which it sends to
+ * every encrypted member including the uplinks, and each edge hands it on to its own members. SEALED_SOUND frames
+ * cross the links like SOUND frames and open with the same key on every node.
+ *
+ * The chatroom's maximum holds per node: the chatroom's node counts its own members and the uplinks, every edge takes
+ * up to the same number of members of its own.
+ *
+ * Uplinks are nio connections on the edge's event loop, so only nodes in nio mode open edges. An edge closes once
+ * its last member leaves. If its uplink drops, its members are sent a RECONNECT packet and resume through a new one.
+ */
+public class CascadeRelay {
+    private final VoicechatServer server;
+    private final ConcurrentHashMap<String, Chatroom> edges = new ConcurrentHashMap<>();
+    // joins waiting for the edge of a chatroom to open, by chatroom name, guarded by this
+    private final HashMap<String, List<PendingJoin>> opening = new HashMap<>();
+    // connects uplinks, a blocking handshake with another node must not hold up an event loop
+    private final ExecutorService opener = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cascade-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CascadeRelay(VoicechatServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @param name Name of a chatroom living on another node
+     * @return This node's edge of the chatroom, or null if there is none open
+     */
+    public Chatroom findEdge(String name) {
+        return edges.get(name);
+    }
+
+    /**
+     * @return Every open edge
+     */
+    public Collection<Chatroom> getEdges() {
+        return edges.values();
+    }
+
+    /**
+     * Opens the edge of a chatroom and then finishes a client's join with it. Joins that come in while the edge is
+     * opening wait for the same uplink.
+     * @param name Name of the chatroom
+     * @param owner Address of the node it lives on
+     * @param client Client joining
+     * @param join The client's JOIN request
+     */
+    public void open(String name, String owner, ClientConnection client, ParticipantData join) {
+        synchronized (this) {
+            List<PendingJoin> waiting = opening.get(name);
+            if (waiting != null) {
+                waiting.add(new PendingJoin(client, join));
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(new PendingJoin(client, join));
+            opening.put(name, waiting);
+        }
+        opener.execute(() -> {
+            Chatroom edge = null;
+            ErrorPacket refusal;
+            try {
+                edge = connect(name, owner);
+                refusal = null;
+            } catch (RefusedException e) {
+                refusal = e.refusal;
+            } catch (IOException e) {
+                VoicechatServer.displayError("Could not reach " + owner + " for chatroom " + name + ": " + e.getMessage());
+                refusal = new ErrorPacket(ErrorOpcode.WRONG_NODE, owner);
+            }
+
+            List<PendingJoin> waiting;
+            synchronized (this) {
+                waiting = opening.remove(name);
+            }
+            for (PendingJoin pending : waiting) {
+                if (edge != null) {
+                    // a client that hung up while the edge was opening is gone already
+                    if (server.findConnection(pending.client.getPort()) == pending.client)
+                        pending.client.completeJoin(edge, pending.join);
+                    continue;
+                }
+                try {
+                    pending.client.sendPacketToClient(refusal);
+                } catch (IOException ignored) {
+                    // gone already
+                }
+            }
+            if (edge != null) closeIfEmpty(edge);
+        });
+    }
+
+    /**
+     * Joins the chatroom on its node through a new uplink and opens the edge around it
+     * @throws RefusedException If the chatroom's node turned the uplink away, with what to tell the clients
+     * @throws IOException If the node can not be reached
+     */
+    private Chatroom connect(String name, String owner) throws IOException {
+        NodeClient client = NodeClient.connect(owner);
+        try {
+            // the uplink offers every codec, the chatroom's node answers with the one its chatroom uses
+            client.send(new ParticipantData(ParticipantOpcode.JOIN, client.getId(),
+                    new String[]{name, "cascade", "codecs=" + String.join(",", AudioCodecs.names())}));
+            // a rotation of the room key may come before the ACK, the edge takes the latest one
+            ParticipantACK roomKey = null;
+            Packet reply = client.read();
+            while (isRoomKey(reply)) {
+                roomKey = (ParticipantACK) reply;
+                reply = client.read();
+            }
+            if (reply instanceof ErrorPacket) {
+                ErrorPacket error = (ErrorPacket) reply;
+                // the chatroom does not span nodes, its clients have to go there
+                if (error.getErrorOpcode() == ErrorOpcode.WRONG_NODE)
+                    throw new RefusedException(new ErrorPacket(ErrorOpcode.WRONG_NODE, owner));
+                throw new RefusedException(new ErrorPacket(error.getErrorOpcode()));
+            }
+            if (! (reply instanceof ParticipantACK)) throw new IOException("Unexpected reply " + reply);
+
+            // the maximum holds on every node on its own, the edge takes as many members as the chatroom's node
+            int maxParticipants = Integer.MAX_VALUE;
+            String codec = null;
+            for (String param : ((ParticipantACK) reply).getParams()) {
+                if (param.startsWith("max="))        maxParticipants = Integer.parseInt(param.substring(4));
+                else if (param.startsWith("codec=")) codec = param.substring(6);
+            }
+            Chatroom edge = new Chatroom(name, maxParticipants);
+            edge.setSpanning(true);
+            if (codec != null) edge.negotiateCodec(new String[]{codec});
+            server.assignShard(edge);
+            edge.setKeyClock(server.timer());
+            if (roomKey != null) edge.followRoomKey(roomKey);
+
+            int port = server.allocatePort();
+            if (port == -1) throw new IOException("No id left for the uplink");
+            ClientConnection uplink = new ClientConnection(port, server);
+            uplink.setCascade(true);
+            NioTransport transport = new NioTransport(client.getChannel(), server.shardLoop(edge),
+                    new UplinkListener(name, edge, uplink), server.newSendQueue());
+            uplink.attach(transport);
+            if (client.getCipher() != null) {
+                uplink.useCipher(client.getCipher());
+                transport.setCipher(client.getCipher());
+            }
+            edge.addClientConnection(port, uplink);
+            edge.setUplink(uplink);
+            uplink.setChatroom(edge);
+            edges.put(name, edge);
+
+            client.getChannel().configureBlocking(false);
+            server.shardLoop(edge).register(client.getChannel(), transport);
+            VoicechatServer.displayInfo("Opened an edge of chatroom " + name + " with an uplink to " + owner);
+            return edge;
+        } catch (IOException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes an edge whose only member left is its uplink, called after a member leaves an edge
+     * @param edge Edge of a spanning chatroom
+     */
+    public synchronized void closeIfEmpty(Chatroom edge) {
+        ClientConnection uplink = edge.getUplink();
+        if (uplink == null || edge.getChatroomSize() > 1) return;
+        // the uplink's disconnect takes the edge away
+        try {
+            uplink.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void closed(String name, Chatroom edge, ClientConnection uplink) {
+        edges.remove(name, edge);
+        edge.removeClientConnection(uplink.getPort());
+        server.releasePort(uplink.getPort());
+        ClientConnection[] members = edge.getMembers();
+        if (members.length > 0)
+            VoicechatServer.displayError("Lost the uplink of chatroom " + name + ", sending its " + members.length
+                    + " members here to resume through a new one");
+        // they still hear each other until they are back, the next of them to join opens a new edge
+        for (ClientConnection member : members) {
+            try {
+                member.sendReconnect(null, VoicechatServer.RECONNECT_DELAY_MILLIS);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    public void stop() {
+        opener.shutdownNow();
+        for (Chatroom edge : edges.values()) {
+            try {
+                edge.getUplink().close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Hands what comes down an uplink to its connection, and closes the edge when it drops. Room keys go to the edge,
+     * which shares the key of the chatroom's node.
+     */
+    private final class UplinkListener implements TransportListener {
+        private final String name;
+        private final Chatroom edge;
+        private final ClientConnection uplink;
+
+        UplinkListener(String name, Chatroom edge, ClientConnection uplink) {
+            this.name = name;
+            this.edge = edge;
+            this.uplink = uplink;
+        }
+
+        @Override
+        public void onPacket(Packet packet) {
+            if (isRoomKey(packet)) edge.followRoomKey((ParticipantACK) packet);
+            else                   uplink.onPacket(packet);
+        }
+
+        @Override
+        public void onDisconnect(Transport transport) {
+            closed(name, edge, uplink);
+        }
+    }
+
+    private static boolean isRoomKey(Packet packet) {
+        return packet instanceof ParticipantACK
+                && ((ParticipantACK) packet).getParticipantOpcode() == ParticipantOpcode.ROOM_KEY;
+    }
+
+    private static final class PendingJoin {
+        final ClientConnection client;
+        final ParticipantData join;
+
+        PendingJoin(ClientConnection client, ParticipantData join) {
+            this.client = client;
+            this.join = join;
+        }
+    }
+
+    private static final class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+        // only read where it is caught, never serialized
+        final transient ErrorPacket refusal;
+
+        RefusedException(ErrorPacket refusal) {
+            super(refusal.getErrorOpcode().toString());
+            this.refusal = refusal;
+        }
+    }
+}
@@ -1,29 +1,87 @@
 package edu.oswego.cs;
 
-import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.audio.SpeakerSelector;
+import edu.oswego.cs.audio.codec.AudioCodec;
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import edu.oswego.cs.crypto.RoomCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
 import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.ParticipantData;
 import edu.oswego.cs.network.packets.SoundData;
-import edu.oswego.cs.network.packets.SoundPacket;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Chatroom extends Thread {
+    // a join or leave rotates the room key this much later, so a burst of them costs one rotation instead of one each
+    public static final int KEY_ROTATION_DELAY_MS = 100;
 
     private final String name;
     private ConcurrentHashMap<Integer, ClientConnection> clientConnections;
     private final int maxParticipants;
+    // copy of the members for broadcasts, rebuilt on every join and leave so relaying a frame allocates nothing
+    private volatile ClientConnection[] members = new ClientConnection[0];
+    // names the room in SEALED_SOUND headers, the key is only ever known to encrypted members and changes with
+    // every join and leave, so nobody hears what was said before they joined or after they left. An edge takes both
+    // from the chatroom's node, see followRoomKey
+    private volatile int roomId;
+    private int keyEpoch = 0;
+    private byte[] roomKey;
+    // runs the key rotations, null to rotate at once
+    private volatile ScheduledExecutorService keyClock;
+    // set while a rotation is scheduled, guarded by this
+    private boolean rotationPending = false;
+
+    // set for a chatroom that mixes its speakers on the server instead of relaying every frame
+    private volatile AudioMixer mixer;
+    // codec every member sends and plays, picked by the first member to join, see AudioCodecs
+    private volatile AudioCodec codec = AudioCodecs.PCM;
+    // set for a chatroom that only relays its loudest members, see setActiveSpeakers
+    private volatile SpeakerSelector speakerSelector;
+    // event loop the members are moved to in nio mode, see VoicechatServer#moveToShard
+    private volatile int shard = 0;
+    // set for a chatroom clients may join on any node of a cluster, see CascadeRelay
+    private volatile boolean spanning = false;
+    // set for the edge of a spanning chatroom on another node, the member linking it to the chatroom's own node
+    private volatile ClientConnection uplink;
+    // lobby listing kept up to date with the number of members, null for a chatroom nobody lists
+    private final RoomDirectory directory;
 
     public Chatroom(String name, int maxParticipants) {
+        this(name, maxParticipants, null);
+    }
+
+    /**
+     * @param directory Listing to keep this chatroom's entry in, see {@link #publish()}
+     */
+    public Chatroom(String name, int maxParticipants, RoomDirectory directory) {
         this.name = name;
         this.clientConnections = new ConcurrentHashMap<>();
         this.maxParticipants = maxParticipants;
+        this.roomId = new SecureRandom().nextInt();
+        this.directory = directory;
+    }
+
+    /**
+     * Lists the chatroom in its directory. Every later join and leave updates the entry under the same lock, so
+     * the listing never goes back to an older size.
+     */
+    public synchronized void publish() {
+        if (directory != null) directory.update(this);
     }
 
     @Override
@@ -43,42 +101,255 @@ public class Chatroom extends Thread {
         return maxParticipants;
     }
 
-    public void addClientConnection(int port, ClientConnection clientConnection) {
+    /**
+     * @return Snapshot of the current members, not to be modified
+     */
+    public ClientConnection[] getMembers() {
+        return members;
+    }
+
+    /**
+     * @return The chatroom's mixer or null if frames are relayed as they are
+     */
+    public AudioMixer getMixer() {
+        return mixer;
+    }
+
+    public void setMixer(AudioMixer mixer) {
+        this.mixer = mixer;
+    }
+
+    /**
+     * Relays only the frames of the loudest members from now on
+     * @param places Number of members relayed at once, 0 to relay everyone
+     */
+    public void setActiveSpeakers(int places) {
+        this.speakerSelector = places > 0 ? new SpeakerSelector(places) : null;
+    }
+
+    /**
+     * Decides whether a member's SOUND frame goes to the rest of the chatroom, or to its mixer. Of the comfort noise
+     * frames a silent member sends only the first is relayed, the rest only keep its NAT binding open.
+     * @param sender Member that sent the frame
+     * @param samples Sound data of the frame between position and limit, in the chatroom's codec, the position is not moved
+     * @return True if the frame is to be relayed
+     */
+    public boolean isForwarded(ClientConnection sender, ByteBuffer samples) {
+        if (samples.remaining() == SoundData.COMFORT_NOISE_LENGTH) {
+            if (sender.isSilent()) return false;
+            sender.setSilent(true);
+            return true;
+        }
+        sender.setSilent(false);
+        SpeakerSelector speakerSelector = this.speakerSelector;
+        return speakerSelector == null || speakerSelector.isForwarded(sender.getPort(), samples, codec);
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    public boolean isSpanning() {
+        return spanning;
+    }
+
+    public void setSpanning(boolean spanning) {
+        this.spanning = spanning;
+    }
+
+    /**
+     * @return The uplink of an edge, or null for a chatroom that lives on this node
+     */
+    public ClientConnection getUplink() {
+        return uplink;
+    }
+
+    public void setUplink(ClientConnection uplink) {
+        this.uplink = uplink;
+    }
+
+    public AudioCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Agrees on the codec with a client about to join. An empty chatroom takes the client's favourite, otherwise the
+     * client has to offer the one the chatroom already uses.
+     * @param offered Codec names the client offers, in order of preference, null if it offered none
+     * @return The chatroom's codec, or null if the client can not use it
+     */
+    public synchronized AudioCodec negotiateCodec(String[] offered) {
+        if (clientConnections.isEmpty()) {
+            AudioCodec chosen = AudioCodecs.choose(offered);
+            if (chosen != null) codec = chosen;
+            return chosen;
+        }
+        return AudioCodecs.isOffered(codec, offered) ? codec : null;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Adds a member if the chatroom has room for it. Checking the size and adding happen under one lock, so two
+     * clients joining at once can not both take the last place.
+     * @param port Port of the new member
+     * @param clientConnection The new member
+     * @return False if the chatroom is full
+     */
+    public synchronized boolean addClientConnection(int port, ClientConnection clientConnection) {
+        if (clientConnections.size() >= maxParticipants && ! clientConnections.containsKey(port)) return false;
         clientConnections.put(port, clientConnection);
+        members = clientConnections.values().toArray(new ClientConnection[0]);
+        scheduleKeyRotation();
+        publish();
+        if (directory != null) directory.memberChanged(this, port, true);
+        return true;
     }
 
     public int getChatroomSize() {
         return clientConnections.size();
     }
 
-    public void removeClientConnection(int port) {
-        clientConnections.remove(port);
+    public synchronized void removeClientConnection(int port) {
+        if (clientConnections.remove(port) == null) return;
+        members = clientConnections.values().toArray(new ClientConnection[0]);
+        if (mixer != null) mixer.remove(port);
+        if (speakerSelector != null) speakerSelector.remove(port);
+        scheduleKeyRotation();
+        publish();
+        if (directory != null) directory.memberChanged(this, port, false);
     }
 
-    public void broadcastPacketToChatroom(Packet packet, ClientConnection clientConnection) {
-        clientConnections.forEach( (port, client) -> {
-            if (port != clientConnection.getPort()) {
-                try  {
-                    client.sendPacketToClient(packet);
-                } catch (IOException e) {e.printStackTrace();}
-            }
-        } );
-    }
-
-    public void broadcastSoundDataToChatroom(byte[] soundData, ClientConnection clientConnection) {
-        clientConnections.forEach( (port, client) -> {
-            if (port != clientConnection.getPort()) {
-                try {
-                    SoundPacket s = new SoundPacket(PacketOpcode.SACK, clientConnection.getPort());
-                    client.sendPacketToClient(s);
-                    Thread.sleep(1000);
-                    ObjectOutputStream objOut = new ObjectOutputStream(client.getSocket().getOutputStream());
-                    objOut.writeObject(soundData);
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Sends the current room key to a member that finished its key exchange after it joined
+     * @param clientConnection Member with an encrypted session
+     */
+    public synchronized void sendRoomKey(ClientConnection clientConnection) {
+        if (roomKey == null || clientConnections.get(clientConnection.getPort()) != clientConnection) return;
+        sendRoomKey(clientConnection, roomKeyACK(clientConnection.getPort()));
+    }
+
+    /**
+     * @param keyClock Thread to rotate the room key on {@link #KEY_ROTATION_DELAY_MS} after a join or leave
+     */
+    public void setKeyClock(ScheduledExecutorService keyClock) {
+        this.keyClock = keyClock;
+    }
+
+    /**
+     * Rotates the room key once the joins and leaves coming in right now are over. Filling a chatroom one member
+     * after another would otherwise send every encrypted member a new key per join.
+     */
+    private void scheduleKeyRotation() {
+        ScheduledExecutorService keyClock = this.keyClock;
+        if (keyClock == null) {
+            rotateRoomKey();
+            return;
+        }
+        if (rotationPending) return;
+        rotationPending = true;
+        try {
+            keyClock.schedule(this::rotatePendingKey, KEY_ROTATION_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+            rotationPending = false;
+        }
+    }
+
+    private synchronized void rotatePendingKey() {
+        rotationPending = false;
+        rotateRoomKey();
+    }
+
+    /**
+     * Rotates the room key for a join or leave on an edge of this spanning chatroom, see {@link CascadeRelay}
+     */
+    public synchronized void requestKeyRotation() {
+        scheduleKeyRotation();
+    }
+
+    /**
+     * Takes the room id and key of the chatroom this is the edge of, as its node sent them down the uplink, and hands
+     * the key on to every encrypted member here. Members on every node then seal with the same key.
+     * @param roomKeyACK ROOM_KEY ACK that came down the uplink
+     */
+    public synchronized void followRoomKey(ParticipantACK roomKeyACK) {
+        String[] params = roomKeyACK.getParams();
+        if (params.length < 3) return;
+        try {
+            int id = Integer.parseInt(params[0]);
+            int epoch = Integer.parseInt(params[1]);
+            roomKey = HexFormat.of().parseHex(params[2]);
+            roomId = id;
+            keyEpoch = epoch;
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        for (ClientConnection member : members) {
+            if (member != uplink && member.getCipher() != null) sendRoomKey(member, roomKeyACK(member.getPort()));
+        }
+    }
+
+    /**
+     * @return Number of the current room key, counting up from 1
+     */
+    synchronized int getKeyEpoch() {
+        return keyEpoch;
+    }
+
+    /**
+     * Replaces the room key and hands the new one to every encrypted member. Plaintext members never get a key,
+     * the key would cross the network in the clear. An edge asks the chatroom's node instead, which rotates the key
+     * for every node and sends it back down.
+     */
+    private void rotateRoomKey() {
+        ClientConnection uplink = this.uplink;
+        if (uplink != null) {
+            try {
+                uplink.sendPacketToClient(new ParticipantData(ParticipantOpcode.ROOM_KEY, uplink.getPort()));
+            } catch (IOException e) {
+                // the uplink dropped, the edge is closing
             }
-        } );
+            return;
+        }
+        roomKey = RoomCipher.generateKey();
+        keyEpoch = (keyEpoch + 1) & 0xFFFF;
+        for (ClientConnection member : members) {
+            if (member.getCipher() != null) sendRoomKey(member, roomKeyACK(member.getPort()));
+        }
+    }
+
+    private ParticipantACK roomKeyACK(int port) {
+        return new ParticipantACK(ParticipantOpcode.ROOM_KEY, port,
+                new String[]{String.valueOf(roomId), String.valueOf(keyEpoch), HexFormat.of().formatHex(roomKey)});
+    }
+
+    private void sendRoomKey(ClientConnection member, ParticipantACK participantACK) {
+        try {
+            member.sendPacketToClient(participantACK);
+        } catch (IOException e) {e.printStackTrace();}
+    }
+
+    /**
+     * Sends a packet to every member except the one it came from. The packet is encoded once and every member gets
+     * its own view of the same read-only frame.
+     * @param packet Packet to send
+     * @param clientConnection Member the packet came from
+     */
+    public void broadcastPacketToChatroom(Packet packet, ClientConnection clientConnection) {
+        ByteBuffer frame = Framing.frame(packet).asReadOnlyBuffer();
+        for (ClientConnection client : members) {
+            if (client == clientConnection) continue;
+            try  {
+                client.sendFrameToClient(frame.duplicate());
+            } catch (IOException e) {e.printStackTrace();}
+        }
     }
 
-}
+}
\ No newline at end of file
@@ -1,31 +1,69 @@
 package edu.oswego.cs;
 
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.audio.codec.AudioCodec;
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import edu.oswego.cs.cluster.Cluster;
+import edu.oswego.cs.crypto.EncryptionMode;
+import edu.oswego.cs.crypto.KeyExchange;
+import edu.oswego.cs.crypto.ResumptionTokens;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.PacketDecoder;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.TransportListener;
 import edu.oswego.cs.network.opcodes.ErrorOpcode;
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 import edu.oswego.cs.network.opcodes.ParticipantOpcode;
 import edu.oswego.cs.network.packets.*;
 
-import javax.swing.*;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.concurrent.locks.Lock;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Handler for client connection requests on a new thread
+ * Server side state for a single client. Packets arrive from whichever {@link Transport} the client is attached to
+ * and are handled here, independent of how they were read off the wire.
  */
-public class ClientConnection extends Thread {
+public class ClientConnection implements TransportListener {
     private final int PORT;
-    private ServerSocket serverSocket;
-    private Socket socket;
-    private int MAX_BUFFER = 1024;
+    // swapped for a new one when the client resumes its session on another connection, under the send lock
+    private volatile Transport transport;
     // reference to the main client connection handler - mainly for the concurrent map of client connections
     private final VoicechatServer voicechatServer;
-    private Chatroom chatroom = null;
+    private volatile Chatroom chatroom = null;
+    // UDP media session, see MediaRelay. The token is 0 while there is none
+    private volatile long mediaToken;
+    private volatile SocketAddress mediaAddress;
+    // set by a comfort noise frame until the next frame of speech, see Chatroom.isForwarded
+    private volatile boolean silent = false;
+    // set for the link between two nodes serving a chatroom that spans them, see CascadeRelay. Its frames are from
+    // members on the other node and are relayed whatever port they name
+    private volatile boolean cascade = false;
+    // set once the key exchange is done, every packet sent after that is sealed under the send lock so the
+    // counters in the envelopes go out in order
+    private volatile SessionCipher cipher;
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // random number of this session, a resumption token only fits the session it was issued to. Drawn again on
+    // every resume, so a token takes over the session once at most
+    private volatile long session = SESSIONS.nextLong();
+    // set while the session outlives its connection, frames for the client wait in the lost transport's queue
+    private volatile boolean detached = false;
+    // set when the server closes the connection itself, nothing to wait for then
+    private volatile boolean closing = false;
+    // session this connection resumed, everything read from it belongs to that session from then on
+    private volatile ClientConnection resumed;
+    // set once the client is gone for good, a join finished on another thread must not bring it back
+    private volatile boolean disconnected = false;
 
-    private volatile boolean lock = false;
+    private static final SecureRandom SESSIONS = new SecureRandom();
 
     public ClientConnection(int port, VoicechatServer voicechatServer) {
         this.PORT = port;
@@ -33,46 +71,86 @@ public class ClientConnection extends Thread {
     }
 
     /**
-     * Thread runner for reading incoming TCP/IP voicechat packets from client
+     * Attaches the transport this client's packets are read from and written to
+     * @param transport Transport for this client
      */
+    public void attach(Transport transport) {
+        this.transport = transport;
+    }
+
     @Override
-    public void run() {
+    public void onPacket(Packet packet) {
+        ClientConnection resumed = this.resumed;
+        if (resumed != null) {
+            resumed.onPacket(packet);
+            return;
+        }
+        // calls the respective method to handle each packet received
+        parsePacket(packet);
+    }
+
+    /**
+     * A member of a chatroom whose connection drops keeps its session for the server's grace period, see
+     * {@link #resumeRequest(ParticipantData)}: it stays in the chatroom and frames for it are queued. Anyone else,
+     * a session the grace period ran out for and a client the server closed itself are gone straight away.
+     */
+    @Override
+    public void onDisconnect(Transport lost) {
+        ClientConnection resumed = this.resumed;
+        if (resumed != null) {
+            resumed.onDisconnect(lost);
+            return;
+        }
+        // the connection the session was on before it resumed on another one
+        if (lost != transport) return;
+        long grace = voicechatServer.getSessionGraceMillis();
+        if (chatroom != null && ! cascade && ! closing && grace > 0 && ! voicechatServer.isDraining()) {
+            sendLock.lock();
+            try {
+                // resumed on another connection in the meantime
+                if (transport != lost) return;
+                detached = true;
+            } finally {
+                sendLock.unlock();
+            }
+            VoicechatServer.displayInfo("Client on port " + PORT + " lost its connection, keeping its session for "
+                    + grace + " ms");
+            voicechatServer.schedule(() -> expire(lost), grace);
+            return;
+        }
+        disconnect();
+    }
+
+    /**
+     * Ends a session that was not resumed in time
+     * @param lost Connection the session lost
+     */
+    private void expire(Transport lost) {
+        sendLock.lock();
         try {
-            serverSocket = new ServerSocket(PORT);
-            socket = serverSocket.accept();
-            InputStream in = socket.getInputStream();
-            while(socket.isConnected()) {
-                if (! lock) {
-                    byte[] buffer = new byte[MAX_BUFFER];
-                    // ready to accept a new packet at any time - blocks until a packet is received
-                    if (! lock)
-                        if (-1 == in.read(buffer, 0, buffer.length))
-                            break;
-                    // spawns a new thread to parse packet
-//                    new Thread(() -> {
-                        // gets a packet object from the buffer received through TCP/IP
-                        Packet packet = Packet.parse(buffer);
-                        if (packet == null) return;
-                        if (packet.getOpcode() == PacketOpcode.SACK || packet.getOpcode() == PacketOpcode.SRQ) {
-                            lock = true;
-                        }
-                        // calls the respective method to handle each packet received
-                        parsePacket(packet);
-//                    }).start();
-                }
+            if (! detached || transport != lost) return;
+            detached = false;
+        } finally {
+            sendLock.unlock();
+        }
+        disconnect();
+    }
 
+    private void disconnect() {
+        disconnected = true;
+        // Always try to close the TCP/IP connection if not being used
+        VoicechatServer.displayInfo("Client on port " + PORT + " has disconnected.");
+        try {
+            Chatroom chatroom = this.chatroom;
+            if (chatroom != null) {
+                chatroom.removeClientConnection(PORT);
+                closeEdgeIfEmpty(chatroom);
             }
+            closeMediaSession();
+            voicechatServer.getDirectoryFeed().unsubscribeAll(this);
+            voicechatServer.removeConnection(PORT);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            // Always try to close the TCP/IP connection if not being used
-            VoicechatServer.displayInfo("Client on port " + PORT + " has disconnected.");
-            try {
-                if (chatroom != null) chatroom.removeClientConnection(PORT);
-                voicechatServer.removeConnection(PORT);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
     }
 
@@ -83,10 +161,18 @@ public class ClientConnection extends Thread {
     private void parsePacket(Packet packet) {
         if (packet == null) return;
         try {
+            // a RESUME brings the keys of the session it resumes along, see resumeRequest for one that does not
+            if (cipher == null && packet.getOpcode() != PacketOpcode.KEY_EXCHANGE && ! isResume(packet)
+                    && voicechatServer.getEncryptionMode() == EncryptionMode.REQUIRED) {
+                sendPacketToClient(new ErrorPacket(ErrorOpcode.ENCRYPTION_REQUIRED, "Send a KEY_EXCHANGE first."));
+                return;
+            }
             switch (packet.getOpcode()) {
                 case PARTICIPANT: { participantRequest((ParticipantData) packet); break; }
-                case SRQ:         { soundRequest((SoundPacket) packet); ;break; }
+                case SOUND:       { soundRequest((SoundData) packet); break; }
+                case SEALED_SOUND: { sealedSoundRequest((SealedSoundData) packet); break; }
                 case DEBUG:       { debugRequest((DebugPacket) packet); break; }
+                case KEY_EXCHANGE: { keyExchangeRequest((KeyExchangePacket) packet); break; }
             }
         } catch (Exception e) {}
     }
@@ -97,8 +183,15 @@ public class ClientConnection extends Thread {
      * @throws IOException If ACK can not be sent back to the client
      */
     private void participantRequest(ParticipantData participantData) throws IOException {
+        ParticipantOpcode opcode = participantData.getParticipantOpcode();
+        // a draining server takes no one into a chatroom, the client is sent where it would be sent anyway
+        if (voicechatServer.isDraining() && ! cascade && (opcode == ParticipantOpcode.CREATE_SERVER
+                || opcode == ParticipantOpcode.JOIN || opcode == ParticipantOpcode.RESUME)) {
+            voicechatServer.sendReconnect(this);
+            return;
+        }
         // switch for all opcodes for participant data packets
-        switch (participantData.getParticipantOpcode()) {
+        switch (opcode) {
 
             case CREATE_SERVER: {
                 createChatroomRequest(participantData);
@@ -116,33 +209,99 @@ public class ClientConnection extends Thread {
                 leaveChatroomRequest();
                 break;
             }
+            case SUBSCRIBE: {
+                subscribeRequest(participantData, true);
+                break;
+            }
+            case UNSUBSCRIBE: {
+                subscribeRequest(participantData, false);
+                break;
+            }
+            case RESUME: {
+                resumeRequest(participantData);
+                break;
+            }
+            case ROOM_KEY: {
+                // a member joined or left an edge of this spanning chatroom, the key changes on every node
+                Chatroom chatroom = this.chatroom;
+                if (cascade && chatroom != null && chatroom.getUplink() == null) chatroom.requestKeyRotation();
+                break;
+            }
         }
     }
 
-    private void soundRequest(SoundPacket packet) throws IOException, ClassNotFoundException {
-        if (chatroom != null) {
-            VoicechatServer.displayInfo("Sound data RQ from port: " + packet.getPort());
-            lock = true;
-            byte[] soundData=null;
-            try {
-                ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
-                soundData = (byte[]) objectInputStream.readObject();
-                System.out.println(Arrays.toString(soundData));
-//                objectInputStream.close();
-            } catch (Exception e) {e.printStackTrace();}
+    /**
+     * Packet handler for a frame of a voice stream. Frames are relayed to the rest of the chatroom as soon as they
+     * arrive, or handed to the chatroom's mixer for its next tick. Nothing is stored on the server. A chatroom that
+     * only relays its loudest members drops the frames of everyone else here.
+     * @param soundData One frame of the client's voice stream
+     */
+    private void soundRequest(SoundData soundData) {
+        // a frame claiming to be from someone else is dropped rather than relayed
+        Chatroom chatroom = this.chatroom;
+        if (chatroom == null || (soundData.getPort() != PORT && ! cascade)) return;
+        ByteBuffer samples = ByteBuffer.wrap(soundData.getData());
+        // the other node already dropped what it would not relay
+        if (! cascade && ! chatroom.isForwarded(this, samples)) return;
+        AudioMixer mixer = chatroom.getMixer();
+        if (mixer != null) mixer.submit(PORT, soundData.getSequenceNumber(), soundData.getTimestamp(), samples);
+        else               chatroom.broadcastPacketToChatroom(soundData, this);
+    }
+
+    /**
+     * Packet handler for a frame sealed with the room key. The server cannot read it and does not try, it checks the
+     * clear header names this client and its chatroom and relays the frame as it came. Frames from the link to
+     * another node are from members over there and were checked there.
+     * @param sealedSoundData One frame of the client's voice stream, encrypted end to end
+     */
+    private void sealedSoundRequest(SealedSoundData sealedSoundData) {
+        Chatroom chatroom = this.chatroom;
+        if (chatroom == null) return;
+        if (cascade || (sealedSoundData.getPort() == PORT && sealedSoundData.getRoomId() == chatroom.getRoomId()))
+            chatroom.broadcastPacketToChatroom(sealedSoundData, this);
+    }
 
-            FileOutputStream fileOut = new FileOutputStream("received_audio.wav");
-            fileOut.write(soundData);
-            VoicechatServer.displayInfo("Sound data received from port: " + packet.getPort());
+    /**
+     * Packet handler for the client's half of a key exchange. The server answers with its own half in plaintext and
+     * everything after that answer is encrypted, in both directions.
+     * @param keyExchangePacket Contains the client's public key
+     * @throws IOException If the answer can not be sent back to the client
+     */
+    private void keyExchangeRequest(KeyExchangePacket keyExchangePacket) throws IOException {
+        if (voicechatServer.getEncryptionMode() == EncryptionMode.OFF) {
+            sendPacketToClient(new ErrorPacket(ErrorOpcode.ENCRYPTION_DISABLED, "Encryption is turned off."));
+            return;
+        }
+        // no rekeying, a session keeps the keys it started with
+        if (cipher != null) return;
 
-            chatroom.broadcastSoundDataToChatroom(soundData, this);
+        SessionCipher sessionCipher;
+        KeyPair keyPair;
+        try {
+            keyPair = KeyExchange.generateKeyPair();
+            sessionCipher = KeyExchange.serverSession(keyPair, keyExchangePacket.getPublicKey());
+        } catch (GeneralSecurityException e) {
+            sendPacketToClient(new ErrorPacket(ErrorOpcode.UNDEF, "Invalid public key."));
+            return;
+        }
 
-            lock = false;
+        sendLock.lock();
+        try {
+            transport.send(Framing.frame(new KeyExchangePacket(PORT, keyPair.getPublic().getEncoded())));
+            cipher = sessionCipher;
+        } finally {
+            sendLock.unlock();
         }
+        transport.setCipher(sessionCipher);
+        VoicechatServer.displayInfo("PORT " + PORT + " Is Encrypted");
+        // a client that joined before encrypting has no room key yet
+        Chatroom chatroom = this.chatroom;
+        if (chatroom != null) chatroom.sendRoomKey(this);
     }
 
     /**
-     * Packet handler for listing all chatrooms on the server
+     * Packet handler for listing the chatrooms on the server, one page at a time. The entries are encoded already,
+     * see {@link RoomDirectory} for the params that page and filter the listing.
      * @param participantData Incoming packet request with opcode LIST
      * @throws IOException If the ACK cannot be sent back to the client
      */
@@ -150,8 +309,47 @@ public class ClientConnection extends Thread {
         ParticipantACK participantACK = new ParticipantACK(
                 participantData.getParticipantOpcode(),
                 PORT,
-                voicechatServer.getChatrooms());
-        socket.getOutputStream().write(participantACK.getBytes());
+                voicechatServer.getRoomDirectory().list(participantData.getParams()));
+        sendPacketToClient(participantACK);
+    }
+
+    /**
+     * Packet handler for subscribing to pushed changes, see {@link DirectoryFeed}. Without params the client follows
+     * the room directory, with room=name it follows who joins and leaves that chatroom and the ACK lists the ports
+     * of its members right now.
+     * @param participantData Incoming packet request with opcode SUBSCRIBE or UNSUBSCRIBE
+     * @param subscribe False to unsubscribe
+     * @throws IOException If the ACK cannot be sent back to the client
+     */
+    private void subscribeRequest(ParticipantData participantData, boolean subscribe) throws IOException {
+        DirectoryFeed feed = voicechatServer.getDirectoryFeed();
+        String[] params = participantData.getParams();
+        if (params.length == 0 || ! params[0].startsWith("room=")) {
+            if (subscribe) feed.subscribeLobby(this);
+            else           feed.unsubscribeLobby(this);
+            sendPacketToClient(new ParticipantACK(participantData.getParticipantOpcode(), PORT));
+            return;
+        }
+
+        String name = params[0].substring(5);
+        if (subscribe && redirected(name)) return;
+        if (! subscribe) {
+            feed.unsubscribeRoom(name, this);
+            sendPacketToClient(new ParticipantACK(participantData.getParticipantOpcode(), PORT));
+            return;
+        }
+        Chatroom chatroom = voicechatServer.findChatroomByName(name);
+        if (chatroom == null) {
+            sendPacketToClient(new ErrorPacket(ErrorOpcode.CHATROOM_DNE));
+            return;
+        }
+        // subscribe before reading the members, a join in between shows up twice rather than not at all
+        feed.subscribeRoom(name, this);
+        ClientConnection[] members = chatroom.getMembers();
+        String[] ports = new String[members.length];
+        for (int i = 0; i < members.length; i++)
+            ports[i] = String.valueOf(members[i].getPort());
+        sendPacketToClient(new ParticipantACK(participantData.getParticipantOpcode(), PORT, ports));
     }
 
     /**
@@ -161,6 +359,8 @@ public class ClientConnection extends Thread {
     private void leaveChatroomRequest() {
         if (chatroom != null) {
             chatroom.removeClientConnection(PORT);
+            closeEdgeIfEmpty(chatroom);
+            closeMediaSession();
             voicechatServer.displayInfo("PORT " + PORT + " Has Left Chatroom:\t" + this.chatroom.getChatroomName());
             chatroom = null;
         }
@@ -177,27 +377,183 @@ public class ClientConnection extends Thread {
 
                 if (participantData.getParams().length == 0) {
                     ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CHATROOM_DNE);
-                    socket.getOutputStream().write(errorPacket.getBytes());
+                    sendPacketToClient(errorPacket);
                     return;
                 }
-                Chatroom chatroom = voicechatServer.findChatroomByName(participantData.getParams()[0]);
+                String name = participantData.getParams()[0];
+                Cluster cluster = voicechatServer.getCluster();
+                String owner = cluster == null ? null : cluster.redirectFor(name);
+                Chatroom chatroom;
+                if (owner != null) {
+                    // a chatroom on another node is joined through this node's edge of it if it spans nodes,
+                    // otherwise the client is sent there
+                    CascadeRelay cascadeRelay = voicechatServer.getCascadeRelay();
+                    if (cascadeRelay == null || isCascadeJoin(participantData)) {
+                        sendPacketToClient(new ErrorPacket(ErrorOpcode.WRONG_NODE, owner));
+                        return;
+                    }
+                    chatroom = cascadeRelay.findEdge(name);
+                    if (chatroom == null) {
+                        cascadeRelay.open(name, owner, this, participantData);
+                        return;
+                    }
+                }
+                else chatroom = voicechatServer.findChatroomByName(name);
                 if (chatroom == null) {
                     ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CHATROOM_DNE);
-                    socket.getOutputStream().write(errorPacket.getBytes());
+                    sendPacketToClient(errorPacket);
                     return;
                 }
-                if (chatroom.getMaxParticipants() <= chatroom.getChatroomSize()) {
-                    ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CHATROOM_FULL);
-                    socket.getOutputStream().write(errorPacket.getBytes());
-                    return;
-                }
-                chatroom.addClientConnection(PORT, this);
-                this.chatroom = chatroom;
-                voicechatServer.displayInfo("PORT " + PORT + " Has Joined Chatroom:\t" + this.chatroom.getChatroomName());
+                completeJoin(chatroom, participantData);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Packet handler for a client coming back on a new connection with the token from its JOIN ACK or a RECONNECT
+     * packet. If the session the token was issued to lost its connection less than the grace period ago, the session
+     * moves onto this connection: the client keeps its id, its keys, its place in the chatroom and the frames queued
+     * for it, and gets a RESUME ACK with a new token. Nothing has to be exchanged again, the ACK and everything after
+     * it is sealed with the session's keys. The token the client came with no longer fits the session afterwards, and
+     * a session that still has its connection is never taken over.
+     *
+     * Otherwise the client is put back into the chatroom the token names as if it sent a JOIN, and gets the same ACK
+     * under the id of this connection. A chatroom that went away with the server the client was on is created again
+     * with the same settings, on whichever node it lives on. That JOIN brings no keys along, a server that requires
+     * encryption answers ENCRYPTION_REQUIRED to a client that has not exchanged keys on this connection.
+     * @param participantData Has the token as its only param
+     * @throws IOException If the ACK or ERR packet can not be sent
+     */
+    private void resumeRequest(ParticipantData participantData) throws IOException {
+        if (chatroom != null) return;
+        String[] params = participantData.getParams();
+        ResumptionTokens.Ticket ticket = params.length == 0 ? null : voicechatServer.getResumptionTokens().verify(params[0]);
+        if (ticket == null) {
+            sendPacketToClient(new ErrorPacket(ErrorOpcode.TOKEN_INVALID, "Token expired or not from this cluster."));
+            return;
+        }
+        ClientConnection session = voicechatServer.findConnection(ticket.getPort());
+        if (session != null && session != this && session.reattach(this, ticket.getSession())) {
+            resumed = session;
+            voicechatServer.retire(this);
+            VoicechatServer.displayInfo("PORT " + session.PORT + " Has Resumed Its Session On A New Connection");
+            voicechatServer.moveToShard(session, session.chatroom);
+            return;
+        }
+        if (cipher == null && voicechatServer.getEncryptionMode() == EncryptionMode.REQUIRED) {
+            sendPacketToClient(new ErrorPacket(ErrorOpcode.ENCRYPTION_REQUIRED, "Send a KEY_EXCHANGE first."));
+            return;
+        }
 
-                ParticipantACK participantACK = new ParticipantACK(ParticipantOpcode.JOIN, PORT);
-                socket.getOutputStream().write(participantACK.getBytes());
+        String name = ticket.getChatroom();
+        Cluster cluster = voicechatServer.getCluster();
+        if ((cluster == null || cluster.redirectFor(name) == null) && voicechatServer.findChatroomByName(name) == null)
+            voicechatServer.createChatroom(name, ticket.getMaxParticipants(), ticket.isMix(), ticket.isSpan());
+        // offering only the chatroom's codec keeps it in a chatroom created again by the first member back
+        joinChatroomRequest(new ParticipantData(ParticipantOpcode.JOIN, PORT,
+                new String[]{name, "codecs=" + ticket.getCodec()}));
+    }
+
+    /**
+     * Moves this session onto the connection of a client that resumed it and acknowledges the RESUME there. The
+     * frames queued for the client follow the ACK, unless the client exchanged new keys on the new connection: they
+     * were sealed with the old ones.
+     * @param connection Connection the client resumed the session on, its reading thread calls this
+     * @param ticketSession Session number of the client's token
+     * @return False if the token does not fit the session or the session is not waiting for its client
+     * @throws IOException If the ACK can not be sent
+     */
+    private boolean reattach(ClientConnection connection, long ticketSession) throws IOException {
+        sendLock.lock();
+        try {
+            if (! detached || closing || chatroom == null || session != ticketSession) return false;
+            Transport lost = transport;
+            Transport moved = connection.transport;
+            SessionCipher newCipher = connection.cipher;
+            if (newCipher != null) cipher = newCipher;
+            else if (cipher != null) moved.setCipher(cipher);
+            transport = moved;
+            detached = false;
+            session = SESSIONS.nextLong();
+            sendPacketToClient(new ParticipantACK(ParticipantOpcode.RESUME, PORT,
+                    new String[]{"token=" + resumptionToken(chatroom)}));
+            SendQueue queued = lost.getSendQueue();
+            for (ByteBuffer frame; (frame = queued.poll()) != null;)
+                if (newCipher == null) moved.send(frame);
+            return true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * @return Token for resuming this session, or membership of the chatroom on another server
+     */
+    private String resumptionToken(Chatroom chatroom) {
+        return voicechatServer.getResumptionTokens().issue(new ResumptionTokens.Ticket(PORT, session,
+                chatroom.getChatroomName(), chatroom.getMaxParticipants(), chatroom.getMixer() != null,
+                chatroom.isSpanning(), chatroom.getCodec().getName()));
+    }
+
+    /**
+     * Adds this client to a chatroom it asked to join and acknowledges it. Called on the reading thread, or by the
+     * {@link CascadeRelay} once the edge the client is waiting for is open. A JOIN with the param cascade comes from
+     * another node's uplink and is only let into a chatroom that spans nodes.
+     * @param chatroom Chatroom on this node, or this node's edge of one
+     * @param participantData The client's JOIN request
+     */
+    void completeJoin(Chatroom chatroom, ParticipantData participantData) {
+        try {
+            if (this.chatroom != null || disconnected) return;
+            boolean cascade = isCascadeJoin(participantData);
+            if (cascade && ! chatroom.isSpanning()) {
+                Cluster cluster = voicechatServer.getCluster();
+                sendPacketToClient(new ErrorPacket(ErrorOpcode.WRONG_NODE, cluster == null ? "" : cluster.getSelf()));
+                return;
+            }
+            // the chatroom relays every frame as it came, so everyone in it has to speak the same codec
+            String[] offered = AudioCodecs.offered(participantData.getParams());
+            AudioCodec codec = chatroom.negotiateCodec(offered);
+            if (codec == null) {
+                ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CODEC_UNSUPPORTED,
+                        "Chatroom uses " + chatroom.getCodec().getName() + ".");
+                sendPacketToClient(errorPacket);
+                return;
             }
+            if (! chatroom.addClientConnection(PORT, this)) {
+                ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CHATROOM_FULL);
+                sendPacketToClient(errorPacket);
+                return;
+            }
+            this.cascade = cascade;
+            this.chatroom = chatroom;
+            // hung up while the edge of the chatroom was opening, after its disconnect looked for a chatroom
+            if (disconnected) {
+                chatroom.removeClientConnection(PORT);
+                closeEdgeIfEmpty(chatroom);
+                this.chatroom = null;
+                return;
+            }
+            voicechatServer.displayInfo("PORT " + PORT + " Has Joined Chatroom:\t" + this.chatroom.getChatroomName());
+
+            // with a media port the ACK tells the client where to send its frames and the token to send them with,
+            // a client that offered codecs is told the one agreed on last. An uplink only ever uses its connection
+            // and is told how many members the chatroom takes
+            List<String> params = new ArrayList<>();
+            MediaRelay mediaRelay = voicechatServer.getMediaRelay();
+            if (mediaRelay != null && ! cascade) {
+                long token = mediaRelay.openSession(this);
+                params.add(String.valueOf(mediaRelay.getPort()));
+                params.add(Long.toHexString(token));
+            }
+            if (offered != null) params.add("codec=" + codec.getName());
+            if (cascade) params.add("max=" + chatroom.getMaxParticipants());
+            else         params.add("token=" + resumptionToken(chatroom));
+            sendPacketToClient(new ParticipantACK(ParticipantOpcode.JOIN, PORT, params.toArray(new String[0])));
+            // from now on this client is served by the chatroom's event loop, along with the rest of its members
+            voicechatServer.moveToShard(this, chatroom);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -212,17 +568,14 @@ public class ClientConnection extends Thread {
         // Most of the content in this function is error handling
         if (participantData.getParams().length == 0){
             ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.UNDEF, "No parameters specified in the packet.");
-            socket.getOutputStream().write(errorPacket.getBytes());
-        }
-        String serverName = participantData.getParams()[0];
-        if (Arrays.asList(voicechatServer.getChatrooms()).contains(serverName)) {
-            ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CHATROOM_EXISTS, "Chatroom name: " + serverName + " already exists.");
-            socket.getOutputStream().write(errorPacket.getBytes());
+            sendPacketToClient(errorPacket);
             return;
         }
+        String serverName = participantData.getParams()[0];
+        if (redirected(serverName)) return;
         if (participantData.getParams().length == 1) {
             ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.UNDEF, "No parameter specifying the number of participants.");
-            socket.getOutputStream().write(errorPacket.getBytes());
+            sendPacketToClient(errorPacket);
             return;
         }
         int numberOfParticipants;
@@ -230,12 +583,41 @@ public class ClientConnection extends Thread {
             numberOfParticipants = Integer.parseInt(participantData.getParams()[1]);
         } catch (Exception e) {
             ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.UNDEF, "Can not cast number of participants (expected in parameters[2]) to a integer value.");
-            socket.getOutputStream().write(errorPacket.getBytes());
+            sendPacketToClient(errorPacket);
             return;
         }
 
-        // If no errors, then finally create the server
-        voicechatServer.createChatroom(serverName, numberOfParticipants);
+        // optional params after that: "mix" has the server mix the room's speakers, see AudioMixer, and "span" lets
+        // clients join the room on every node of the cluster, see CascadeRelay
+        boolean mix = false;
+        boolean span = false;
+        for (int i = 2; i < participantData.getParams().length; i++) {
+            String option = participantData.getParams()[i];
+            if (option.equalsIgnoreCase("mix"))       mix = true;
+            else if (option.equalsIgnoreCase("span")) span = true;
+        }
+
+        // If no errors, then finally create the server. The name is only checked here, so two clients racing for
+        // the same name can not both get it
+        if (voicechatServer.createChatroom(serverName, numberOfParticipants, mix, span) == null) {
+            ErrorPacket errorPacket = new ErrorPacket(ErrorOpcode.CHATROOM_EXISTS, "Chatroom name: " + serverName + " already exists.");
+            sendPacketToClient(errorPacket);
+        }
+    }
+
+    /**
+     * Sends a client that asked for a chatroom living on another node of the cluster to that node, with an ERR packet
+     * WRONG_NODE whose message is the node's host:port
+     * @param name Name of the chatroom
+     * @return True if the client was sent elsewhere
+     * @throws IOException If the ERR packet cannot be sent
+     */
+    private boolean redirected(String name) throws IOException {
+        Cluster cluster = voicechatServer.getCluster();
+        String node = cluster == null ? null : cluster.redirectFor(name);
+        if (node == null) return false;
+        sendPacketToClient(new ErrorPacket(ErrorOpcode.WRONG_NODE, node));
+        return true;
     }
 
     /**
@@ -248,15 +630,154 @@ public class ClientConnection extends Thread {
     }
 
     public void sendPacketToClient(Packet packet) throws IOException {
-        socket.getOutputStream().write(packet.getBytes());
+        sendFrameToClient(Framing.frame(packet));
+    }
+
+    /**
+     * Sends an already framed packet, see {@link Chatroom#broadcastPacketToChatroom(Packet, ClientConnection)}.
+     * Encrypted sessions get a sealed copy, the frame itself is never modified. SEALED_SOUND frames are sent as they
+     * are, the room key already protects them.
+     * @param frame Frame from {@link Framing}, owned by the transport afterwards
+     * @throws IOException If the frame can not be queued
+     */
+    public void sendFrameToClient(ByteBuffer frame) throws IOException {
+        sendLock.lock();
+        try {
+            SessionCipher sessionCipher = cipher;
+            ByteBuffer bytes = sessionCipher == null || isSealedSound(frame) ? frame : sessionCipher.seal(frame);
+            // a detached session keeps the latest frames for when it is resumed, as the overflow policy allows
+            if (detached) transport.getSendQueue().offer(bytes);
+            else          transport.send(bytes);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private static boolean isResume(Packet packet) {
+        return packet instanceof ParticipantData
+                && ((ParticipantData) packet).getParticipantOpcode() == ParticipantOpcode.RESUME;
+    }
+
+    private static boolean isSealedSound(ByteBuffer frame) {
+        ByteBuffer packet = frame.duplicate();
+        packet.position(frame.position() + Framing.HEADER_LENGTH);
+        return PacketDecoder.isSealedSound(packet);
+    }
+
+    /**
+     * Sends a RECONNECT packet, asking the client to connect to another node or to come back after a delay. Its
+     * params are key=value: node with the host:port to go to, delay with the milliseconds to wait, and for a member
+     * of a chatroom token, which a RESUME packet on the new connection puts it back into the chatroom with. The
+     * connection stays open, the client hangs up once it is back in its chatroom.
+     * @param node Address of the node to go to, null to come back here
+     * @param delayMillis How long to wait before connecting
+     * @throws IOException If the packet can not be sent
+     */
+    public void sendReconnect(String node, long delayMillis) throws IOException {
+        List<String> params = new ArrayList<>();
+        if (node != null) params.add("node=" + node);
+        params.add("delay=" + delayMillis);
+        Chatroom chatroom = this.chatroom;
+        if (chatroom != null) params.add("token=" + resumptionToken(chatroom));
+        sendPacketToClient(new ParticipantACK(ParticipantOpcode.RECONNECT, PORT, params.toArray(new String[0])));
+    }
+
+    /**
+     * Closes the transport this client is attached to
+     * @throws IOException If the socket cannot be closed
+     */
+    public void close() throws IOException {
+        closing = true;
+        Transport transport = this.transport;
+        if (transport == null) return;
+        transport.close();
+        // a detached session has no connection left to report its end
+        if (detached) expire(transport);
+    }
+
+    /**
+     * @return True for a JOIN from another node's uplink, one with the param cascade after the chatroom's name
+     */
+    private static boolean isCascadeJoin(ParticipantData participantData) {
+        String[] params = participantData.getParams();
+        for (int i = 1; i < params.length; i++)
+            if (params[i].equals("cascade")) return true;
+        return false;
+    }
+
+    /**
+     * Closes this node's edge of a spanning chatroom once its last member here left it
+     */
+    private void closeEdgeIfEmpty(Chatroom chatroom) {
+        CascadeRelay cascadeRelay = voicechatServer.getCascadeRelay();
+        if (cascadeRelay != null && chatroom.getUplink() != null) cascadeRelay.closeIfEmpty(chatroom);
+    }
+
+    /**
+     * Ends the UDP media session if the client had one
+     */
+    private void closeMediaSession() {
+        MediaRelay mediaRelay = voicechatServer.getMediaRelay();
+        if (mediaRelay != null) mediaRelay.closeSession(this);
     }
 
     public int getPort() {
         return PORT;
     }
 
-    public Socket getSocket() {
-        return socket;
+    public Chatroom getChatroom() {
+        return chatroom;
+    }
+
+    /**
+     * @return Cipher of the session or null while the client has not exchanged keys
+     */
+    public SessionCipher getCipher() {
+        return cipher;
+    }
+
+    public long getMediaToken() {
+        return mediaToken;
+    }
+
+    public void setMediaToken(long mediaToken) {
+        this.mediaToken = mediaToken;
+    }
+
+    public SocketAddress getMediaAddress() {
+        return mediaAddress;
+    }
+
+    public void setMediaAddress(SocketAddress mediaAddress) {
+        this.mediaAddress = mediaAddress;
+    }
+
+    public boolean isCascade() {
+        return cascade;
+    }
+
+    public void setCascade(boolean cascade) {
+        this.cascade = cascade;
+    }
+
+    /**
+     * Seals everything sent from now on with a cipher agreed on elsewhere, for an uplink that exchanged keys as the
+     * client of another node
+     */
+    void useCipher(SessionCipher cipher) {
+        this.cipher = cipher;
+    }
+
+    public boolean isSilent() {
+        return silent;
+    }
+
+    public void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    public Transport getTransport() {
+        return transport;
     }
 
     public void setChatroom(Chatroom chatroom) {
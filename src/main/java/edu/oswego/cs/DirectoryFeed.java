@@ -0,0 +1,190 @@
+package edu.oswego.cs;
+
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ParticipantACK;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes changes of the room directory and of chatroom membership to clients that subscribed to them, so a lobby
+ * does not have to poll LIST_SERVERS. Changes are collected between ticks and coalesced, a room that changed size
+ * ten times in one tick is reported once with its latest size and a member that joined and left again is not
+ * reported at all. Every tick each subscriber gets at most one UPDATE ACK holding all of its deltas as params:
+ *   room;name;size/max    the chatroom was created or its size changed (lobby subscribers)
+ *   removed;name          the chatroom is gone (lobby subscribers)
+ *   joined;name;port      a member joined (subscribers of that chatroom)
+ *   left;name;port        a member left (subscribers of that chatroom)
+ * Nothing is collected for changes nobody is subscribed to.
+ */
+public class DirectoryFeed {
+    public static final int DEFAULT_TICK_MS = 100;
+
+    private final int tickMillis;
+    private final Set<ClientConnection> lobbySubscribers = ConcurrentHashMap.newKeySet();
+    // subscribers of a chatroom's membership by chatroom name
+    private final ConcurrentHashMap<String, Set<ClientConnection>> roomSubscribers = new ConcurrentHashMap<>();
+
+    // changes since the last tick, guarded by this. Lobby deltas by room name, membership by room name and port
+    private Map<String, String> lobbyDeltas = new LinkedHashMap<>();
+    private Map<String, Map<Integer, Boolean>> memberDeltas = new LinkedHashMap<>();
+
+    private ScheduledExecutorService ticker;
+
+    public DirectoryFeed() {
+        this(DEFAULT_TICK_MS);
+    }
+
+    /**
+     * @param tickMillis How long changes are collected before they are pushed
+     */
+    public DirectoryFeed(int tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Starts pushing changes every tick on a thread of its own
+     */
+    public void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "directory-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::flush, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (ticker != null) ticker.shutdownNow();
+    }
+
+    public void subscribeLobby(ClientConnection connection) {
+        lobbySubscribers.add(connection);
+    }
+
+    public void subscribeRoom(String name, ClientConnection connection) {
+        roomSubscribers.computeIfAbsent(name, key -> ConcurrentHashMap.newKeySet()).add(connection);
+    }
+
+    public void unsubscribeLobby(ClientConnection connection) {
+        lobbySubscribers.remove(connection);
+    }
+
+    public void unsubscribeRoom(String name, ClientConnection connection) {
+        roomSubscribers.computeIfPresent(name, (key, subscribers) -> {
+            subscribers.remove(connection);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * Drops every subscription of a client that disconnected
+     */
+    public void unsubscribeAll(ClientConnection connection) {
+        lobbySubscribers.remove(connection);
+        for (String name : roomSubscribers.keySet())
+            unsubscribeRoom(name, connection);
+    }
+
+    /**
+     * @param entry The room's directory entry, name;size/max
+     */
+    void roomChanged(String name, String entry) {
+        if (lobbySubscribers.isEmpty()) return;
+        synchronized (this) {
+            lobbyDeltas.put(name, "room;" + entry);
+        }
+    }
+
+    void roomRemoved(String name) {
+        if (lobbySubscribers.isEmpty()) return;
+        synchronized (this) {
+            lobbyDeltas.put(name, "removed;" + name);
+        }
+    }
+
+    void memberChanged(String name, int port, boolean joined) {
+        if (! roomSubscribers.containsKey(name)) return;
+        synchronized (this) {
+            Map<Integer, Boolean> members = memberDeltas.computeIfAbsent(name, key -> new LinkedHashMap<>());
+            // a join and a leave of the same port in one tick cancel out
+            Boolean pending = members.remove(port);
+            if (pending == null || pending == joined) members.put(port, joined);
+        }
+    }
+
+    /**
+     * Sends everything collected since the last tick, one ACK per subscriber
+     */
+    public void flush() {
+        Map<String, String> lobby;
+        Map<String, Map<Integer, Boolean>> membership;
+        synchronized (this) {
+            if (lobbyDeltas.isEmpty() && memberDeltas.isEmpty()) return;
+            lobby = lobbyDeltas;
+            membership = memberDeltas;
+            lobbyDeltas = new LinkedHashMap<>();
+            memberDeltas = new LinkedHashMap<>();
+        }
+
+        // every delta is encoded once, a subscriber's update is the deltas it is subscribed to back to back
+        Map<ClientConnection, ByteArrayOutputStream> updates = new HashMap<>();
+        if (! lobby.isEmpty()) {
+            byte[] encoded = encode(lobby.values());
+            for (ClientConnection subscriber : lobbySubscribers)
+                updates.computeIfAbsent(subscriber, key -> new ByteArrayOutputStream()).writeBytes(encoded);
+        }
+        for (Map.Entry<String, Map<Integer, Boolean>> room : membership.entrySet()) {
+            Set<ClientConnection> subscribers = roomSubscribers.get(room.getKey());
+            if (subscribers == null || room.getValue().isEmpty()) continue;
+            StringBuilder deltas = new StringBuilder();
+            room.getValue().forEach((port, joined) -> deltas.append(joined ? "joined;" : "left;")
+                    .append(room.getKey()).append(';').append(port).append('\0'));
+            byte[] encoded = deltas.toString().getBytes(StandardCharsets.UTF_8);
+            for (ClientConnection subscriber : subscribers)
+                updates.computeIfAbsent(subscriber, key -> new ByteArrayOutputStream()).writeBytes(encoded);
+        }
+
+        updates.forEach((subscriber, update) -> send(subscriber, update.toByteArray()));
+    }
+
+    /**
+     * Sends an update as one ACK, or as several if it would not fit in a packet
+     */
+    private static void send(ClientConnection subscriber, byte[] update) {
+        try {
+            int start = 0;
+            while (start < update.length) {
+                // cut after the last delta that still fits
+                int end = update.length;
+                if (end - start > RoomDirectory.MAX_PAGE_BYTES) {
+                    end = start + RoomDirectory.MAX_PAGE_BYTES;
+                    while (end > start && update[end - 1] != 0) end--;
+                    if (end == start) return;
+                }
+                byte[] part = start == 0 && end == update.length ? update : Arrays.copyOfRange(update, start, end);
+                subscriber.sendPacketToClient(new ParticipantACK(ParticipantOpcode.UPDATE, subscriber.getPort(), part));
+                start = end;
+            }
+        } catch (IOException ignored) {
+            // gone, its disconnect drops the subscription
+        }
+    }
+
+    private static byte[] encode(Iterable<String> deltas) {
+        StringBuilder params = new StringBuilder();
+        for (String delta : deltas)
+            params.append(delta).append('\0');
+        return params.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,287 @@
+package edu.oswego.cs;
+
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.crypto.RoomCipher;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.PacketDecoder;
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.network.packets.SealedSoundData;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+
+  +-----------------------------------+----------------------+
+  |                                   |                      |
+  |           Session Token           |   SoundData Packet   |
+  |                                   |                      |
+  +-----------------------------------+----------------------+
+                 8 Bytes                      N Bytes
+
+  Every datagram sent to the media port. The token is handed out in the ACK of a JOIN and only the SoundData packet
+  is forwarded to the rest of the chatroom. A datagram holding nothing but the token registers the client's address
+  so it can hear the room before it speaks. Clients that exchanged keys send the SoundData packet inside an ENCRYPTED
+  envelope and receive it the same way, see SessionCipher. They register with an envelope too, holding any packet
+  that is not SOUND, since the token alone crosses the network in the clear. A SealedSoundData packet takes the place
+  of the SoundData packet without an envelope and is forwarded untouched, the room key already protects it.
+
+ */
+
+/**
+ * UDP media plane next to the TCP control connection. SOUND frames sent here travel as datagrams, so a lost packet
+ * only costs the frame it carried instead of stalling every frame behind it the way a lost TCP segment does.
+ * A single thread receives into one direct buffer and forwards it as is, nothing is allocated per plaintext frame.
+ * Encrypted frames are opened in place and sealed again for every encrypted listener with its own keys, frames
+ * sealed with the room key go out as they came. In a mixing chatroom SOUND frames go to its AudioMixer instead. The
+ * links to the other nodes of a spanning chatroom have no media address and share one framed copy sent over TCP,
+ * the only allocation for a plaintext frame.
+ * The relay thread serves every chatroom, the event loops a nio server shards its chatrooms across only carry the TCP
+ * connections.
+ */
+public class MediaRelay implements Runnable {
+    public static final int TOKEN_LENGTH = 8;
+    private static final int MAX_DATAGRAM_LENGTH = 65536;
+
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+    // sealed copies for encrypted listeners are written here
+    private final ByteBuffer sealed = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+    // indexed by client port, which is also the low 16 bits of the client's token
+    private final AtomicReferenceArray<ClientConnection> sessions = new AtomicReferenceArray<>(65536);
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param port UDP port to receive frames on, 0 picks any free port
+     * @throws IOException If the port cannot be bound
+     */
+    public MediaRelay(int port) throws IOException {
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                buffer.flip();
+                forward(source);
+            }
+        } catch (ClosedChannelException ignored) {
+            // closed by shutdown
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a media session for a client that joined a chatroom, replacing any session it had before
+     * @param connection Client that joined
+     * @return Token the client has to put in front of every datagram
+     */
+    public long openSession(ClientConnection connection) {
+        // the port in the low bits finds the session without a map lookup, the random bits keep it unguessable
+        long token = (random.nextLong() << 16) | connection.getPort();
+        connection.setMediaToken(token);
+        connection.setMediaAddress(null);
+        sessions.set(connection.getPort(), connection);
+        return token;
+    }
+
+    /**
+     * Ends the media session of a client that left its chatroom or disconnected
+     * @param connection Client to stop relaying for
+     */
+    public void closeSession(ClientConnection connection) {
+        sessions.compareAndSet(connection.getPort(), connection, null);
+        connection.setMediaToken(0);
+        connection.setMediaAddress(null);
+    }
+
+    /**
+     * Sends a packet the server made itself to a member's media address, used by the mixer from its own thread
+     * @param member Member registered on the media port
+     * @param packet Packet between position and limit
+     * @throws IOException If the datagram can not be sent
+     */
+    public void send(ClientConnection member, ByteBuffer packet) throws IOException {
+        SocketAddress address = member.getMediaAddress();
+        if (address == null) return;
+        SessionCipher memberCipher = member.getCipher();
+        if (memberCipher == null) {
+            channel.send(packet, address);
+            return;
+        }
+        ByteBuffer envelope = ByteBuffer.allocate(SessionCipher.OVERHEAD + packet.remaining());
+        synchronized (memberCipher) {
+            memberCipher.sealDatagram(packet, envelope);
+        }
+        channel.send(envelope.flip(), address);
+    }
+
+    /**
+     * @return Port the relay is bound to
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Checks the datagram in the buffer and sends its packet on to everyone else in the sender's chatroom
+     * @param source Address the datagram came from
+     * @throws IOException If the channel fails, a single unreachable listener does not throw
+     */
+    private void forward(SocketAddress source) throws IOException {
+        if (buffer.remaining() < TOKEN_LENGTH) return;
+        long token = buffer.getLong(0);
+        int port = (int) (token & 0xFFFF);
+        ClientConnection sender = sessions.get(port);
+        if (sender == null || sender.getMediaToken() != token) return;
+        SessionCipher senderCipher = sender.getCipher();
+
+        if (buffer.remaining() == TOKEN_LENGTH) {
+            if (senderCipher == null) moveAddress(sender, source);
+            return;
+        }
+        buffer.position(TOKEN_LENGTH);
+        if (PacketDecoder.isSealedSound(buffer)) {
+            forwardSealed(sender, port, source);
+            return;
+        }
+
+        // an encrypted session only gets to send envelopes, anything in plaintext would be a downgrade
+        if (senderCipher != null) {
+            try {
+                senderCipher.openDatagram(buffer);
+            } catch (ProtocolException e) {
+                return;
+            }
+        }
+        moveAddress(sender, source);
+
+        // only sound is relayed here and only from the port the token belongs to
+        int start = buffer.position();
+        if (buffer.remaining() < SoundData.HEADER_LENGTH) return;
+        if (buffer.getShort(start) != PacketOpcode.SOUND.getInt()) return;
+        if ((buffer.getShort(start + 2) & 0xFFFF) != port) return;
+
+        Chatroom chatroom = sender.getChatroom();
+        if (chatroom == null) return;
+        if (! chatroom.isForwarded(sender, buffer.position(start + SoundData.HEADER_LENGTH))) return;
+        AudioMixer mixer = chatroom.getMixer();
+        if (mixer != null) {
+            mixer.submit(port, buffer.getInt(start + 4), buffer.getInt(start + 8), buffer);
+            return;
+        }
+        ByteBuffer linkFrame = null;
+        for (ClientConnection member : chatroom.getMembers()) {
+            if (member == sender) continue;
+            buffer.position(start);
+            if (member.isCascade()) {
+                if (linkFrame == null) linkFrame = linkFrame(buffer);
+                sendOverLink(member, linkFrame);
+                continue;
+            }
+            SocketAddress address = member.getMediaAddress();
+            if (address == null) continue;
+            SessionCipher memberCipher = member.getCipher();
+            try {
+                if (memberCipher == null) channel.send(buffer, address);
+                else {
+                    sealed.clear();
+                    // the mixer seals for the same member from its own thread, see send
+                    synchronized (memberCipher) {
+                        memberCipher.sealDatagram(buffer, sealed);
+                    }
+                    channel.send(sealed.flip(), address);
+                }
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException ignored) {
+                // an unreachable listener only misses this frame
+            }
+        }
+    }
+
+    /**
+     * @param packet Packet between position and limit, the position is not moved
+     * @return The packet framed for a TCP connection, shared read-only by the links of one datagram
+     */
+    private static ByteBuffer linkFrame(ByteBuffer packet) {
+        ByteBuffer frame = ByteBuffer.allocate(Framing.HEADER_LENGTH + packet.remaining());
+        frame.putInt(packet.remaining()).put(packet.duplicate());
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Sends a frame to the link between two nodes of a spanning chatroom, see {@link CascadeRelay}. A link has no media
+     * address, its frames go over its connection, one copy per node.
+     */
+    private static void sendOverLink(ClientConnection link, ByteBuffer linkFrame) {
+        try {
+            link.sendFrameToClient(linkFrame.duplicate());
+        } catch (IOException ignored) {
+            // a link that dropped closes its edge
+        }
+    }
+
+    /**
+     * The latest address wins, so a client behind a NAT that rebinds keeps receiving. Only called once a datagram
+     * proved to be from the client: an envelope opened with its keys, or for a client without keys its token.
+     */
+    private static void moveAddress(ClientConnection sender, SocketAddress source) {
+        if (! source.equals(sender.getMediaAddress())) sender.setMediaAddress(source);
+    }
+
+    /**
+     * Sends a sealed frame on to the rest of the chatroom as it is, encrypted listeners included
+     * @param sender Client the token belongs to
+     * @param port Port of the sender
+     * @param source Address the frame came from
+     * @throws IOException If the channel fails
+     */
+    private void forwardSealed(ClientConnection sender, int port, SocketAddress source) throws IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < SealedSoundData.HEADER_LENGTH + RoomCipher.TAG_LENGTH) return;
+        if ((buffer.getShort(start + 2) & 0xFFFF) != port) return;
+        Chatroom chatroom = sender.getChatroom();
+        if (chatroom == null || buffer.getInt(start + 4) != chatroom.getRoomId()) return;
+        // the relay can not check the room key's tag, a copied frame must not move an encrypted session's address
+        if (sender.getCipher() == null) moveAddress(sender, source);
+
+        ByteBuffer linkFrame = null;
+        for (ClientConnection member : chatroom.getMembers()) {
+            if (member == sender) continue;
+            buffer.position(start);
+            if (member.isCascade()) {
+                if (linkFrame == null) linkFrame = linkFrame(buffer);
+                sendOverLink(member, linkFrame);
+                continue;
+            }
+            SocketAddress address = member.getMediaAddress();
+            if (address == null) continue;
+            try {
+                channel.send(buffer, address);
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException ignored) {
+                // an unreachable listener only misses this frame
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.oswego.cs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out the per-client ports from a fixed range. One bit per port, set while the port is taken, claimed and freed
+ * with a compare-and-set on the 64 bit word holding it, so allocating never locks and never looks at the clients.
+ * Searching starts at the word the last allocation found a free port in, which keeps an allocation to a word or two
+ * unless the range is close to full.
+ */
+public class PortAllocator {
+    private final int firstPort;
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger hint = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param firstPort Lowest port handed out
+     * @param size Number of ports in the range
+     */
+    public PortAllocator(int firstPort, int size) {
+        if (size <= 0 || firstPort < 0 || firstPort + size > 65536)
+            throw new IllegalArgumentException("Port range " + firstPort + "+" + size + " is not within 0-65535");
+        this.firstPort = firstPort;
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) / 64);
+        // bits past the end of the range are marked taken so they are never handed out
+        int tail = size % 64;
+        if (tail != 0) words.set(words.length() - 1, -1L << tail);
+    }
+
+    /**
+     * @return A free port, or -1 if every port in the range is taken
+     */
+    public int allocate() {
+        int start = hint.get();
+        for (int i = 0; i < words.length(); i++) {
+            int index = (start + i) % words.length();
+            long word = words.get(index);
+            while (word != -1L) {
+                int bit = Long.numberOfTrailingZeros(~word);
+                if (words.compareAndSet(index, word, word | (1L << bit))) {
+                    if (index != start) hint.set(index);
+                    allocated.incrementAndGet();
+                    return firstPort + index * 64 + bit;
+                }
+                word = words.get(index);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks a port as taken for good, for a port the server listens on itself. It is never handed out and not counted
+     * as allocated. A port outside the range is ignored.
+     * @param port Port to keep
+     */
+    public void reserve(int port) {
+        int offset = port - firstPort;
+        if (offset < 0 || offset >= size) return;
+        int index = offset / 64;
+        long mask = 1L << (offset % 64);
+        for (;;) {
+            long word = words.get(index);
+            if ((word & mask) != 0 || words.compareAndSet(index, word, word | mask)) return;
+        }
+    }
+
+    /**
+     * Frees a port handed out by {@link #allocate()}, releasing a port that is not taken does nothing
+     * @param port Port to free
+     */
+    public void release(int port) {
+        int offset = port - firstPort;
+        if (offset < 0 || offset >= size) return;
+        int index = offset / 64;
+        long mask = 1L << (offset % 64);
+        for (;;) {
+            long word = words.get(index);
+            if ((word & mask) == 0) return;
+            if (words.compareAndSet(index, word, word & ~mask)) {
+                allocated.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Number of ports taken right now
+     */
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
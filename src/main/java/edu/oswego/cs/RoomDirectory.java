@@ -0,0 +1,154 @@
+package edu.oswego.cs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lobby listing sent in reply to LIST_SERVERS. Every chatroom has one entry, "name;size/max" already encoded as a
+ * zero terminated param, which is replaced whenever the chatroom is created, joined or left. A reply is the entries
+ * of one page copied back to back, so answering a LIST never formats a string. The first unfiltered page is what
+ * most clients ask for and is kept until the next change.
+ *
+ * A LIST request takes optional params, each as key=value:
+ *   prefix=abc   only chatrooms whose name starts with abc
+ *   after=name   start after this chatroom name, the last one of the previous page
+ *   limit=n      at most n chatrooms, capped at {@link #MAX_PAGE_SIZE}
+ * Entries come sorted by name. A page that ends before the last matching chatroom, because of its limit or because
+ * of {@link #MAX_PAGE_BYTES}, has {@link #MORE} as its last param. The next page starts after the entry before it.
+ */
+public class RoomDirectory {
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 500;
+    // a page also ends before it gets bigger than this, whatever the limit, so a reply always fits in one packet
+    public static final int MAX_PAGE_BYTES = 16 * 1024;
+    // last param of a page with more chatrooms after it, an entry always has a ';' so it can not be taken for one
+    public static final String MORE = "more";
+    private static final byte[] MORE_PARAM = (MORE + "\0").getBytes(StandardCharsets.UTF_8);
+
+    private final ConcurrentSkipListMap<String, byte[]> entries = new ConcurrentSkipListMap<>();
+    // raised on every change, the cached first page is only good for the version it was built at
+    private final AtomicLong version = new AtomicLong();
+    private volatile Page firstPage;
+    // pushes the same changes to subscribers, null if nobody can subscribe
+    private DirectoryFeed feed;
+
+    public void setFeed(DirectoryFeed feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * Writes the current entry for a chatroom, called on create and on every join and leave
+     * @param chatroom Chatroom that changed
+     */
+    public void update(Chatroom chatroom) {
+        update(chatroom.getChatroomName(),
+                chatroom.getChatroomName() + ";" + chatroom.getChatroomSize() + "/" + chatroom.getMaxParticipants());
+    }
+
+    /**
+     * Writes the entry of a chatroom by name, also used for the chatrooms of other nodes in a cluster
+     * @param name Name of the chatroom
+     * @param entry Its entry, name;size/max
+     */
+    public void update(String name, String entry) {
+        byte[] encoded = entry.getBytes(StandardCharsets.UTF_8);
+        byte[] param = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, param, 0, encoded.length);
+        entries.put(name, param);
+        version.incrementAndGet();
+        if (feed != null) feed.roomChanged(name, entry);
+    }
+
+    /**
+     * Called by a chatroom for every member that joins or leaves it
+     */
+    public void memberChanged(Chatroom chatroom, int port, boolean joined) {
+        if (feed != null) feed.memberChanged(chatroom.getChatroomName(), port, joined);
+    }
+
+    /**
+     * @param name Name of a chatroom that no longer exists
+     */
+    public void remove(String name) {
+        if (entries.remove(name) == null) return;
+        version.incrementAndGet();
+        if (feed != null) feed.roomRemoved(name);
+    }
+
+    public void clear() {
+        for (String name : entries.keySet())
+            remove(name);
+    }
+
+    /**
+     * @return Number of chatrooms listed
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param params Params of the LIST request
+     * @return The page as zero terminated params, not to be modified
+     */
+    public byte[] list(String[] params) {
+        String prefix = "";
+        String after = null;
+        int limit = DEFAULT_PAGE_SIZE;
+        for (String param : params) {
+            if (param.startsWith("prefix="))     prefix = param.substring(7);
+            else if (param.startsWith("after=")) after = param.substring(6);
+            else if (param.startsWith("limit=")) {
+                try {
+                    limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(param.substring(6))));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+
+        if (prefix.isEmpty() && after == null && limit == DEFAULT_PAGE_SIZE) {
+            long current = version.get();
+            Page page = firstPage;
+            if (page != null && page.version == current) return page.body;
+            byte[] body = page("", null, limit);
+            firstPage = new Page(current, body);
+            return body;
+        }
+        return page(prefix, after, limit);
+    }
+
+    private byte[] page(String prefix, String after, int limit) {
+        Map<String, byte[]> from;
+        if (after != null && after.compareTo(prefix) >= 0) from = entries.tailMap(after, false);
+        else                                               from = entries.tailMap(prefix, true);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int count = 0;
+        for (Map.Entry<String, byte[]> entry : from.entrySet()) {
+            // sorted by name, so the first name without the prefix ends the matches
+            if (! entry.getKey().startsWith(prefix)) break;
+            byte[] param = entry.getValue();
+            // a name this long never fits a page, leaving it out keeps the pages after it reachable
+            if (param.length > MAX_PAGE_BYTES - MORE_PARAM.length) continue;
+            if (count == limit || body.size() + param.length > MAX_PAGE_BYTES - MORE_PARAM.length) {
+                body.writeBytes(MORE_PARAM);
+                break;
+            }
+            body.writeBytes(param);
+            count++;
+        }
+        return body.toByteArray();
+    }
+
+    private static final class Page {
+        final long version;
+        final byte[] body;
+
+        Page(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+}
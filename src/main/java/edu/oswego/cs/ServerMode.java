@@ -0,0 +1,20 @@
+package edu.oswego.cs;
+
+/**
+ * How the server talks to its clients, chosen with SERVER_MODE in the .env file
+ */
+public enum ServerMode {
+
+    // every client is handed its own port and gets a dedicated thread blocking on it
+    SOCKET,
+    // same as SOCKET but every client's read loop runs on a virtual thread instead of a platform thread
+    VIRTUAL,
+    // every client stays on the server port and a few selector threads do all reads and writes
+    NIO;
+
+    public static ServerMode getMode(String mode) {
+        if (mode == null || mode.isEmpty()) return SOCKET;
+        return ServerMode.valueOf(mode.trim().toUpperCase());
+    }
+
+}
@@ -1,16 +1,41 @@
 package edu.oswego.cs;
 
+import edu.oswego.cs.audio.AudioMixer;
+import edu.oswego.cs.cluster.Cluster;
+import edu.oswego.cs.crypto.EncryptionMode;
+import edu.oswego.cs.crypto.ResumptionTokens;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.OverflowPolicy;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.SocketTransport;
+import edu.oswego.cs.network.nio.EventLoop;
+import edu.oswego.cs.network.nio.NioTransport;
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
 import edu.oswego.cs.network.packets.EndPacket;
+import edu.oswego.cs.network.packets.ErrorPacket;
 import edu.oswego.cs.network.packets.Packet;
 import edu.oswego.cs.network.packets.SoundData;
 import io.github.cdimascio.dotenv.Dotenv;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -19,117 +44,640 @@ import java.util.stream.Collectors;
 public class VoicechatServer {
     private final String HOST;
     private final int PORT;
-    private int CONNECTION_PORT;
-
-    private int chatroomCount = 0;
-    // Concurrent map to keep track of ports and current opened client connections
-    public static ConcurrentHashMap<Integer, ClientConnection> clientConnections = new ConcurrentHashMap<>();
-    public static ConcurrentHashMap<Integer, Chatroom> chatrooms = new ConcurrentHashMap<>();
-
-    private static ServerSocket serverSocket;
+    private final int CONNECTION_PORT;
+    private final ServerMode MODE;
+    private final int EVENT_LOOP_THREADS;
+    private final int MEDIA_PORT;
+    private final ThreadFactory connectionThreads;
+    private MediaRelay mediaRelay;
+    private PortAllocator portAllocator;
+    private AdmissionControl admissionControl = new AdmissionControl(0, 0);
+    private int ACCEPT_BACKLOG = 1024;
+    private int handshakeThreads = 2;
+    private ThreadPoolExecutor handshakePool;
+    private EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private int sendQueueCapacity = 128;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private EncryptionMode encryptionMode = EncryptionMode.OPTIONAL;
+
+    // Concurrent map to keep track of ports and current opened client connections. One per server, so several nodes
+    // of a cluster can run in one JVM
+    private final ConcurrentHashMap<Integer, ClientConnection> clientConnections = new ConcurrentHashMap<>();
+    // chatrooms by name, so finding one to join is a single lookup and creating one is a single putIfAbsent
+    private final ConcurrentHashMap<String, Chatroom> chatrooms = new ConcurrentHashMap<>();
+    private final RoomDirectory roomDirectory = new RoomDirectory();
+    private final DirectoryFeed directoryFeed = new DirectoryFeed();
+    private ScheduledExecutorService mixerClock;
+    private int activeSpeakers = 0;
+    // set when this server is one node of a cluster, see Cluster
+    private Cluster cluster;
+    // opens the edges of spanning chatrooms that live on other nodes, only in nio mode
+    private CascadeRelay cascadeRelay;
+    private ResumptionTokens resumptionTokens = new ResumptionTokens(null);
+    private long drainTimeoutMillis = 30000;
+    // how long a member's session outlives its connection, waiting for the client to resume it
+    private long sessionGraceMillis = 10000;
+    // ends the sessions that were not resumed in time and rotates room keys, see timer
+    private ScheduledExecutorService timer;
+    // set once drain starts, the server takes no new clients and sends the ones it has elsewhere
+    private volatile boolean draining = false;
+
+    private volatile ServerSocket serverSocket;
+
+    // how long clients of a draining server are told to wait before they come back to it
+    public static final long RECONNECT_DELAY_MILLIS = 1000;
 
     private static final String TEXT_GREEN = "\u001B[32m";
     public static final String TEXT_RED = "\u001B[31m";
     private static final String TEXT_RESET = "\u001B[0m";
 
     public VoicechatServer(String host, int port, int connectionStartingPort) {
+        this(host, port, connectionStartingPort, ServerMode.SOCKET, 1, 0);
+    }
+
+    /**
+     * @param mediaPort UDP port for SOUND frames, 0 keeps all voice on the TCP connections
+     */
+    public VoicechatServer(String host, int port, int connectionStartingPort, ServerMode mode, int eventLoopThreads,
+                           int mediaPort) {
         this.HOST = host;
         this.PORT = port;
         this.CONNECTION_PORT = connectionStartingPort;
+        this.MODE = mode;
+        this.EVENT_LOOP_THREADS = eventLoopThreads;
+        this.MEDIA_PORT = mediaPort;
+        this.portAllocator = newPortAllocator(65536 - connectionStartingPort);
+        this.connectionThreads = (mode == ServerMode.VIRTUAL) ?
+                Thread.ofVirtual().name("client-", 0).factory() :
+                Thread.ofPlatform().name("client-", 0).factory();
+        roomDirectory.setFeed(directoryFeed);
         displayServerStartup();
     }
 
     /**
-     * Handler for client connection requests. Multithreaded - when a client connects using TCP/IP, the server handler
-     * passes the request to another thread and gets ready to accept another client request.
+     * Starts the console and begins accepting clients in the configured server mode
      * @throws IOException Cannot open server on port
      */
     public void start() throws IOException {
-         serverSocket = new ServerSocket(PORT);
-
-         new Thread( () -> {
-             while (true) {
-                 Scanner scanner = new Scanner(System.in);
-                 String userIn = scanner.nextLine();
-
-                 if (userIn.startsWith("-a")) {
-                     for (Chatroom chatroom : chatrooms.values()) {
-                         System.out.println(chatroom.getChatroomName() + "(" + chatroom.getChatroomSize() + "/" + chatroom.getMaxParticipants() + ")");
-                         for (ClientConnection connection : chatroom.getClientConnections()) {
-                             System.out.println("\t" + connection.getPort());
-                         }
-                     }
-                 }
-                 else if (userIn.startsWith("-c")) {
-                     chatrooms = new ConcurrentHashMap<>();
-                 }
-             }
-         } ).start();
+        startConsole();
+        displayInfo("ENCRYPTION:\t" + encryptionMode);
+        if (MEDIA_PORT != 0) startMediaRelay();
+        directoryFeed.start();
+        if (cluster != null) {
+            cluster.start();
+            displayInfo("CLUSTER:\t" + cluster.getSelf() + " of " + String.join(",", cluster.getNodes()));
+        }
+        try {
+            if (MODE == ServerMode.NIO) startNio();
+            else                        startSocket();
+        } catch (IOException e) {
+            // drain closed the server socket, the clients still connected are served until it is done
+            if (! draining) throw e;
+        }
+    }
 
-        // Forever loop to grab every possible connection
-        for (;;CONNECTION_PORT++) {
-            Socket clientSocket = serverSocket.accept();
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-            // opens a new server socket on a new port
-            List<Integer> usedPorts = new ArrayList<>(clientConnections.keySet());
-            Collections.sort(usedPorts);
-
-            int reusedPort = -1;
-            for (int portIndex = 0; portIndex < usedPorts.size(); portIndex++) {
-                if (portIndex == usedPorts.size() - 1) continue;
-                if (usedPorts.get(portIndex) == usedPorts.get(portIndex + 1) - 1 ) continue;
-                reusedPort = usedPorts.get(portIndex) + 1;
-                break;
-            }
+    /**
+     * Shuts the server down without cutting calls off. Stops accepting, tells every client with a RECONNECT packet
+     * where to go and hands members of a chatroom a token to resume their membership with, see
+     * {@link ClientConnection#sendReconnect(String, long)}. Frames are still relayed while the clients move, so a
+     * client that connects elsewhere before leaving loses no audio. Once no client is left in a chatroom, or the
+     * timeout passes, the frames still queued are written and the server {@link #stop() stops}. Calling it again
+     * waits for the first drain to finish.
+     * @param timeoutMillis Longest time to wait for the chatrooms to empty
+     */
+    public synchronized void drain(long timeoutMillis) {
+        if (draining) return;
+        draining = true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        displayInfo("DRAINING:\t" + clientConnections.size() + " connections, for up to " + timeoutMillis + " ms");
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) {}
+        for (ClientConnection connection : clientConnections.values())
+            sendReconnect(connection);
 
-            ClientConnection connection = (reusedPort == -1) ?
-                    new ClientConnection(CONNECTION_PORT, this) :
-                    new ClientConnection(reusedPort, this);
+        try {
+            while (System.currentTimeMillis() < deadline && hasMembers())
+                Thread.sleep(50);
+            while (System.currentTimeMillis() < deadline && hasQueuedFrames())
+                Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        displayInfo("DRAINED:\t" + clientConnections.size() + " connections left");
+        try {
+            stop();
+        } catch (IOException ignored) {}
+    }
 
-            if (reusedPort == -1) {
-                clientConnections.put(CONNECTION_PORT, connection);
-                out.println(CONNECTION_PORT);
+    /**
+     * Tells a client where to go while the server drains. A member of this node's edge of a spanning chatroom goes
+     * to the chatroom's node, a client in the lobby goes to any other node of the cluster. Everyone else, and every
+     * client of a server on its own, is told to come back after {@link #RECONNECT_DELAY_MILLIS}, when the server has
+     * restarted. Uplinks of other nodes' edges are left alone, their edges tell their own members when they drop.
+     */
+    void sendReconnect(ClientConnection connection) {
+        if (connection.isCascade()) return;
+        String node = null;
+        Chatroom chatroom = connection.getChatroom();
+        if (cluster != null) {
+            if (chatroom != null && chatroom.getUplink() != null) node = cluster.ownerOf(chatroom.getChatroomName());
+            else if (chatroom == null) {
+                List<String> others = new ArrayList<>(cluster.getNodes());
+                others.remove(cluster.getSelf());
+                if (! others.isEmpty()) node = others.get(Math.floorMod(connection.getPort(), others.size()));
             }
-            else {
-                clientConnections.put(reusedPort, connection);
-                out.println(reusedPort);
-                CONNECTION_PORT --;
+        }
+        try {
+            connection.sendReconnect(node, node == null ? RECONNECT_DELAY_MILLIS : 0);
+        } catch (IOException ignored) {
+            // gone already
+        }
+    }
+
+    /**
+     * @return True while a client is still in a chatroom on this server
+     */
+    private boolean hasMembers() {
+        for (ClientConnection connection : clientConnections.values())
+            if (connection.getChatroom() != null && ! connection.isCascade()) return true;
+        return false;
+    }
+
+    private boolean hasQueuedFrames() {
+        for (ClientConnection connection : clientConnections.values())
+            if (connection.getTransport() != null && ! connection.getTransport().getSendQueue().isEmpty()) return true;
+        return false;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Stops accepting clients and closes every connection. {@link #start()} returns with an exception once the
+     * server socket is closed.
+     * @throws IOException If the server socket cannot be closed
+     */
+    public void stop() throws IOException {
+        if (cluster != null) cluster.stop();
+        if (cascadeRelay != null) cascadeRelay.stop();
+        directoryFeed.stop();
+        if (serverSocket != null) serverSocket.close();
+        for (ClientConnection connection : clientConnections.values())
+            connection.close();
+        if (handshakePool != null) handshakePool.shutdownNow();
+        if (eventLoops != null) {
+            for (EventLoop eventLoop : eventLoops)
+                eventLoop.shutdown();
+        }
+        if (mediaRelay != null) mediaRelay.close();
+        if (mixerClock != null) mixerClock.shutdownNow();
+        synchronized (this) {
+            if (timer != null) timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads server admin commands from stdin
+     */
+    private void startConsole() {
+        Thread console = new Thread( () -> {
+            Scanner scanner = new Scanner(System.in);
+            while (scanner.hasNextLine()) {
+                String userIn = scanner.nextLine();
+
+                if (userIn.startsWith("-a")) {
+                    for (Chatroom chatroom : chatrooms.values()) {
+                        System.out.println(chatroom.getChatroomName() + "(" + chatroom.getChatroomSize() + "/" + chatroom.getMaxParticipants() + ")");
+                        for (ClientConnection connection : chatroom.getClientConnections()) {
+                            System.out.println("\t" + connection.getPort());
+                        }
+                    }
+                }
+                else if (userIn.startsWith("-c")) {
+                    for (Chatroom chatroom : chatrooms.values())
+                        if (chatroom.getMixer() != null) chatroom.getMixer().close();
+                    chatrooms.clear();
+                    roomDirectory.clear();
+                }
+                else if (userIn.startsWith("-m")) {
+                    Runtime runtime = Runtime.getRuntime();
+                    long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+                    displayInfo("MEMORY:\theap=" + usedHeap + " connections=" + clientConnections.size()
+                            + " threads=" + Thread.activeCount());
+                }
+                else if (userIn.startsWith("-e")) {
+                    // bytes sent to clients, and up the uplinks of the edges on this node
+                    long bytes = 0;
+                    for (ClientConnection connection : clientConnections.values())
+                        bytes += connection.getTransport().getSendQueue().getTakenBytes();
+                    int edges = 0;
+                    if (cascadeRelay != null) {
+                        for (Chatroom edge : cascadeRelay.getEdges()) {
+                            bytes += edge.getUplink().getTransport().getSendQueue().getTakenBytes();
+                            edges++;
+                        }
+                    }
+                    displayInfo("EGRESS:\tbytes=" + bytes + " connections=" + clientConnections.size() + " edges=" + edges);
+                }
+                else if (userIn.startsWith("-d")) {
+                    drain(drainTimeoutMillis);
+                    System.exit(0);
+                }
+                else if (userIn.startsWith("-q")) {
+                    for (ClientConnection connection : clientConnections.values()) {
+                        SendQueue queue = connection.getTransport().getSendQueue();
+                        System.out.println(connection.getPort() + "\tqueue=" + queue.getDepth() + " max="
+                                + queue.getMaxDepth() + " dropped=" + queue.getDroppedFrames());
+                    }
+                }
             }
-            // messages the client a new port to talk to the server on
-            displayInfo("New connection on PORT:\t" + connection.getPort());
-            connection.start();
+        }, "console");
+        // stdin closing (e.g. running under nohup) should not keep the server alive or kill it
+        console.setDaemon(true);
+        console.start();
+    }
+
+    /**
+     * Opens the UDP media port. Clients are handed a token for it when they join a chatroom.
+     * @throws IOException Cannot open the media port
+     */
+    private void startMediaRelay() throws IOException {
+        mediaRelay = new MediaRelay(MEDIA_PORT);
+        new Thread(mediaRelay, "media-relay").start();
+        displayInfo("MEDIA PORT:\t" + mediaRelay.getPort());
+    }
+
+    /**
+     * Handler for client connection requests. The accepting thread only checks admission and hands the socket to the
+     * handshake pool, which picks a port, opens the handoff socket and greets the client. Depending on the mode each
+     * client is then served by a platform thread or a virtual thread.
+     * @throws IOException Cannot open server on port
+     */
+    private void startSocket() throws IOException {
+        serverSocket = new ServerSocket(PORT, ACCEPT_BACKLOG);
+        handshakePool = newHandshakePool();
+
+        // Forever loop to grab every possible connection
+        for (;;) {
+            Socket clientSocket = serverSocket.accept();
+            admit(clientSocket, clientSocket.getOutputStream(), () -> socketHandshake(clientSocket));
+        }
+    }
+
+    /**
+     * Gives an admitted client its own port and thread
+     * @param clientSocket Connection to the server port, closed once the client has been told its port
+     */
+    private void socketHandshake(Socket clientSocket) throws IOException {
+        // opens a new server socket on a new port
+        int port = portAllocator.allocate();
+        if (port == -1) {
+            refuseConnection(clientSocket.getOutputStream(), ErrorOpcode.SERVER_FULL);
             clientSocket.close();
+            admissionControl.release();
+            return;
+        }
+        ClientConnection connection = new ClientConnection(port, this);
+        SocketTransport transport = new SocketTransport(port, connection, newSendQueue(), connectionThreads);
+        connection.attach(transport);
+        clientConnections.put(port, connection);
+
+        // messages the client a new port to talk to the server on
+        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+        out.println(port);
+        displayInfo("New connection on PORT:\t" + connection.getPort());
+        connectionThreads.newThread(transport).start();
+        clientSocket.close();
+    }
+
+    /**
+     * Selector based handler for client connection requests. Clients stay on the server port and are spread across a
+     * fixed number of event loops, so no thread or port is spent per client. The "port" each client is still told
+     * about is only an identifier for it inside the server.
+     * @throws IOException Cannot open server on port
+     */
+    private void startNio() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+        serverSocket = serverChannel.socket();
+
+        eventLoops = new EventLoop[EVENT_LOOP_THREADS];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "event-loop-" + i).start();
+        }
+        displayInfo("EVENT LOOPS:\t" + eventLoops.length);
+        handshakePool = newHandshakePool();
+
+        // Forever loop to grab every possible connection
+        for (;;) {
+            SocketChannel channel = serverChannel.accept();
+            admit(channel, channel.socket().getOutputStream(), () -> nioHandshake(channel));
+        }
+    }
+
+    /**
+     * Registers an admitted client with the next event loop
+     * @param channel Blocking channel straight from accept
+     */
+    private void nioHandshake(SocketChannel channel) throws IOException {
+        int port = portAllocator.allocate();
+        if (port == -1) {
+            refuseConnection(channel.socket().getOutputStream(), ErrorOpcode.SERVER_FULL);
+            channel.close();
+            admissionControl.release();
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            portAllocator.release(port);
+            throw e;
+        }
+
+        EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        ClientConnection connection = new ClientConnection(port, this);
+        NioTransport transport = new NioTransport(channel, eventLoop, connection, newSendQueue());
+        connection.attach(transport);
+        clientConnections.put(port, connection);
+
+        // same greeting as the socket mode so clients learn their id, but they keep talking on this connection
+        transport.send(ByteBuffer.wrap((port + "\n").getBytes(StandardCharsets.US_ASCII)));
+        displayInfo("New connection with ID:\t" + port);
+        eventLoop.register(channel, transport);
+    }
+
+    /**
+     * Runs on the accepting thread. Turns a client away with an error straight away if admission control or a full
+     * handshake queue says so, otherwise queues its handshake.
+     * @param socket Socket or channel of the client
+     * @param out Stream to write a refusal to
+     * @param handshake Work that sets the client up
+     */
+    private void admit(Closeable socket, OutputStream out, Handshake handshake) throws IOException {
+        ErrorOpcode refusal = admissionControl.admit();
+        if (refusal == null) {
+            try {
+                handshakePool.execute(() -> {
+                    try {
+                        handshake.run();
+                    } catch (IOException e) {
+                        admissionControl.release();
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {}
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                admissionControl.release();
+                refusal = ErrorOpcode.SERVER_BUSY;
+            }
         }
+        try {
+            refuseConnection(out, refusal);
+        } catch (IOException ignored) {
+            // it is being turned away either way
+        }
+        socket.close();
+    }
+
+    /**
+     * Bounded pool for handshakes. Up to ACCEPT_BACKLOG accepted clients wait for a thread, past that clients are
+     * turned away with SERVER_BUSY.
+     */
+    private ThreadPoolExecutor newHandshakePool() {
+        ThreadFactory factory = Thread.ofPlatform().name("handshake-", 0).factory();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ACCEPT_BACKLOG), factory);
+        displayInfo("HANDSHAKE THREADS:\t" + handshakeThreads);
+        return pool;
+    }
+
+    private interface Handshake {
+        void run() throws IOException;
+    }
+
+    /**
+     * Sets how many frames may wait for a client before the overflow policy kicks in
+     * @param capacity Frames per client
+     * @param policy What to do with a client whose queue is full
+     */
+    public void setSendQueue(int capacity, OverflowPolicy policy) {
+        this.sendQueueCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    public void setEncryptionMode(EncryptionMode encryptionMode) {
+        this.encryptionMode = encryptionMode;
+    }
+
+    public EncryptionMode getEncryptionMode() {
+        return encryptionMode;
+    }
+
+    SendQueue newSendQueue() {
+        return new SendQueue(sendQueueCapacity, overflowPolicy);
     }
 
     /**
-     * Functionality to allow participants to create chatrooms
+     * Limits how many ports, and so how many clients, are handed out from CONNECTION_STARTING_PORT up
+     * @param size Number of ports in the range
+     */
+    public void setConnectionPortRange(int size) {
+        this.portAllocator = newPortAllocator(size);
+    }
+
+    /**
+     * @param size Number of ports from CONNECTION_STARTING_PORT up
+     * @return Allocator for the client ports that never hands out the server's own PORT or MEDIA_PORT, in the socket
+     *         modes a client would be told to connect to the server port instead of its own
+     */
+    private PortAllocator newPortAllocator(int size) {
+        PortAllocator allocator = new PortAllocator(CONNECTION_PORT, size);
+        allocator.reserve(PORT);
+        if (MEDIA_PORT != 0) allocator.reserve(MEDIA_PORT);
+        return allocator;
+    }
+
+    /**
+     * @param activeSpeakers Members relayed at once in every chatroom created from now on, the loudest ones, 0 to
+     *                       relay everyone
+     */
+    public void setActiveSpeakers(int activeSpeakers) {
+        this.activeSpeakers = activeSpeakers;
+    }
+
+    /**
+     * @param secret Secret resumption tokens are signed with, the same on every server a client may resume on, see
+     *               {@link ResumptionTokens}. Empty for a random one, so tokens only work on this server until it stops
+     */
+    public void setResumptionSecret(String secret) {
+        this.resumptionTokens = new ResumptionTokens(secret);
+    }
+
+    public ResumptionTokens getResumptionTokens() {
+        return resumptionTokens;
+    }
+
+    /**
+     * @param drainTimeoutMillis Longest a drain started by a signal or the console waits for clients to move
+     */
+    public void setDrainTimeout(long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * @param sessionGraceMillis How long a member's session is kept after its connection drops, 0 to end it at once
+     */
+    public void setSessionGrace(long sessionGraceMillis) {
+        this.sessionGraceMillis = sessionGraceMillis;
+    }
+
+    public long getSessionGraceMillis() {
+        return sessionGraceMillis;
+    }
+
+    /**
+     * Makes this server one node of a cluster, see {@link Cluster}. The node's own address is HOST:SERVER_PORT.
+     * @param nodes Addresses of every node, host:port, this one included
+     */
+    public void setCluster(List<String> nodes) {
+        this.cluster = new Cluster(HOST + ":" + PORT, nodes, roomDirectory);
+        if (MODE == ServerMode.NIO) this.cascadeRelay = new CascadeRelay(this);
+    }
+
+    /**
+     * @return The cluster this server is a node of, or null if it runs on its own
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return Opens edges of spanning chatrooms on this node, null outside a cluster or in the socket modes
+     */
+    public CascadeRelay getCascadeRelay() {
+        return cascadeRelay;
+    }
+
+    /**
+     * Configures the accept pipeline
+     * @param backlog Connections the OS queues before they are accepted, also how many accepted clients may wait for
+     *                a handshake thread
+     * @param threads Threads doing handshakes
+     * @param maxConnections Clients connected at once, 0 for no limit besides the port range
+     * @param acceptsPerSecond New clients let in per second, 0 for no limit
+     */
+    public void setAcceptPipeline(int backlog, int threads, int maxConnections, int acceptsPerSecond) {
+        this.ACCEPT_BACKLOG = backlog;
+        this.handshakeThreads = threads;
+        this.admissionControl = new AdmissionControl(maxConnections, acceptsPerSecond);
+    }
+
+    /**
+     * Tells a client why it is not let in, in place of the greeting with its port. The caller hangs up.
+     * @param out Stream of the client's socket
+     * @param reason SERVER_FULL or SERVER_BUSY
+     */
+    private void refuseConnection(OutputStream out, ErrorOpcode reason) throws IOException {
+        String message;
+        switch (reason) {
+            case SERVER_BUSY: message = "Too many new connections, try again later."; break;
+            case SERVER_FULL: message = "Too many connections."; break;
+            default:          message = "Connection refused.";
+        }
+        ByteBuffer frame = Framing.frame(new ErrorPacket(reason, message));
+        out.write(frame.array(), 0, frame.limit());
+        displayError("Turned a client away with " + reason + ", " + admissionControl.getConnections() + " connected, "
+                + portAllocator.getAllocated() + " of " + portAllocator.getSize() + " ports in use.");
+    }
+
+    /**
+     * Functionality to allow participants to create chatrooms. Of two clients creating the same name at once exactly
+     * one succeeds.
      * @param name Name of the requested new chatroom
      * @param numberOfParticipants Number of participants allowed in the chatroom
+     * @return The new chatroom or null if one with that name already exists
+     */
+    public Chatroom createChatroom(String name, int numberOfParticipants) {
+        return createChatroom(name, numberOfParticipants, false);
+    }
+
+    /**
+     * @param mix True to mix the chatroom's speakers on the server, see {@link AudioMixer}
      */
-    public void createChatroom(String name, int numberOfParticipants) {
-        // check if any of the chatrooms that currently exists have the same name
-        if (! chatrooms.values().stream()
-                .map(Chatroom::getChatroomName)
-                .anyMatch(cname -> cname.equals(name))) {
+    public Chatroom createChatroom(String name, int numberOfParticipants, boolean mix) {
+        return createChatroom(name, numberOfParticipants, mix, false);
+    }
 
-            chatrooms.put(chatroomCount, new Chatroom(name, numberOfParticipants));
-            chatroomCount++;
+    /**
+     * @param span True to let clients join the chatroom on every node of the cluster, see {@link CascadeRelay}. A
+     *             spanning chatroom is never mixed
+     */
+    public Chatroom createChatroom(String name, int numberOfParticipants, boolean mix, boolean span) {
+        Chatroom chatroom = new Chatroom(name, numberOfParticipants, roomDirectory);
+        if (chatrooms.putIfAbsent(name, chatroom) == null) {
+            assignShard(chatroom);
+            chatroom.setKeyClock(timer());
+            chatroom.setActiveSpeakers(activeSpeakers);
+            chatroom.setSpanning(span);
+            if (mix && ! span) {
+                AudioMixer mixer = new AudioMixer(chatroom, mediaRelay);
+                chatroom.setMixer(mixer);
+                mixer.start(mixerClock(), eventLoops == null ? null : shardLoop(chatroom)::execute);
+            }
+            chatroom.publish();
             displayInfo("Chatroom Created: " + name);
-            return;
+            return chatroom;
         }
         displayError("Chatroom: " + name + " already exists.");
+        return null;
     }
 
     /**
-     * @return Gets all chatrooms active on the server
+     * Pins a new chatroom to the next event loop
      */
-    public String[] getChatrooms() {
-        ArrayList<String> chatroomNames = new ArrayList<>() ;
-        chatrooms.forEach( (index, name) -> {
-            chatroomNames.add(name.getChatroomName() + ";" + name.getChatroomSize() + "/" + name.getMaxParticipants());
-        });
-        return chatroomNames.toArray(new String[0]);
+    void assignShard(Chatroom chatroom) {
+        chatroom.setShard(Math.floorMod(nextShard.getAndIncrement(), Math.max(1, EVENT_LOOP_THREADS)));
+    }
+
+    /**
+     * @return Event loop of a chatroom in nio mode
+     */
+    EventLoop shardLoop(Chatroom chatroom) {
+        return eventLoops[chatroom.getShard() % eventLoops.length];
+    }
+
+    /**
+     * @return A free client id, or -1 if there is none
+     */
+    int allocatePort() {
+        return portAllocator.allocate();
+    }
+
+    void releasePort(int port) {
+        portAllocator.release(port);
+    }
+
+    /**
+     * Moves a client that joined a chatroom to the chatroom's event loop. Every chatroom is pinned to one loop when
+     * it is created, so in nio mode its members are read from and written to by the same thread: a frame is fanned
+     * out without waking up another loop, and the members' send queues and the chatroom's locks stay on one core.
+     * A mixing chatroom ticks on the same loop. Frames sent to the media port are not sharded: the one MediaRelay
+     * thread receives and fans out the datagrams of every chatroom. The socket modes have a thread per client and
+     * nothing to move.
+     * @param connection Client that just joined
+     * @param chatroom Chatroom it joined
+     */
+    public void moveToShard(ClientConnection connection, Chatroom chatroom) {
+        if (eventLoops == null || ! (connection.getTransport() instanceof NioTransport)) return;
+        ((NioTransport) connection.getTransport()).moveTo(shardLoop(chatroom));
     }
 
     /**
@@ -138,10 +686,87 @@ public class VoicechatServer {
      * @return If the chatroom is found or else NULL
      */
     public Chatroom findChatroomByName(String chatroomName) {
-        Optional<Chatroom> chatroom = chatrooms.values().stream()
-                .filter(room -> room.getChatroomName().equals(chatroomName))
-                .findFirst();
-        return chatroom.orElse(null);
+        return chatrooms.get(chatroomName);
+    }
+
+    /**
+     * @return The one thread every mixing chatroom keeps time on, started with the first of them. In nio mode it only
+     *         hands the ticks to the chatrooms' event loops
+     */
+    private synchronized ScheduledExecutorService mixerClock() {
+        if (mixerClock == null) {
+            mixerClock = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "audio-mixer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return mixerClock;
+    }
+
+    /**
+     * @return The thread for the server's short delayed tasks, ending sessions nobody resumed and rotating room keys,
+     *         started with the first of them
+     */
+    synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "server-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Runs a task once after a delay on the {@link #timer()}, unless the server is stopping
+     * @param task Task to run
+     * @param delayMillis Milliseconds to wait first
+     */
+    synchronized void schedule(Runnable task, long delayMillis) {
+        if (! timer().isShutdown()) timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param port Id of a client
+     * @return The client's connection, or null if there is none
+     */
+    ClientConnection findConnection(int port) {
+        return clientConnections.get(port);
+    }
+
+    /**
+     * Lets go of a connection a client resumed an older session on, without closing it: the session carries on
+     * over its socket under the old id, and the id and admission slot of the new connection are free again.
+     * @param connection Connection the session moved onto
+     */
+    void retire(ClientConnection connection) {
+        if (clientConnections.remove(connection.getPort(), connection)) {
+            portAllocator.release(connection.getPort());
+            admissionControl.release();
+        }
+    }
+
+    /**
+     * @return Lobby listing of every chatroom, see {@link RoomDirectory}
+     */
+    public RoomDirectory getRoomDirectory() {
+        return roomDirectory;
+    }
+
+    /**
+     * @return Pushes directory and membership changes to subscribed clients
+     */
+    public DirectoryFeed getDirectoryFeed() {
+        return directoryFeed;
+    }
+
+    /**
+     * @return The UDP media relay or null if voice only travels over TCP
+     */
+    public MediaRelay getMediaRelay() {
+        return mediaRelay;
     }
 
     /**
@@ -150,8 +775,12 @@ public class VoicechatServer {
      * @throws IOException If socket cannot be closed
      */
     public void removeConnection(int port) throws IOException {
-        clientConnections.get(port).getSocket().close();
-        clientConnections.remove(port);
+        ClientConnection connection = clientConnections.remove(port);
+        if (connection != null) {
+            connection.close();
+            portAllocator.release(port);
+            admissionControl.release();
+        }
     }
 
     // Main entry point for the server. Establishes .ENV variables and some other error handling
@@ -168,15 +797,47 @@ public class VoicechatServer {
             String HOST = env.get("HOST");
             int PORT = Integer.parseInt(env.get("SERVER_PORT"));
             int STARTING_PORT = Integer.parseInt(env.get("CONNECTION_STARTING_PORT"));
+            ServerMode MODE = ServerMode.getMode(env.get("SERVER_MODE", ""));
+            int EVENT_LOOP_THREADS = Integer.parseInt(env.get("EVENT_LOOP_THREADS",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            String MEDIA_PORT = env.get("MEDIA_PORT", "");
+            int SEND_QUEUE_CAPACITY = Integer.parseInt(env.get("SEND_QUEUE_CAPACITY", "128"));
+            OverflowPolicy SEND_QUEUE_OVERFLOW = OverflowPolicy.getPolicy(env.get("SEND_QUEUE_OVERFLOW", ""));
+            EncryptionMode ENCRYPTION = EncryptionMode.getMode(env.get("ENCRYPTION", ""));
+            String CONNECTION_PORT_RANGE = env.get("CONNECTION_PORT_RANGE", "");
+            int ACCEPT_BACKLOG = Integer.parseInt(env.get("ACCEPT_BACKLOG", "1024"));
+            int HANDSHAKE_THREADS = Integer.parseInt(env.get("HANDSHAKE_THREADS", "2"));
+            int MAX_CONNECTIONS = Integer.parseInt(env.get("MAX_CONNECTIONS", "0"));
+            int MAX_ACCEPTS_PER_SECOND = Integer.parseInt(env.get("MAX_ACCEPTS_PER_SECOND", "0"));
+            int ACTIVE_SPEAKERS = Integer.parseInt(env.get("ACTIVE_SPEAKERS", "0"));
+            String CLUSTER_NODES = env.get("CLUSTER_NODES", "");
+            String RESUMPTION_SECRET = env.get("RESUMPTION_SECRET", "");
+            int DRAIN_TIMEOUT = Integer.parseInt(env.get("DRAIN_TIMEOUT", "30"));
+            int SESSION_GRACE = Integer.parseInt(env.get("SESSION_GRACE", "10"));
 
             if (! HOST.equals("localhost") && ! HOST.contains(InetAddress.getLocalHost().getHostName())) {
                 System.out.println(TEXT_RED + "[ERROR]" + TEXT_RESET + " Host name in .env does not match server host name.");
                 System.exit(1);
             }
 
-            SIGINTHandler();
+            VoicechatServer server = new VoicechatServer(HOST, PORT, STARTING_PORT, MODE, EVENT_LOOP_THREADS,
+                    MEDIA_PORT.isEmpty() ? 0 : Integer.parseInt(MEDIA_PORT));
+            server.setSendQueue(SEND_QUEUE_CAPACITY, SEND_QUEUE_OVERFLOW);
+            server.setEncryptionMode(ENCRYPTION);
+            if (! CONNECTION_PORT_RANGE.isEmpty()) server.setConnectionPortRange(Integer.parseInt(CONNECTION_PORT_RANGE));
+            server.setAcceptPipeline(ACCEPT_BACKLOG, HANDSHAKE_THREADS, MAX_CONNECTIONS, MAX_ACCEPTS_PER_SECOND);
+            server.setActiveSpeakers(ACTIVE_SPEAKERS);
+            server.setResumptionSecret(RESUMPTION_SECRET);
+            server.setDrainTimeout(TimeUnit.SECONDS.toMillis(DRAIN_TIMEOUT));
+            server.setSessionGrace(TimeUnit.SECONDS.toMillis(SESSION_GRACE));
+            if (! CLUSTER_NODES.isEmpty()) {
+                List<String> nodes = new ArrayList<>();
+                for (String node : CLUSTER_NODES.split(","))
+                    nodes.add(node.trim());
+                server.setCluster(nodes);
+            }
 
-            VoicechatServer server = new VoicechatServer(HOST, PORT, STARTING_PORT);
+            SIGINTHandler(server);
 
             server.start();
 //            HashMap<Integer, SoundData> soundDataPackets = new HashMap<>();
@@ -242,24 +903,18 @@ public class VoicechatServer {
 
         displayInfo("SERVER HOST:\t" + this.HOST);
         displayInfo("SERVING ON PORT:\t" + this.PORT);
+        displayInfo("SERVER MODE:\t" + this.MODE);
         System.out.println();
     }
 
     /**
-     *  Custom SIGINT For MACOS and Linux
+     *  Custom SIGINT For MACOS and Linux, drains the server, see {@link #drain(long)}
      */
-    private static void SIGINTHandler() {
+    private static void SIGINTHandler(VoicechatServer server) {
         if (System.getProperty("os.name").equals("Mac OS X") ||
                 System.getProperty("os.name").equals("Linux")) {
-            Thread CUSTOM_SIGINT = new Thread( () -> {
-                clientConnections.forEach( (port, connection) -> {
-                    try {
-                        connection.getSocket().close();
-                        serverSocket.close();
-                    }
-                    catch (IOException ignored) {}
-                } );
-            });
+            // a deploy or Ctrl-C drains the server instead of dropping every call
+            Thread CUSTOM_SIGINT = new Thread(() -> server.drain(server.drainTimeoutMillis));
 
             Runtime.getRuntime().addShutdownHook(CUSTOM_SIGINT);
         }
@@ -0,0 +1,182 @@
+package edu.oswego.cs.audio;
+
+import edu.oswego.cs.Chatroom;
+import edu.oswego.cs.ClientConnection;
+import edu.oswego.cs.MediaRelay;
+import edu.oswego.cs.audio.codec.AudioCodec;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixes the speakers of one chatroom into a single stream per listener, so a listener receives one frame per 20 ms
+ * tick however many people talk. Frames are 44.1 kHz mono in the chatroom's codec, decoded on arrival and the mix
+ * encoded again for sending. Every tick the frames that arrived since the last one are summed into one int accumulator; a listener
+ * that is not speaking gets that sum, shared as one encoded frame, and a speaker gets the sum minus its own voice.
+ * The accumulator and the samples of every speaker are arrays reused across ticks, the only allocations per tick are
+ * the frames handed to the transports.
+ *
+ * The mixed stream comes from port {@link #MIX_PORT}. Every speaker's frames wait in a {@link JitterBuffer} for their
+ * tick, so two frames that arrive in one tick are both heard and a lost frame is concealed.
+ */
+public class AudioMixer {
+    public static final int SAMPLE_RATE = 44100;
+    public static final int SAMPLES_PER_FRAME = SAMPLE_RATE * SoundData.FRAME_DURATION_MS / 1000;
+    public static final int FRAME_LENGTH = SAMPLES_PER_FRAME * 2;
+    // no client is ever handed port 0, so it names the room's mix
+    public static final int MIX_PORT = 0;
+    // frames held per speaker, 160 ms, enough for the jitter of a speaker that is worth mixing
+    private static final int BUFFER_CAPACITY = 8;
+
+    private final Chatroom chatroom;
+    private final MediaRelay mediaRelay;
+    private final ConcurrentHashMap<Integer, Speaker> speakers = new ConcurrentHashMap<>();
+    private final int[] mix = new int[SAMPLES_PER_FRAME];
+    // a mix clipped to 16 bits before it is encoded, only touched by the tick
+    private final short[] clipped = new short[SAMPLES_PER_FRAME];
+    // speakers heard in the current tick, only touched by the tick
+    private Speaker[] active = new Speaker[8];
+    private int tick = 0;
+    private ScheduledFuture<?> schedule;
+
+    /**
+     * @param chatroom Chatroom whose members hear the mix
+     * @param mediaRelay Relay to send the mix to members registered on the media port, null if there is none
+     */
+    public AudioMixer(Chatroom chatroom, MediaRelay mediaRelay) {
+        this.chatroom = chatroom;
+        this.mediaRelay = mediaRelay;
+    }
+
+    /**
+     * Mixes every 20 ms until {@link #close()}. The clock only keeps time when the chatroom has a shard, the ticks run
+     * on the shard's event loop then, the thread that writes to the members anyway.
+     * @param clock Thread the 20 ms are kept on
+     * @param shard Runs the ticks in order, null to run them on the clock
+     */
+    public void start(ScheduledExecutorService clock, Executor shard) {
+        Runnable tick = () -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                // a failed tick must not cancel the schedule
+                e.printStackTrace();
+            }
+        };
+        schedule = clock.scheduleAtFixedRate(shard == null ? tick : () -> shard.execute(tick),
+                SoundData.FRAME_DURATION_MS, SoundData.FRAME_DURATION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (schedule != null) schedule.cancel(false);
+    }
+
+    /**
+     * Takes a speaker's frame for its turn. Called from whichever thread read the frame.
+     * @param port Port of the speaker
+     * @param sequenceNumber Sequence number of the frame
+     * @param timestamp Timestamp of the frame
+     * @param samples Sound data in the chatroom's codec between position and limit, decoded before this returns
+     */
+    public void submit(int port, int sequenceNumber, int timestamp, ByteBuffer samples) {
+        speakers.computeIfAbsent(port, key -> new Speaker())
+                .buffer.put(sequenceNumber, timestamp, chatroom.getCodec(), samples, System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets a member that left the chatroom
+     */
+    public void remove(int port) {
+        speakers.remove(port);
+    }
+
+    /**
+     * Mixes the frames that arrived since the last tick and sends every member its mix. Silence is not sent.
+     */
+    public void tick() {
+        int count = 0;
+        for (Speaker speaker : speakers.values()) {
+            if (speaker.buffer.poll(speaker.current) == JitterBuffer.Playout.SILENCE) continue;
+            speaker.heardIn = tick;
+            if (count == active.length) active = Arrays.copyOf(active, count * 2);
+            active[count++] = speaker;
+        }
+        int sequenceNumber = tick++;
+        if (count == 0) return;
+
+        Arrays.fill(mix, 0);
+        for (int i = 0; i < count; i++) {
+            short[] samples = active[i].current;
+            for (int s = 0; s < SAMPLES_PER_FRAME; s++)
+                mix[s] += samples[s];
+        }
+        Arrays.fill(active, 0, count, null);
+
+        int timestamp = sequenceNumber * SoundData.FRAME_DURATION_MS;
+        ByteBuffer shared = null;
+        for (ClientConnection member : chatroom.getMembers()) {
+            Speaker own = speakers.get(member.getPort());
+            ByteBuffer frame;
+            if (own != null && own.heardIn == sequenceNumber) {
+                // nobody else spoke, the speaker would only get silence back
+                if (count == 1) continue;
+                frame = frame(sequenceNumber, timestamp, own.current);
+            }
+            else {
+                if (shared == null) shared = frame(sequenceNumber, timestamp, null).asReadOnlyBuffer();
+                frame = shared.duplicate();
+            }
+            send(member, frame);
+        }
+    }
+
+    /**
+     * Encodes the mix, minus one speaker's samples if given, as a framed SOUND packet
+     */
+    private ByteBuffer frame(int sequenceNumber, int timestamp, short[] minus) {
+        for (int s = 0; s < SAMPLES_PER_FRAME; s++) {
+            int sample = minus == null ? mix[s] : mix[s] - minus[s];
+            // clip instead of wrapping around, a wrapped sample is a loud click
+            if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+            else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+            clipped[s] = (short) sample;
+        }
+        AudioCodec codec = chatroom.getCodec();
+        int length = SoundData.HEADER_LENGTH + codec.encodedLength(SAMPLES_PER_FRAME);
+        ByteBuffer frame = ByteBuffer.allocate(Framing.HEADER_LENGTH + length);
+        frame.putInt(length);
+        SoundData.encodeHeader(frame, MIX_PORT, sequenceNumber, timestamp);
+        codec.encode(clipped, SAMPLES_PER_FRAME, frame);
+        return frame.flip();
+    }
+
+    private void send(ClientConnection member, ByteBuffer frame) {
+        try {
+            if (mediaRelay != null && member.getMediaAddress() != null) {
+                frame.position(frame.position() + Framing.HEADER_LENGTH);
+                mediaRelay.send(member, frame);
+            }
+            else member.sendFrameToClient(frame);
+        } catch (IOException ignored) {
+            // a member that can not be reached only misses this frame
+        }
+    }
+
+    /**
+     * Frames of one speaker waiting for their tick, and the samples of the one being mixed
+     */
+    private static final class Speaker {
+        final JitterBuffer buffer = new JitterBuffer(BUFFER_CAPACITY);
+        // samples mixed in the tick the speaker was last heard in, only touched by the tick
+        final short[] current = new short[SAMPLES_PER_FRAME];
+        int heardIn = -1;
+    }
+}
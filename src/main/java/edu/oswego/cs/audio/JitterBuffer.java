@@ -0,0 +1,261 @@
+package edu.oswego.cs.audio;
+
+import edu.oswego.cs.audio.codec.AudioCodec;
+import edu.oswego.cs.network.packets.SoundData;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Evens out the arrival of one speaker's frames for playback. Frames are put in as they arrive, early, late or out
+ * of order, and a player polls one frame every 20 ms. Frames wait in a ring of preallocated slots, indexed by their
+ * timestamp, so a frame is decoded straight into its slot and nothing is allocated while playing.
+ *
+ * The buffer holds back as many frames as the network's jitter calls for. Jitter is measured the way RTP does
+ * (RFC 3550), from how much the time between arrivals differs from the time between timestamps. When a talkspurt
+ * starts, playback waits until the target depth is buffered. While it plays, a frame is skipped now and then if too
+ * many are queued, and when the next frame has not arrived yet playback stretches instead of skipping it.
+ *
+ * A frame that is missing when its turn comes is concealed. The last frame is repeated and faded out over
+ * {@link #FADE_FRAMES}, then there is silence. A comfort noise marker ends the talkspurt, so the gap after it is
+ * silence and not loss.
+ */
+public class JitterBuffer {
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int FADE_FRAMES = 5;
+    // playback gives up on a speaker that sent nothing for half a second without saying it went silent
+    private static final int MAX_UNDERRUNS = 25;
+    // a frame is skipped once this many more than the target depth are queued
+    private static final int SHRINK_SLACK = 2;
+    private static final int FRAME_MS = SoundData.FRAME_DURATION_MS;
+
+    public enum Playout {
+        // a frame that arrived in time was played
+        PLAYED,
+        // a missing frame was made up from the last one
+        CONCEALED,
+        // nothing to play, the samples were not written
+        SILENCE
+    }
+
+    private final Slot[] slots;
+    private final short[] last = new short[AudioMixer.SAMPLES_PER_FRAME];
+    private int lastCount = 0;
+
+    private boolean playing = false;
+    private int playoutTimestamp;
+    private int highestTimestamp;
+    private int holdTicks;
+    private int underruns;
+    private int concealedInRow;
+    private boolean talkspurtEnding = false;
+    private int talkspurtEnd;
+
+    // RFC 3550 interarrival jitter in milliseconds
+    private double jitter = 0;
+    private boolean hasTransit = false;
+    private int lastTransit;
+
+    private long received = 0;
+    private int firstSequenceNumber;
+    private int highestSequenceNumber;
+    private long played = 0;
+    private long concealed = 0;
+    private long late = 0;
+    private long skipped = 0;
+
+    public JitterBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Frames the buffer can hold, also the most it ever holds back
+     */
+    public JitterBuffer(int capacity) {
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++)
+            slots[i] = new Slot();
+    }
+
+    /**
+     * Stores a frame until its turn
+     * @param sequenceNumber Sequence number of the frame, only counted for {@link #getLost()}
+     * @param timestamp Timestamp of the frame in milliseconds, what the frame is played by
+     * @param codec Codec the sound data is in
+     * @param frame Sound data between position and limit, or a comfort noise marker. The position is not moved
+     * @param arrivalMillis Time the frame arrived, on any clock in milliseconds
+     */
+    public synchronized void put(int sequenceNumber, int timestamp, AudioCodec codec, ByteBuffer frame,
+                                 long arrivalMillis) {
+        if (frame.remaining() == SoundData.COMFORT_NOISE_LENGTH) {
+            if (playing) {
+                talkspurtEnding = true;
+                talkspurtEnd = timestamp;
+            }
+            return;
+        }
+
+        received++;
+        if (received == 1) firstSequenceNumber = highestSequenceNumber = sequenceNumber;
+        else if (sequenceNumber - highestSequenceNumber > 0) highestSequenceNumber = sequenceNumber;
+
+        int transit = (int) arrivalMillis - timestamp;
+        if (hasTransit) jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+        lastTransit = transit;
+        hasTransit = true;
+
+        if (! playing || timestamp - playoutTimestamp >= slots.length * FRAME_MS) {
+            // a new talkspurt, or one so far ahead of playback that catching up would take longer than starting over
+            start(timestamp);
+        }
+        else if (timestamp - playoutTimestamp < 0) {
+            late++;
+            return;
+        }
+
+        Slot slot = slots[index(timestamp)];
+        if (slot.filled && slot.timestamp == timestamp) return;
+        slot.count = codec.decode(frame, slot.samples);
+        slot.timestamp = timestamp;
+        slot.filled = true;
+        if (timestamp - highestTimestamp > 0) highestTimestamp = timestamp;
+        if (talkspurtEnding && timestamp - talkspurtEnd >= 0) talkspurtEnding = false;
+    }
+
+    /**
+     * Takes the next 20 ms to play, called once per frame duration
+     * @param samples Array for the samples of the frame, written unless the result is SILENCE
+     * @return What was written
+     */
+    public synchronized Playout poll(short[] samples) {
+        if (! playing) return Playout.SILENCE;
+        if (holdTicks > 0) {
+            holdTicks--;
+            return Playout.SILENCE;
+        }
+
+        // far more queued than the jitter calls for, catch up by a frame to take the delay back out
+        if ((highestTimestamp - playoutTimestamp) / FRAME_MS > getTargetDepth() + SHRINK_SLACK) {
+            slots[index(playoutTimestamp)].filled = false;
+            playoutTimestamp += FRAME_MS;
+            skipped++;
+        }
+
+        Slot slot = slots[index(playoutTimestamp)];
+        if (slot.filled && slot.timestamp == playoutTimestamp) {
+            System.arraycopy(slot.samples, 0, samples, 0, slot.count);
+            System.arraycopy(slot.samples, 0, last, 0, slot.count);
+            if (slot.count < AudioMixer.SAMPLES_PER_FRAME)
+                Arrays.fill(samples, slot.count, AudioMixer.SAMPLES_PER_FRAME, (short) 0);
+            lastCount = slot.count;
+            slot.filled = false;
+            playoutTimestamp += FRAME_MS;
+            concealedInRow = 0;
+            underruns = 0;
+            played++;
+            return Playout.PLAYED;
+        }
+
+        if (talkspurtEnding && talkspurtEnd - playoutTimestamp <= 0) {
+            playing = false;
+            return Playout.SILENCE;
+        }
+
+        concealed++;
+        if (highestTimestamp - playoutTimestamp > 0) {
+            // a later frame is here, this one is lost or too late to wait for
+            playoutTimestamp += FRAME_MS;
+        }
+        else if (++underruns > MAX_UNDERRUNS) {
+            playing = false;
+            return Playout.SILENCE;
+        }
+        // otherwise the next frame is late, playback stretches by a frame instead of skipping it
+        return conceal(samples) ? Playout.CONCEALED : Playout.SILENCE;
+    }
+
+    /**
+     * Repeats the last frame played, fading it out a little more every frame in a row that is missing
+     * @return False once it has faded out
+     */
+    private boolean conceal(short[] samples) {
+        concealedInRow++;
+        if (concealedInRow > FADE_FRAMES || lastCount == 0) return false;
+        // the gain falls linearly across the frame, a jump in gain between frames would be a click
+        double from = 1 - (double) (concealedInRow - 1) / FADE_FRAMES;
+        double to = 1 - (double) concealedInRow / FADE_FRAMES;
+        for (int s = 0; s < lastCount; s++)
+            samples[s] = (short) (last[s] * (from + (to - from) * s / lastCount));
+        if (lastCount < AudioMixer.SAMPLES_PER_FRAME)
+            Arrays.fill(samples, lastCount, AudioMixer.SAMPLES_PER_FRAME, (short) 0);
+        return true;
+    }
+
+    private void start(int timestamp) {
+        for (Slot slot : slots)
+            slot.filled = false;
+        playing = true;
+        playoutTimestamp = timestamp;
+        highestTimestamp = timestamp;
+        holdTicks = getTargetDepth() - 1;
+        underruns = 0;
+        concealedInRow = 0;
+        talkspurtEnding = false;
+    }
+
+    private int index(int timestamp) {
+        return Integer.remainderUnsigned(Integer.divideUnsigned(timestamp, FRAME_MS), slots.length);
+    }
+
+    /**
+     * @return Frames held back before playing, three times the jitter and at least one frame
+     */
+    public synchronized int getTargetDepth() {
+        int depth = (int) Math.ceil(3 * jitter / FRAME_MS);
+        return Math.max(1, Math.min(slots.length / 2, depth));
+    }
+
+    /**
+     * @return Interarrival jitter in milliseconds
+     */
+    public synchronized double getJitter() {
+        return jitter;
+    }
+
+    public synchronized long getPlayed() {
+        return played;
+    }
+
+    public synchronized long getConcealed() {
+        return concealed;
+    }
+
+    /**
+     * @return Frames the sequence numbers say were sent but never arrived, comfort noise markers included
+     */
+    public synchronized long getLost() {
+        if (received == 0) return 0;
+        return Math.max(0, (highestSequenceNumber - firstSequenceNumber + 1L) - received);
+    }
+
+    /**
+     * @return Frames that arrived after their turn and were thrown away
+     */
+    public synchronized long getLate() {
+        return late;
+    }
+
+    /**
+     * @return Frames skipped to bring the delay back down
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    private static final class Slot {
+        final short[] samples = new short[AudioMixer.SAMPLES_PER_FRAME];
+        int count;
+        int timestamp;
+        boolean filled = false;
+    }
+}
@@ -0,0 +1,110 @@
+package edu.oswego.cs.audio;
+
+import edu.oswego.cs.audio.codec.AudioCodec;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the few members of a chatroom whose frames are worth relaying. Most of a large room is silent or background
+ * noise, and every frame relayed costs one send per listener. The level of a frame is the mean absolute value of its
+ * samples, see {@link AudioCodec#level(ByteBuffer, short[])}, smoothed over the last frames of the same member. The
+ * N loudest members hold a place and everything else is dropped before it is relayed.
+ *
+ * The set changes slowly on purpose, a listener hearing voices cut in and out is worse than hearing one voice too
+ * few. A member keeps its place until it has been quiet for {@link #HOLD_MILLIS}, and a newcomer only pushes the
+ * quietest member out if it is clearly louder and that member has held its place at least as long.
+ */
+public class SpeakerSelector {
+    // a frame quieter than this on average, about -50 dBFS, is background noise and never takes a place
+    public static final int SILENCE_LEVEL = 100;
+    public static final int HOLD_MILLIS = 500;
+    private static final long HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(HOLD_MILLIS);
+
+    private final HashMap<Integer, Speaker> speakers = new HashMap<>();
+    private final Speaker[] active;
+    private int activeCount = 0;
+    // for codecs that have to be decoded to be measured
+    private final short[] scratch = new short[AudioMixer.SAMPLES_PER_FRAME];
+
+    /**
+     * @param places Number of members relayed at once
+     */
+    public SpeakerSelector(int places) {
+        this.active = new Speaker[places];
+    }
+
+    /**
+     * Called for every frame a member sends, from whichever thread read it
+     * @param port Port of the member
+     * @param samples Sound data between position and limit, the position is not moved
+     * @param codec Codec the sound data is in
+     * @return True if the frame should be relayed
+     */
+    public boolean isForwarded(int port, ByteBuffer samples, AudioCodec codec) {
+        return isForwarded(port, samples, codec, System.nanoTime());
+    }
+
+    synchronized boolean isForwarded(int port, ByteBuffer samples, AudioCodec codec, long now) {
+        Speaker speaker = speakers.computeIfAbsent(port, key -> new Speaker());
+        int level = codec.level(samples, scratch);
+        speaker.level = (speaker.level * 3 + level) / 4;
+        if (level >= SILENCE_LEVEL) speaker.lastLoud = now;
+
+        if (speaker.active) {
+            if (now - speaker.lastLoud <= HOLD_NANOS) return true;
+            deactivate(speaker);
+            return false;
+        }
+        if (level < SILENCE_LEVEL) return false;
+
+        // free the places of members that went quiet or stopped sending
+        for (int i = activeCount - 1; i >= 0; i--)
+            if (now - active[i].lastLoud > HOLD_NANOS) deactivate(active[i]);
+        if (activeCount < active.length) {
+            activate(speaker, now);
+            return true;
+        }
+
+        Speaker quietest = active[0];
+        for (int i = 1; i < activeCount; i++)
+            if (active[i].level < quietest.level) quietest = active[i];
+        // half as loud again, about 3.5 dB, so two members of about the same level do not take turns
+        if (now - quietest.since < HOLD_NANOS || speaker.level * 2 <= quietest.level * 3) return false;
+        deactivate(quietest);
+        activate(speaker, now);
+        return true;
+    }
+
+    /**
+     * Forgets a member that left the chatroom
+     */
+    public synchronized void remove(int port) {
+        Speaker speaker = speakers.remove(port);
+        if (speaker != null && speaker.active) deactivate(speaker);
+    }
+
+    private void activate(Speaker speaker, long now) {
+        speaker.active = true;
+        speaker.since = now;
+        active[activeCount++] = speaker;
+    }
+
+    private void deactivate(Speaker speaker) {
+        speaker.active = false;
+        for (int i = 0; i < activeCount; i++) {
+            if (active[i] != speaker) continue;
+            active[i] = active[--activeCount];
+            active[activeCount] = null;
+            return;
+        }
+    }
+
+    private static final class Speaker {
+        int level = 0;
+        long lastLoud;
+        long since;
+        boolean active = false;
+    }
+}
@@ -0,0 +1,82 @@
+package edu.oswego.cs.audio;
+
+/**
+ * Tells speech from silence and background noise, one 20 ms frame of 16 bit signed big-endian PCM at a time, so the
+ * capture side only sends frames worth hearing. A frame is speech if it is clearly louder than the noise floor, or
+ * somewhat louder with the many zero crossings of unvoiced sounds like s and f, which carry little energy. The noise
+ * floor follows the quietest frames, it drops at once and only creeps up, so a steady fan or hum becomes the floor
+ * within a second or two while a voice, which keeps pausing, does not.
+ *
+ * Speech keeps going for {@link #HANGOVER_FRAMES} after the last frame that looked like it, so quiet word endings and
+ * the short pauses between words are not cut off.
+ */
+public class VoiceActivityDetector {
+    public static final int HANGOVER_FRAMES = 10;
+    // mean absolute sample value nothing quieter counts as speech, about -50 dBFS
+    private static final int MIN_SPEECH_LEVEL = 100;
+    // the noise floor is never taken to be lower than this, or the first crackle of a silent line would be speech
+    private static final int MIN_NOISE_FLOOR = 20;
+    // zero crossings per sample above which a frame sounds like a fricative rather than a vowel
+    private static final double FRICATIVE_ZERO_CROSSINGS = 0.25;
+
+    private double noiseFloor = MIN_NOISE_FLOOR;
+    private int hangover = 0;
+
+    /**
+     * @param frame Buffer holding the frame
+     * @param length Number of bytes of the frame in the buffer
+     * @return True if the frame should be sent
+     */
+    public boolean isSpeech(byte[] frame, int length) {
+        int samples = length / 2;
+        if (samples == 0) return false;
+
+        long sum = 0;
+        int crossings = 0;
+        short previous = 0;
+        for (int s = 0; s < samples; s++) {
+            short sample = (short) ((frame[s * 2] << 8) | (frame[s * 2 + 1] & 0xFF));
+            sum += Math.abs(sample);
+            if ((sample ^ previous) < 0) crossings++;
+            previous = sample;
+        }
+        int level = (int) (sum / samples);
+        double zeroCrossings = (double) crossings / samples;
+
+        boolean speech = level >= MIN_SPEECH_LEVEL
+                && (level > noiseFloor * 4 || (level > noiseFloor * 3 && zeroCrossings > FRICATIVE_ZERO_CROSSINGS));
+
+        // the floor follows a quieter frame at once and a louder one slowly, slower still while it sounds like speech.
+        // Speech pauses often enough to pull the floor back down, a noise that never stops becomes the floor
+        if (level < noiseFloor) noiseFloor = Math.max(MIN_NOISE_FLOOR, level);
+        else                    noiseFloor += (level - noiseFloor) / (speech ? 128 : 32);
+
+        if (speech) {
+            hangover = HANGOVER_FRAMES;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Level of the background noise as the byte a comfort noise frame carries, see
+     *         {@link edu.oswego.cs.network.packets.SoundData#comfortNoise(int, int, int, int)}
+     */
+    public int getNoiseLevel() {
+        return noiseLevel(noiseFloor);
+    }
+
+    /**
+     * @param level Mean absolute sample value of the noise
+     * @return The level in -dBov, 0 to 127, how RFC 3389 comfort noise carries it
+     */
+    public static int noiseLevel(double level) {
+        if (level < 1) return 127;
+        double dBov = 20 * Math.log10(level / 32768);
+        return (int) Math.max(0, Math.min(127, Math.round(-dBov)));
+    }
+}
@@ -0,0 +1,76 @@
+package edu.oswego.cs.audio.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * G.711 A-law, one byte per sample like µ-law, with a little more range for quiet sounds and a little less for loud
+ * ones. Decoding is a table lookup.
+ */
+public class ALawCodec implements AudioCodec {
+    // largest 13 bit magnitude of each segment
+    private static final int[] SEGMENT_END = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+    private static final short[] DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int code = i ^ 0x55;
+            int segment = (code & 0x70) >> 4;
+            int sample = (code & 0x0F) << 4;
+            if (segment == 0) sample += 8;
+            else              sample = (sample + 0x108) << (segment - 1);
+            DECODE[i] = (short) ((code & 0x80) != 0 ? sample : -sample);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "pcma";
+    }
+
+    @Override
+    public int encodedLength(int samples) {
+        return samples;
+    }
+
+    @Override
+    public void encode(short[] samples, int count, ByteBuffer out) {
+        for (int s = 0; s < count; s++)
+            out.put(encode(samples[s]));
+    }
+
+    @Override
+    public int decode(ByteBuffer frame, short[] samples) {
+        int count = Math.min(frame.remaining(), samples.length);
+        int position = frame.position();
+        for (int s = 0; s < count; s++)
+            samples[s] = DECODE[frame.get(position + s) & 0xFF];
+        return count;
+    }
+
+    @Override
+    public int level(ByteBuffer frame, short[] scratch) {
+        int count = frame.remaining() / LEVEL_STRIDE;
+        if (count == 0) return 0;
+        int position = frame.position();
+        long sum = 0;
+        for (int s = 0; s < count; s++)
+            sum += Math.abs(DECODE[frame.get(position + s * LEVEL_STRIDE) & 0xFF]);
+        return (int) (sum / count);
+    }
+
+    static byte encode(short sample) {
+        int pcm = sample >> 3;
+        int mask;
+        if (pcm >= 0) mask = 0xD5;
+        else {
+            mask = 0x55;
+            pcm = -pcm - 1;
+        }
+        int segment = 0;
+        while (segment < SEGMENT_END.length && pcm > SEGMENT_END[segment]) segment++;
+        if (segment == SEGMENT_END.length) return (byte) (0x7F ^ mask);
+        int code = segment << 4;
+        code |= segment < 2 ? (pcm >> 1) & 0x0F : (pcm >> segment) & 0x0F;
+        return (byte) (code ^ mask);
+    }
+}
@@ -0,0 +1,55 @@
+package edu.oswego.cs.audio.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the 16 bit samples AudioCapture records into the sound data of a SOUND frame and back. Every frame is
+ * encoded on its own, so a frame that is lost or dropped never breaks the ones after it, and one instance serves any
+ * number of streams at once. The server never decodes to relay, only to mix or to measure a speaker's level.
+ */
+public interface AudioCodec {
+
+    /**
+     * @return Name the codec is offered and agreed on by in a JOIN
+     */
+    String getName();
+
+    /**
+     * @param samples Number of samples in a frame
+     * @return Bytes of sound data the frame is encoded to
+     */
+    int encodedLength(int samples);
+
+    /**
+     * @param samples Samples to encode
+     * @param count Number of samples from the start of the array
+     * @param out Buffer the sound data is put in, {@link #encodedLength(int)} bytes
+     */
+    void encode(short[] samples, int count, ByteBuffer out);
+
+    /**
+     * @param frame Sound data between position and limit, the position is not moved
+     * @param samples Array the samples are written to, a frame with more samples is cut short
+     * @return Number of samples written
+     */
+    int decode(ByteBuffer frame, short[] samples);
+
+    /**
+     * Loudness of a frame, for telling speakers from silence. Codecs whose samples can be read one by one override
+     * this to look at a few of them without decoding the frame.
+     * @param frame Sound data between position and limit, the position is not moved
+     * @param scratch Array to decode into if need be
+     * @return Mean absolute value of every fourth sample
+     */
+    default int level(ByteBuffer frame, short[] scratch) {
+        int count = decode(frame, scratch);
+        if (count < LEVEL_STRIDE) return 0;
+        long sum = 0;
+        for (int s = 0; s < count; s += LEVEL_STRIDE)
+            sum += Math.abs(scratch[s]);
+        return (int) (sum / ((count + LEVEL_STRIDE - 1) / LEVEL_STRIDE));
+    }
+
+    // every frame of every member is measured, every fourth sample is still plenty to tell speech from noise
+    int LEVEL_STRIDE = 4;
+}
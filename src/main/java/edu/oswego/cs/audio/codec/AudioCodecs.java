@@ -0,0 +1,70 @@
+package edu.oswego.cs.audio.codec;
+
+/**
+ * The codecs the server knows and the agreement on one of them. A client lists the codecs it can send and play in
+ * its JOIN, in order of preference, as a param codecs=ima-adpcm,pcmu. The first member of a chatroom picks the first
+ * of its codecs the server knows, every later member has to offer that one, so frames are relayed as they arrive and
+ * never transcoded. A client that offers nothing is taken to speak {@link #PCM}.
+ */
+public class AudioCodecs {
+    public static final AudioCodec PCM = new PcmCodec();
+    public static final AudioCodec MU_LAW = new MuLawCodec();
+    public static final AudioCodec A_LAW = new ALawCodec();
+    public static final AudioCodec IMA_ADPCM = new ImaAdpcmCodec();
+
+    private static final AudioCodec[] CODECS = {PCM, MU_LAW, A_LAW, IMA_ADPCM};
+
+    /**
+     * @param name Name of a codec, see {@link AudioCodec#getName()}
+     * @return The codec or null if the server does not know it
+     */
+    public static AudioCodec forName(String name) {
+        for (AudioCodec codec : CODECS)
+            if (codec.getName().equalsIgnoreCase(name)) return codec;
+        return null;
+    }
+
+    /**
+     * @return Names of every codec the server knows, pcm first
+     */
+    public static String[] names() {
+        String[] names = new String[CODECS.length];
+        for (int i = 0; i < CODECS.length; i++)
+            names[i] = CODECS[i].getName();
+        return names;
+    }
+
+    /**
+     * @param params Params of a JOIN
+     * @return The codec names a client offers, or null if it offers none
+     */
+    public static String[] offered(String[] params) {
+        for (String param : params)
+            if (param.startsWith("codecs=")) return param.substring(7).split(",");
+        return null;
+    }
+
+    /**
+     * @param offered Codec names in order of preference, null for a client that offered none
+     * @return The first one the server knows, or null
+     */
+    public static AudioCodec choose(String[] offered) {
+        if (offered == null) return PCM;
+        for (String name : offered) {
+            AudioCodec codec = forName(name.trim());
+            if (codec != null) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * @param offered Codec names, null for a client that offered none
+     * @return True if the codec is among the offered names
+     */
+    public static boolean isOffered(AudioCodec codec, String[] offered) {
+        if (offered == null) return codec == PCM;
+        for (String name : offered)
+            if (codec.getName().equalsIgnoreCase(name.trim())) return true;
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package edu.oswego.cs.audio.codec;
+
+import java.nio.ByteBuffer;
+
+/*
+
+  +-----------------+--------+---------+---------------------------------+
+  |                 |        |         |                                 |
+  |    1st Sample   |  Step  | Padding |   4 bit codes, 2nd sample on    |
+  |                 |  Index |         |                                 |
+  +-----------------+--------+---------+---------------------------------+
+        2 Bytes       1 Byte   1 Byte             (N - 1) / 2 Bytes
+
+  IMA ADPCM, every sample after the first as a 4 bit code for the step to it from the one before, the step size
+  adapting to how fast the signal moves. A quarter the size of PCM. The codes are packed high nibble first, padding
+  is the number of unused nibbles at the end (0 or 1). Every frame starts over from its first sample, so frames
+  decode on their own.
+
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+    public static final int HEADER_LENGTH = 4;
+
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80, 88,
+            97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658,
+            724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660,
+            4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818,
+            18500, 20350, 22385, 24623, 27086, 29794, 32767};
+
+    @Override
+    public String getName() {
+        return "ima-adpcm";
+    }
+
+    @Override
+    public int encodedLength(int samples) {
+        return HEADER_LENGTH + samples / 2;
+    }
+
+    @Override
+    public void encode(short[] samples, int count, ByteBuffer out) {
+        if (count == 0) return;
+        int predictor = samples[0];
+        // start at the step of the first change, the step adapts within a few samples either way
+        int index = 0;
+        if (count > 1) {
+            int firstStep = Math.abs(samples[1] - samples[0]);
+            while (index < STEP_TABLE.length - 1 && STEP_TABLE[index] < firstStep) index++;
+        }
+        out.putShort((short) predictor);
+        out.put((byte) index);
+        out.put((byte) ((count - 1) % 2));
+
+        int packed = 0;
+        for (int s = 1; s < count; s++) {
+            int step = STEP_TABLE[index];
+            int difference = samples[s] - predictor;
+            int code = 0;
+            if (difference < 0) {
+                code = 8;
+                difference = -difference;
+            }
+            int delta = step >> 3;
+            if (difference >= step)      { code |= 4; difference -= step; delta += step; }
+            if (difference >= step >> 1) { code |= 2; difference -= step >> 1; delta += step >> 1; }
+            if (difference >= step >> 2) { code |= 1; delta += step >> 2; }
+            // the encoder follows the decoder's prediction, not the real sample, so errors do not build up
+            predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(STEP_TABLE.length - 1, index + INDEX_TABLE[code]));
+
+            if (s % 2 == 1) packed = code << 4;
+            else            out.put((byte) (packed | code));
+        }
+        if (count % 2 == 0) out.put((byte) packed);
+    }
+
+    @Override
+    public int decode(ByteBuffer frame, short[] samples) {
+        if (frame.remaining() < HEADER_LENGTH || samples.length == 0) return 0;
+        int position = frame.position();
+        int predictor = frame.getShort(position);
+        int index = Math.max(0, Math.min(STEP_TABLE.length - 1, frame.get(position + 2)));
+        int codes = (frame.remaining() - HEADER_LENGTH) * 2 - (frame.get(position + 3) & 1);
+        int count = Math.min(1 + codes, samples.length);
+
+        samples[0] = (short) predictor;
+        for (int s = 1; s < count; s++) {
+            int packed = frame.get(position + HEADER_LENGTH + (s - 1) / 2);
+            int code = s % 2 == 1 ? (packed >> 4) & 0x0F : packed & 0x0F;
+            int step = STEP_TABLE[index];
+            int delta = step >> 3;
+            if ((code & 4) != 0) delta += step;
+            if ((code & 2) != 0) delta += step >> 1;
+            if ((code & 1) != 0) delta += step >> 2;
+            predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(STEP_TABLE.length - 1, index + INDEX_TABLE[code]));
+            samples[s] = (short) predictor;
+        }
+        return count;
+    }
+
+    private static int clamp(int sample) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+}
@@ -0,0 +1,72 @@
+package edu.oswego.cs.audio.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * G.711 µ-law, one byte per sample on a logarithmic scale, half the size of PCM at the same sample rate. Decoding is
+ * a table lookup.
+ */
+public class MuLawCodec implements AudioCodec {
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+    private static final short[] DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int code = ~i & 0xFF;
+            int exponent = (code >> 4) & 0x07;
+            int sample = (((code & 0x0F) << 3) + BIAS << exponent) - BIAS;
+            DECODE[i] = (short) ((code & 0x80) != 0 ? -sample : sample);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "pcmu";
+    }
+
+    @Override
+    public int encodedLength(int samples) {
+        return samples;
+    }
+
+    @Override
+    public void encode(short[] samples, int count, ByteBuffer out) {
+        for (int s = 0; s < count; s++)
+            out.put(encode(samples[s]));
+    }
+
+    @Override
+    public int decode(ByteBuffer frame, short[] samples) {
+        int count = Math.min(frame.remaining(), samples.length);
+        int position = frame.position();
+        for (int s = 0; s < count; s++)
+            samples[s] = DECODE[frame.get(position + s) & 0xFF];
+        return count;
+    }
+
+    @Override
+    public int level(ByteBuffer frame, short[] scratch) {
+        int count = frame.remaining() / LEVEL_STRIDE;
+        if (count == 0) return 0;
+        int position = frame.position();
+        long sum = 0;
+        for (int s = 0; s < count; s++)
+            sum += Math.abs(DECODE[frame.get(position + s * LEVEL_STRIDE) & 0xFF]);
+        return (int) (sum / count);
+    }
+
+    static byte encode(short sample) {
+        int pcm = sample;
+        int sign = 0;
+        if (pcm < 0) {
+            sign = 0x80;
+            pcm = -pcm;
+        }
+        pcm = Math.min(pcm, CLIP) + BIAS;
+        // the segment is where the highest bit is, counted from bit 7
+        int exponent = 31 - Integer.numberOfLeadingZeros(pcm) - 7;
+        int mantissa = (pcm >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+}
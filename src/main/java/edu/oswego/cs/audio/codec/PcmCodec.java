@@ -0,0 +1,46 @@
+package edu.oswego.cs.audio.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * No compression, the 16 bit signed big-endian samples as captured. 705.6 kbit/s at 44.1 kHz mono. What every client
+ * that does not offer a codec sends.
+ */
+public class PcmCodec implements AudioCodec {
+
+    @Override
+    public String getName() {
+        return "pcm";
+    }
+
+    @Override
+    public int encodedLength(int samples) {
+        return samples * 2;
+    }
+
+    @Override
+    public void encode(short[] samples, int count, ByteBuffer out) {
+        for (int s = 0; s < count; s++)
+            out.putShort(samples[s]);
+    }
+
+    @Override
+    public int decode(ByteBuffer frame, short[] samples) {
+        int count = Math.min(frame.remaining() / 2, samples.length);
+        int position = frame.position();
+        for (int s = 0; s < count; s++)
+            samples[s] = frame.getShort(position + s * 2);
+        return count;
+    }
+
+    @Override
+    public int level(ByteBuffer frame, short[] scratch) {
+        int count = frame.remaining() / 2 / LEVEL_STRIDE;
+        if (count == 0) return 0;
+        int position = frame.position();
+        long sum = 0;
+        for (int s = 0; s < count; s++)
+            sum += Math.abs(frame.getShort(position + s * 2 * LEVEL_STRIDE));
+        return (int) (sum / count);
+    }
+}
@@ -0,0 +1,75 @@
+package edu.oswego.cs.cluster;
+
+import edu.oswego.cs.RoomDirectory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One node's view of a cluster of voicechat servers. Every chatroom lives on exactly one node, picked by a
+ * {@link HashRing} over the addresses of all nodes, and a client asking another node to create or join it is told
+ * where to go with a WRONG_NODE error. The nodes share one lobby: every node keeps a {@link PeerLink} to each other
+ * node and lists the other nodes' chatrooms next to its own.
+ */
+public class Cluster {
+    private final String self;
+    private final HashRing ring;
+    private final RoomDirectory directory;
+    // opened by start, guarded by this
+    private final List<PeerLink> links = new ArrayList<>();
+
+    /**
+     * @param self Address of this node, host:port as the other nodes and clients reach it
+     * @param nodes Addresses of every node, this one included, in the same form on every node
+     * @param directory Lobby listing the other nodes' chatrooms are kept in
+     */
+    public Cluster(String self, List<String> nodes, RoomDirectory directory) {
+        if (! nodes.contains(self)) throw new IllegalArgumentException("Cluster nodes do not include this node, " + self);
+        this.self = self;
+        this.ring = new HashRing(nodes);
+        this.directory = directory;
+    }
+
+    /**
+     * Connects to every other node, each link on a thread of its own that keeps reconnecting until {@link #stop()}
+     */
+    public synchronized void start() {
+        for (String node : ring.getNodes()) {
+            if (node.equals(self)) continue;
+            PeerLink link = new PeerLink(node, this, directory);
+            links.add(link);
+            Thread thread = new Thread(link, "peer-link-" + link.getPeer());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        for (PeerLink link : links)
+            link.close();
+    }
+
+    /**
+     * @param name Name of a chatroom
+     * @return Address of the node the chatroom lives on, or null if that is this node
+     */
+    public String redirectFor(String name) {
+        String node = ring.nodeFor(name);
+        return node.equals(self) ? null : node;
+    }
+
+    /**
+     * @return Address of the node a chatroom lives on
+     */
+    public String ownerOf(String name) {
+        return ring.nodeFor(name);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+}
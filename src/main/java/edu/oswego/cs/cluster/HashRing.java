@@ -0,0 +1,62 @@
+package edu.oswego.cs.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Places chatrooms on the nodes of a cluster by consistent hashing. Every node is hashed onto a ring of 64 bit values
+ * at {@link #VIRTUAL_NODES} points, and a chatroom belongs to the node at the first point at or after the hash of its
+ * name. Every node builds the same ring from the same list, so all of them agree on where a chatroom lives without
+ * asking each other, and adding or removing a node only moves the chatrooms next to its points.
+ */
+public class HashRing {
+    // points per node, enough that every node gets close to its share of the chatrooms
+    public static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes;
+
+    /**
+     * @param nodes Addresses of the nodes, host:port
+     */
+    public HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("A cluster needs at least one node");
+        this.nodes = new ArrayList<>(nodes);
+        for (String node : nodes)
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                ring.put(hash(node + "#" + i), node);
+    }
+
+    /**
+     * @param name Name of a chatroom
+     * @return Address of the node the chatroom lives on
+     */
+    public String nodeFor(String name) {
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(name));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return First 8 bytes of the MD5 of the key, spread evenly however alike the keys are
+     */
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
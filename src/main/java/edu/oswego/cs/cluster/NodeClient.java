@@ -0,0 +1,166 @@
+package edu.oswego.cs.cluster;
+
+import edu.oswego.cs.crypto.KeyExchange;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.PacketDecoder;
+import edu.oswego.cs.network.packets.KeyExchangePacket;
+import edu.oswego.cs.network.packets.Packet;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+/**
+ * Blocking connection from one node of a cluster to another, speaking the client protocol. Connecting reads the
+ * greeting and exchanges keys unless the other node has encryption turned off. In the socket modes the other node
+ * hands out a port of its own and hangs up on the first connection, in nio mode it keeps talking on it, so a node
+ * does not need to know the other's mode.
+ */
+public class NodeClient implements Closeable {
+    private final String node;
+    private final String host;
+    private SocketChannel channel;
+    private DataInputStream in;
+    private OutputStream out;
+    private SessionCipher cipher;
+    private int id;
+
+    private NodeClient(String node) {
+        this.node = node;
+        this.host = node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /**
+     * @param node Address of the node, host:port
+     * @return A connection that has been greeted and, where the node allows it, encrypted
+     * @throws IOException If the node can not be reached or turns the connection away
+     */
+    public static NodeClient connect(String node) throws IOException {
+        NodeClient client = new NodeClient(node);
+        try {
+            client.open(Integer.parseInt(node.substring(node.lastIndexOf(':') + 1)), false);
+            client.id = client.greeting();
+            try {
+                client.exchangeKeys();
+            } catch (IOException e) {
+                client.close();
+                client.open(client.id, true);
+                client.exchangeKeys();
+            }
+            return client;
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param retry True to wait for a port handed out a moment ago, a node in a socket mode listens on it only
+     *              shortly after it announced it
+     */
+    private void open(int port, boolean retry) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                channel = SocketChannel.open(new InetSocketAddress(host, port));
+                channel.socket().setTcpNoDelay(true);
+                in = new DataInputStream(channel.socket().getInputStream());
+                out = channel.socket().getOutputStream();
+                cipher = null;
+                return;
+            } catch (ConnectException e) {
+                if (! retry || attempt == 50) throw e;
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException interrupted) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The id the node greets its clients with, a byte at a time so nothing after it is read
+     */
+    private int greeting() throws IOException {
+        InputStream in = channel.socket().getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.append((char) b);
+        try {
+            return Integer.parseInt(line.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Turned away by " + node);
+        }
+    }
+
+    private void exchangeKeys() throws IOException {
+        try {
+            KeyPair keyPair = KeyExchange.generateKeyPair();
+            send(new KeyExchangePacket(id, keyPair.getPublic().getEncoded()));
+            Packet reply = read();
+            // anything else is ENCRYPTION_DISABLED, the connection stays in plaintext
+            if (reply instanceof KeyExchangePacket)
+                cipher = KeyExchange.clientSession(keyPair, ((KeyExchangePacket) reply).getPublicKey());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void send(Packet packet) throws IOException {
+        ByteBuffer frame = Framing.frame(packet);
+        if (cipher != null) frame = cipher.seal(frame);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /**
+     * Reads exactly one packet, nothing after it is taken off the channel
+     */
+    public Packet read() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Framing.MAX_PACKET_LENGTH) throw new IOException("Bad frame length " + length);
+        byte[] packet = new byte[length];
+        in.readFully(packet);
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        // frames sealed with a room key come without an envelope, see SealedSoundData
+        if (cipher != null && ! PacketDecoder.isSealedSound(buffer)) cipher.open(buffer);
+        return Packet.decode(buffer);
+    }
+
+    /**
+     * @return Id the node handed out to this connection
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Cipher of the session, null if the node has encryption turned off
+     */
+    public SessionCipher getCipher() {
+        return cipher;
+    }
+
+    /**
+     * @return The connected channel, still in blocking mode
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,128 @@
+package edu.oswego.cs.cluster;
+
+import edu.oswego.cs.RoomDirectory;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.ParticipantData;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A node's persistent connection to one other node of its cluster. The link is an ordinary client of the peer: it
+ * exchanges keys unless the peer has encryption turned off, subscribes to the peer's lobby and lists its chatrooms,
+ * and from then on copies every change the peer pushes into this node's room directory. Only chatrooms the ring
+ * places on the peer are copied, so a node never takes back its own chatrooms from a peer that lists them.
+ *
+ * When the link drops, the peer's chatrooms are taken out of the directory and the link connects again every
+ * {@link #RETRY_MILLIS} until the peer is back.
+ */
+class PeerLink implements Runnable {
+    static final int RETRY_MILLIS = 500;
+
+    private final String peer;
+    private final Cluster cluster;
+    private final RoomDirectory directory;
+    // chatrooms copied from the peer, only touched by the link thread
+    private final Set<String> mirrored = new HashSet<>();
+    private volatile boolean running = true;
+    private volatile NodeClient client;
+
+    /**
+     * @param peer Address of the peer, host:port
+     */
+    PeerLink(String peer, Cluster cluster, RoomDirectory directory) {
+        this.peer = peer;
+        this.cluster = cluster;
+        this.directory = directory;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                client = NodeClient.connect(peer);
+                // closed while connecting
+                if (! running) return;
+                client.send(new ParticipantData(ParticipantOpcode.SUBSCRIBE, client.getId()));
+                list(null);
+                while (running)
+                    onPacket(client.read());
+            } catch (IOException e) {
+                // the peer is down or restarting
+            } finally {
+                disconnect();
+                for (String name : mirrored)
+                    directory.remove(name);
+                mirrored.clear();
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        disconnect();
+    }
+
+    String getPeer() {
+        return peer;
+    }
+
+    /**
+     * Asks for a page of the peer's lobby
+     * @param after Last chatroom of the previous page, null for the first one
+     */
+    private void list(String after) throws IOException {
+        String[] params = after == null ? new String[0] : new String[]{"after=" + after};
+        client.send(new ParticipantData(ParticipantOpcode.LIST_SERVERS, client.getId(), params));
+    }
+
+    private void onPacket(Packet packet) throws IOException {
+        if (! (packet instanceof ParticipantACK)) return;
+        ParticipantACK participantACK = (ParticipantACK) packet;
+        String[] params = participantACK.getParams();
+        if (participantACK.getParticipantOpcode() == ParticipantOpcode.LIST_SERVERS) {
+            boolean more = params.length > 1 && params[params.length - 1].equals(RoomDirectory.MORE);
+            int entries = more ? params.length - 1 : params.length;
+            for (int i = 0; i < entries; i++)
+                mirror(params[i]);
+            if (more) list(name(params[entries - 1]));
+        }
+        else if (participantACK.getParticipantOpcode() == ParticipantOpcode.UPDATE) {
+            for (String delta : params) {
+                if (delta.startsWith("room;"))         mirror(delta.substring(5));
+                else if (delta.startsWith("removed;")) forget(delta.substring(8));
+            }
+        }
+    }
+
+    /**
+     * @param entry Directory entry of a chatroom, name;size/max
+     */
+    private void mirror(String entry) {
+        String name = name(entry);
+        if (! peer.equals(cluster.ownerOf(name))) return;
+        directory.update(name, entry);
+        mirrored.add(name);
+    }
+
+    private void forget(String name) {
+        if (mirrored.remove(name)) directory.remove(name);
+    }
+
+    private static String name(String entry) {
+        return entry.substring(0, entry.lastIndexOf(';'));
+    }
+
+    private void disconnect() {
+        NodeClient client = this.client;
+        if (client != null) client.close();
+    }
+}
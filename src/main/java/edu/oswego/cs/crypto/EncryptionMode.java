@@ -0,0 +1,20 @@
+package edu.oswego.cs.crypto;
+
+/**
+ * Whether clients have to encrypt, chosen with ENCRYPTION in the .env file
+ */
+public enum EncryptionMode {
+
+    // key exchanges are refused and everything stays in plaintext
+    OFF,
+    // clients that send a KEY_EXCHANGE are encrypted from then on, the rest stay in plaintext
+    OPTIONAL,
+    // nothing but a KEY_EXCHANGE is accepted until the connection is encrypted
+    REQUIRED;
+
+    public static EncryptionMode getMode(String mode) {
+        if (mode == null || mode.isEmpty()) return OPTIONAL;
+        return EncryptionMode.valueOf(mode.trim().toUpperCase());
+    }
+
+}
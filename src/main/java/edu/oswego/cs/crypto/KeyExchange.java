@@ -0,0 +1,91 @@
+package edu.oswego.cs.crypto;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * ECDH on P-256 followed by HKDF-SHA256, giving each side of a connection one AES-128 key per direction. The info of
+ * both keys covers both public keys, so a key only works for the exchange it came out of.
+ */
+public final class KeyExchange {
+    private static final int KEY_LENGTH = 16;
+    private static final byte[] CLIENT_TO_SERVER = "voicechat client to server".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SERVER_TO_CLIENT = "voicechat server to client".getBytes(StandardCharsets.US_ASCII);
+
+    private KeyExchange() {}
+
+    /**
+     * @return A fresh key pair, its public key goes into a KEY_EXCHANGE packet with {@code getEncoded()}
+     * @throws GeneralSecurityException If the JVM has no P-256 support
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @param serverKeys Key pair the server answered with
+     * @param clientPublicKey X.509 encoded public key the client sent
+     * @return Cipher for the server's end of the connection
+     * @throws GeneralSecurityException If the client's key is not a valid P-256 key
+     */
+    public static SessionCipher serverSession(KeyPair serverKeys, byte[] clientPublicKey)
+            throws GeneralSecurityException {
+        byte[][] keys = deriveKeys(serverKeys, clientPublicKey, clientPublicKey, serverKeys.getPublic().getEncoded());
+        return new SessionCipher(keys[1], keys[0]);
+    }
+
+    /**
+     * @param clientKeys Key pair the client sent
+     * @param serverPublicKey X.509 encoded public key the server answered with
+     * @return Cipher for the client's end of the connection
+     * @throws GeneralSecurityException If the server's key is not a valid P-256 key
+     */
+    public static SessionCipher clientSession(KeyPair clientKeys, byte[] serverPublicKey)
+            throws GeneralSecurityException {
+        byte[][] keys = deriveKeys(clientKeys, serverPublicKey, clientKeys.getPublic().getEncoded(), serverPublicKey);
+        return new SessionCipher(keys[0], keys[1]);
+    }
+
+    /**
+     * @return The client to server key followed by the server to client key
+     */
+    private static byte[][] deriveKeys(KeyPair own, byte[] peerPublicKey, byte[] clientPublicKey,
+                                       byte[] serverPublicKey) throws GeneralSecurityException {
+        PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(own.getPrivate());
+        agreement.doPhase(peer, true);
+        byte[] secret = agreement.generateSecret();
+
+        // HKDF extract with an all zero salt, then one expand per direction
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+        byte[] pseudoRandomKey = hmac.doFinal(secret);
+        hmac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        return new byte[][]{
+                expand(hmac, CLIENT_TO_SERVER, clientPublicKey, serverPublicKey),
+                expand(hmac, SERVER_TO_CLIENT, clientPublicKey, serverPublicKey)};
+    }
+
+    private static byte[] expand(Mac hmac, byte[] label, byte[] clientPublicKey, byte[] serverPublicKey) {
+        // a single HKDF block covers a 16 byte key
+        hmac.update(label);
+        hmac.update(clientPublicKey);
+        hmac.update(serverPublicKey);
+        hmac.update((byte) 1);
+        byte[] key = new byte[KEY_LENGTH];
+        System.arraycopy(hmac.doFinal(), 0, key, 0, KEY_LENGTH);
+        return key;
+    }
+}
@@ -0,0 +1,162 @@
+package edu.oswego.cs.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Issues and checks the tokens a client resumes its chatroom membership with. A token names the client's session,
+ * which the server that issued it keeps for a while after the connection drops, and it carries everything else needed
+ * to put the client back: the chatroom's name and the settings to create it with again, so it still works on a server
+ * that restarted or on another node, as long as that server was given the same secret. The token is signed with
+ * HMAC-SHA256 and expires after {@link #TTL_MILLIS}.
+ */
+public final class ResumptionTokens {
+    public static final long TTL_MILLIS = 5 * 60 * 1000;
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param secret Secret shared by every server a token should work on, null or empty for a random one that only
+     *               this server knows
+     */
+    public ResumptionTokens(String secret) {
+        byte[] keyBytes;
+        if (secret == null || secret.isEmpty()) {
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        }
+        else {
+            try {
+                keyBytes = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        this.key = new SecretKeySpec(keyBytes, "HmacSHA256");
+    }
+
+    /**
+     * @param ticket Session and chatroom to resume
+     * @return A token to resume them with
+     */
+    public String issue(Ticket ticket) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(System.currentTimeMillis() + TTL_MILLIS);
+            out.writeInt(ticket.port);
+            out.writeLong(ticket.session);
+            out.writeUTF(ticket.chatroom);
+            out.writeInt(ticket.maxParticipants);
+            out.writeBoolean(ticket.mix);
+            out.writeBoolean(ticket.span);
+            out.writeUTF(ticket.codec);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(mac(payload));
+    }
+
+    /**
+     * @param token Token from {@link #issue}
+     * @return What the token resumes, or null if it is malformed, forged or expired
+     */
+    public Ticket verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot == -1) return null;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] payload = decoder.decode(token.substring(0, dot));
+            if (! MessageDigest.isEqual(mac(payload), decoder.decode(token.substring(dot + 1)))) return null;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long expires = in.readLong();
+            if (System.currentTimeMillis() > expires) return null;
+            return new Ticket(in.readInt(), in.readLong(), in.readUTF(), in.readInt(), in.readBoolean(), in.readBoolean(),
+                    in.readUTF());
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    private byte[] mac(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The session and chatroom a token resumes
+     */
+    public static final class Ticket {
+        private final int port;
+        private final long session;
+        private final String chatroom;
+        private final int maxParticipants;
+        private final boolean mix;
+        private final boolean span;
+        private final String codec;
+
+        /**
+         * @param port Id of the client's session
+         * @param session Random number of the session, so a token never fits another session with the same id
+         * @param chatroom Name of the chatroom
+         * @param maxParticipants Its maximum number of participants
+         * @param mix True if the server mixes it
+         * @param span True if it spans the nodes of a cluster
+         * @param codec Name of the codec it uses
+         */
+        public Ticket(int port, long session, String chatroom, int maxParticipants, boolean mix, boolean span,
+                      String codec) {
+            this.port = port;
+            this.session = session;
+            this.chatroom = chatroom;
+            this.maxParticipants = maxParticipants;
+            this.mix = mix;
+            this.span = span;
+            this.codec = codec;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public long getSession() {
+            return session;
+        }
+
+        public String getChatroom() {
+            return chatroom;
+        }
+
+        public int getMaxParticipants() {
+            return maxParticipants;
+        }
+
+        public boolean isMix() {
+            return mix;
+        }
+
+        public boolean isSpan() {
+            return span;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package edu.oswego.cs.crypto;
+
+import edu.oswego.cs.network.packets.SealedSoundData;
+import edu.oswego.cs.network.packets.SoundData;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * AES-GCM with the key a chatroom hands to its members, used by clients to seal sound end to end. The server only
+ * generates and hands out keys, it never holds a RoomCipher for a room and never decrypts a {@link SealedSoundData}.
+ *
+ * The nonce is src port (2 bytes), key epoch (2 bytes), sequence number and timestamp, so every member gets its own
+ * nonces as long as it never repeats a sequence number and timestamp pair under one key. The clear header of the
+ * packet is the additional authenticated data, a frame moved to another room, sender or epoch fails to open.
+ *
+ * Not thread safe, a client keeps one for sending and one for receiving.
+ */
+public class RoomCipher {
+    public static final int KEY_LENGTH = 16;
+    public static final int TAG_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int roomId;
+    private final int keyEpoch;
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[12];
+    private final ByteBuffer header = ByteBuffer.allocate(SealedSoundData.HEADER_LENGTH);
+
+    /**
+     * @param roomId Id of the chatroom the key belongs to
+     * @param keyEpoch Epoch of the key, raised by the chatroom every time it changes its key
+     * @param key AES key handed out in a ROOM_KEY participant ACK
+     */
+    public RoomCipher(int roomId, int keyEpoch, byte[] key) {
+        this.roomId = roomId;
+        this.keyEpoch = keyEpoch & 0xFFFF;
+        this.key = new SecretKeySpec(key, "AES");
+        try {
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    /**
+     * @return A fresh random room key
+     */
+    public static byte[] generateKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public int getKeyEpoch() {
+        return keyEpoch;
+    }
+
+    /**
+     * @param frame Sound to encrypt for the room
+     * @return The frame sealed with this key
+     */
+    public SealedSoundData seal(SoundData frame) {
+        byte[] sealedData = new byte[frame.getData().length + TAG_LENGTH];
+        SealedSoundData sealed = new SealedSoundData(frame.getPort(), roomId, keyEpoch,
+                frame.getSequenceNumber(), frame.getTimestamp(), sealedData);
+        try {
+            init(Cipher.ENCRYPT_MODE, sealed);
+            cipher.doFinal(frame.getData(), 0, frame.getData().length, sealedData, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return sealed;
+    }
+
+    /**
+     * @param sealed Frame sealed by another member of the room
+     * @return The sound inside it
+     * @throws ProtocolException If the frame is for another room or epoch or was tampered with
+     */
+    public SoundData open(SealedSoundData sealed) throws ProtocolException {
+        if (sealed.getRoomId() != roomId || sealed.getKeyEpoch() != keyEpoch)
+            throw new ProtocolException("Sealed sound for another room key");
+        if (sealed.getSealedData().length < TAG_LENGTH) throw new ProtocolException("Sealed sound is too short");
+        byte[] data;
+        try {
+            init(Cipher.DECRYPT_MODE, sealed);
+            data = cipher.doFinal(sealed.getSealedData());
+        } catch (AEADBadTagException e) {
+            throw new ProtocolException("Sealed sound failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return new SoundData(sealed.getPort(), sealed.getSequenceNumber(), sealed.getTimestamp(), data);
+    }
+
+    private void init(int mode, SealedSoundData sealed) throws GeneralSecurityException {
+        ByteBuffer.wrap(nonce)
+                .putShort((short) sealed.getPort())
+                .putShort((short) sealed.getKeyEpoch())
+                .putInt(sealed.getSequenceNumber())
+                .putInt(sealed.getTimestamp());
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        header.clear();
+        sealed.encodeHeader(header);
+        cipher.updateAAD(header.array(), 0, header.position());
+    }
+}
@@ -0,0 +1,219 @@
+package edu.oswego.cs.crypto;
+
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/*
+
+  +-----------------------------------+-----------------+--------------------+---------------+
+  |                 |                 |                 |                    |               |
+  |      Opcode     |   Inner Opcode  |     Counter     |  Encrypted Packet  |      Tag      |
+  |                 |                 |                 |                    |               |
+  +-----------------------------------+-----------------+--------------------+---------------+
+        2 Bytes           2 Bytes           8 Bytes             N Bytes            16 Bytes
+
+  An ENCRYPTED envelope around any other packet. Opcode, inner opcode and counter are sent in the clear and
+  authenticated with the packet. The inner opcode lets a send queue tell SOUND frames apart without the key.
+  The AES-GCM nonce is 4 bytes naming the channel (0 for the TCP connection, 1 for the UDP media port) followed by the
+  counter, so the same key never sees a nonce twice. Counters count from 0 per channel and direction; on TCP every
+  counter has to be higher than the last one, on UDP a 64 counter window lets through frames that arrive out of order.
+
+ */
+
+/**
+ * AES-GCM for one client session, one key per direction from {@link KeyExchange}. Every operation reuses a Cipher
+ * kept for it and decrypting happens in place in the receive buffer.
+ *
+ * Not thread safe. The connection seals under its send lock, so counters go out in the order frames are queued;
+ * opening happens on the one thread reading the connection, and both datagram calls on the media relay thread.
+ */
+public class SessionCipher {
+    public static final int TAG_LENGTH = 16;
+    // opcode, inner opcode and counter
+    public static final int HEADER_LENGTH = 12;
+    // bytes an envelope adds to the packet inside it
+    public static final int OVERHEAD = HEADER_LENGTH + TAG_LENGTH;
+
+    private static final int STREAM = 0;
+    private static final int DATAGRAM = 1;
+    private static final int REPLAY_WINDOW = 64;
+
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final Stage streamSeal;
+    private final Stage streamOpen;
+    // made on first use, most clients never touch the media port
+    private Stage datagramSeal;
+    private Stage datagramOpen;
+
+    private long streamSendCounter = 0;
+    private long streamReceiveNext = 0;
+    private long datagramSendCounter = 0;
+    // highest datagram counter seen so far, bit n of the window is set once counter highest - n has been seen
+    private long datagramHighest = -1;
+    private long datagramWindow = 0;
+
+    /**
+     * @param sendKey AES key for everything this side sends
+     * @param receiveKey AES key for everything the other side sends
+     */
+    public SessionCipher(byte[] sendKey, byte[] receiveKey) {
+        this.sendKey = new SecretKeySpec(sendKey, "AES");
+        this.receiveKey = new SecretKeySpec(receiveKey, "AES");
+        this.streamSeal = new Stage(Cipher.ENCRYPT_MODE, this.sendKey, STREAM);
+        this.streamOpen = new Stage(Cipher.DECRYPT_MODE, this.receiveKey, STREAM);
+    }
+
+    /**
+     * Wraps a framed packet into a framed envelope
+     * @param frame Frame from {@link Framing}, left untouched
+     * @return The framed envelope, flipped and ready to send
+     */
+    public ByteBuffer seal(ByteBuffer frame) {
+        int packetStart = frame.position() + Framing.HEADER_LENGTH;
+        int length = frame.limit() - packetStart;
+        ByteBuffer envelope = ByteBuffer.allocate(Framing.HEADER_LENGTH + OVERHEAD + length);
+        envelope.putInt(OVERHEAD + length);
+
+        ByteBuffer packet = frame.duplicate();
+        packet.position(packetStart);
+        streamSeal.seal(streamSendCounter++, packet, envelope);
+        return envelope.flip();
+    }
+
+    /**
+     * Decrypts an envelope read from the TCP connection in place
+     * @param buffer Holds the envelope from position to limit, afterwards holds the packet inside it
+     * @throws ProtocolException If the envelope was tampered with, replayed or is not an envelope at all
+     */
+    public void open(ByteBuffer buffer) throws ProtocolException {
+        long counter = counter(buffer);
+        if (counter < streamReceiveNext) throw new ProtocolException("Replayed packet");
+        streamOpen.open(counter, buffer);
+        streamReceiveNext = counter + 1;
+    }
+
+    /**
+     * Wraps a packet into an envelope for the media port
+     * @param packet Holds the packet from position to limit, left untouched
+     * @param out Buffer to write the envelope to at its position
+     */
+    public void sealDatagram(ByteBuffer packet, ByteBuffer out) {
+        if (datagramSeal == null) datagramSeal = new Stage(Cipher.ENCRYPT_MODE, sendKey, DATAGRAM);
+        datagramSeal.seal(datagramSendCounter++, packet.duplicate(), out);
+    }
+
+    /**
+     * Decrypts an envelope that arrived on the media port in place
+     * @param buffer Holds the envelope from position to limit, afterwards holds the packet inside it
+     * @throws ProtocolException If the envelope was tampered with, replayed or is not an envelope at all
+     */
+    public void openDatagram(ByteBuffer buffer) throws ProtocolException {
+        long counter = counter(buffer);
+        if (counter < 0 || isReplayed(counter)) throw new ProtocolException("Replayed datagram");
+        if (datagramOpen == null) datagramOpen = new Stage(Cipher.DECRYPT_MODE, receiveKey, DATAGRAM);
+        datagramOpen.open(counter, buffer);
+
+        // only counters of authentic datagrams move the window
+        if (counter > datagramHighest) {
+            long shift = counter - datagramHighest;
+            datagramWindow = shift >= REPLAY_WINDOW ? 0 : datagramWindow << shift;
+            datagramWindow |= 1;
+            datagramHighest = counter;
+        }
+        else datagramWindow |= 1L << (datagramHighest - counter);
+    }
+
+    private boolean isReplayed(long counter) {
+        if (counter > datagramHighest) return false;
+        long age = datagramHighest - counter;
+        return age >= REPLAY_WINDOW || (datagramWindow & (1L << age)) != 0;
+    }
+
+    private static long counter(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < OVERHEAD + 2 || buffer.getShort(buffer.position()) != PacketOpcode.ENCRYPTED.getInt())
+            throw new ProtocolException("Not an encrypted packet");
+        return buffer.getLong(buffer.position() + 4);
+    }
+
+    /**
+     * One reused Cipher and nonce for a single channel and direction
+     */
+    private static final class Stage {
+        private final Cipher cipher;
+        private final int mode;
+        private final SecretKeySpec key;
+        private final byte[] nonce = new byte[12];
+
+        Stage(int mode, SecretKeySpec key, int channel) {
+            this.mode = mode;
+            this.key = key;
+            ByteBuffer.wrap(nonce).putInt(channel);
+            try {
+                this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM is not available", e);
+            }
+        }
+
+        private void init(long counter) throws GeneralSecurityException {
+            ByteBuffer.wrap(nonce).putLong(4, counter);
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        }
+
+        /**
+         * Writes header, encrypted packet and tag to out, consuming the packet
+         */
+        void seal(long counter, ByteBuffer packet, ByteBuffer out) {
+            int headerStart = out.position();
+            out.putShort((short) PacketOpcode.ENCRYPTED.getInt());
+            out.putShort(packet.getShort(packet.position()));
+            out.putLong(counter);
+            ByteBuffer header = out.duplicate();
+            header.position(headerStart).limit(headerStart + HEADER_LENGTH);
+            try {
+                init(counter);
+                cipher.updateAAD(header);
+                cipher.doFinal(packet, out);
+            } catch (GeneralSecurityException e) {
+                // the buffers are sized by the caller and the nonce is never repeated, so this is a bug
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Decrypts the envelope at the buffer's position over itself and limits the buffer to the packet inside
+         */
+        void open(long counter, ByteBuffer buffer) throws ProtocolException {
+            int start = buffer.position();
+            int packetStart = start + HEADER_LENGTH;
+            ByteBuffer header = buffer.duplicate();
+            header.limit(packetStart);
+            ByteBuffer input = buffer.duplicate();
+            input.position(packetStart);
+            ByteBuffer output = buffer.duplicate();
+            output.position(packetStart);
+            int length;
+            try {
+                init(counter);
+                cipher.updateAAD(header);
+                length = cipher.doFinal(input, output);
+            } catch (AEADBadTagException e) {
+                throw new ProtocolException("Encrypted packet failed authentication");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            if (length < 2 || buffer.getShort(packetStart) != buffer.getShort(start + 2))
+                throw new ProtocolException("Inner opcode does not match");
+            buffer.position(packetStart).limit(packetStart + length);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package edu.oswego.cs.network;
+
+import edu.oswego.cs.network.packets.Packet;
+
+import java.nio.ByteBuffer;
+
+/*
+
+  +-----------------+-----------------------------------+
+  |                 |                 |                 |
+  |     Length      |      Opcode     |   Packet body   |
+  |                 |                 |                 |
+  +-----------------+-----------------------------------+
+        4 Bytes           2 Bytes           N Bytes
+
+  Every packet on a connection is sent as one frame. Length counts the packet only (opcode + body), not itself.
+
+ */
+public final class Framing {
+
+    public static final int HEADER_LENGTH = 4;
+    // nothing the server speaks comes close, anything bigger is a broken or hostile client
+    public static final int MAX_PACKET_LENGTH = 64 * 1024;
+
+    private Framing() {}
+
+    /**
+     * Encodes a packet straight into a frame
+     * @param packet Packet to send
+     * @return The framed packet, flipped and ready to be written to a connection
+     */
+    public static ByteBuffer frame(Packet packet) {
+        int length = packet.encodedLength();
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.putInt(length);
+        packet.encode(frame);
+        return frame.flip();
+    }
+
+    /**
+     * Prefixes already encoded bytes with a length header
+     * @param bytes Frame body
+     * @return The framed bytes, flipped and ready to be written to a connection
+     */
+    public static ByteBuffer frame(byte[] bytes) {
+        return ByteBuffer.allocate(HEADER_LENGTH + bytes.length).putInt(bytes.length).put(bytes).flip();
+    }
+
+}
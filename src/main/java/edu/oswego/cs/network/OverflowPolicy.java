@@ -0,0 +1,19 @@
+package edu.oswego.cs.network;
+
+/**
+ * What a {@link SendQueue} does when a client reads slower than it is sent to, chosen with SEND_QUEUE_OVERFLOW in the
+ * .env file
+ */
+public enum OverflowPolicy {
+
+    // throw away the oldest queued SOUND frame, late audio is worth less than current audio
+    DROP_OLDEST,
+    // close the connection of the slow client
+    DISCONNECT;
+
+    public static OverflowPolicy getPolicy(String policy) {
+        if (policy == null || policy.isEmpty()) return DROP_OLDEST;
+        return OverflowPolicy.valueOf(policy.trim().toUpperCase());
+    }
+
+}
@@ -0,0 +1,106 @@
+package edu.oswego.cs.network;
+
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+import edu.oswego.cs.network.packets.Packet;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the length prefixed frames described in {@link Framing}. A transport reads whatever the
+ * socket has into {@link #buffer()} and calls {@link #decode(TransportListener)}, which hands over every complete
+ * packet and keeps a partial frame buffered until the rest of it arrives. One receive buffer is kept per connection
+ * and only grows when a single frame does not fit in it.
+ */
+public class PacketDecoder {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private ByteBuffer buffer;
+    // once set every frame has to be an ENCRYPTED envelope, which is opened in place before decoding. SEALED_SOUND
+    // frames are the exception, they are encrypted with the room's key and only passed on, see RoomCipher
+    private SessionCipher cipher;
+
+    public PacketDecoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PacketDecoder(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * @return The receive buffer, in write mode and with room for at least one more byte
+     */
+    public ByteBuffer buffer() {
+        if (! buffer.hasRemaining()) grow(buffer.capacity() * 2);
+        return buffer;
+    }
+
+    /**
+     * Decrypts every frame decoded after this call. Called from a listener that just agreed on the keys, frames
+     * already in the buffer behind the current one are decrypted too.
+     * @param cipher Cipher of the session
+     */
+    public void setCipher(SessionCipher cipher) {
+        this.cipher = cipher;
+    }
+
+    /**
+     * Hands every complete packet in the receive buffer to the listener, in the order they arrived
+     * @param listener Listener to receive the packets
+     * @throws ProtocolException If a frame announces a length the server does not accept, or does not decrypt
+     */
+    public void decode(TransportListener listener) throws ProtocolException {
+        buffer.flip();
+        try {
+            while (buffer.remaining() >= Framing.HEADER_LENGTH) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 2 || length > Framing.MAX_PACKET_LENGTH)
+                    throw new ProtocolException("Invalid packet length " + length);
+                if (buffer.remaining() < Framing.HEADER_LENGTH + length) {
+                    // make sure the rest of this frame will fit once it arrives
+                    if (buffer.capacity() < Framing.HEADER_LENGTH + length) {
+                        buffer.compact();
+                        grow(Framing.HEADER_LENGTH + length);
+                        buffer.flip();
+                    }
+                    break;
+                }
+
+                // decode straight out of the receive buffer, limited to this one packet
+                int limit = buffer.limit();
+                int end = buffer.position() + Framing.HEADER_LENGTH + length;
+                buffer.position(buffer.position() + Framing.HEADER_LENGTH).limit(end);
+                Packet packet;
+                try {
+                    if (cipher != null && ! isSealedSound(buffer)) cipher.open(buffer);
+                    packet = Packet.decode(buffer);
+                } catch (RuntimeException e) {
+                    throw new ProtocolException("Malformed packet");
+                } finally {
+                    buffer.limit(limit).position(end);
+                }
+                if (packet != null) listener.onPacket(packet);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Sealed sound is already encrypted end to end, it goes to the rest of the room without a second envelope
+     */
+    public static boolean isSealedSound(ByteBuffer packet) {
+        return packet.remaining() >= 2 && packet.getShort(packet.position()) == PacketOpcode.SEALED_SOUND.getInt();
+    }
+
+    private void grow(int minimumCapacity) {
+        int capacity = buffer.capacity();
+        while (capacity < minimumCapacity) capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,235 @@
+package edu.oswego.cs.network;
+
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Senders only ever add to it and return, so a client
+ * that stops reading costs its own queue instead of blocking the speaker and everyone else in the room. The
+ * transport's writer drains it, always taking a frame off the queue before it starts writing it.
+ *
+ * Once full, the {@link OverflowPolicy} decides. Only SOUND frames are ever dropped, encrypted or not - a queue full
+ * of packets that must not be lost means the client is hopeless and it gets disconnected under either policy.
+ */
+public class SendQueue {
+    // most frames a writer takes for one gathering write
+    public static final int WRITE_BATCH = 16;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    // a lock rather than synchronized so a virtual thread waiting in take does not pin its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed = false;
+
+    private long droppedFrames = 0;
+    private int maxDepth = 0;
+    private long takenBytes = 0;
+
+    public SendQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a frame without ever blocking
+     * @param frame Framed packet, see {@link Framing}
+     * @return False if the client can not keep up and has to be disconnected
+     */
+    public boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (frames.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) return false;
+                if (! dropOldestSound()) {
+                    // nothing older to drop, so the new frame goes instead if it can
+                    if (! isSound(frame)) return false;
+                    droppedFrames++;
+                    return true;
+                }
+            }
+            frames.add(frame);
+            maxDepth = Math.max(maxDepth, frames.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The oldest frame, or null if there is none
+     */
+    public ByteBuffer poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes as many of the oldest frames as fit in the batch, for a single gathering write
+     * @param batch Array to fill from index 0
+     * @return Number of frames taken, 0 if there were none
+     */
+    public int poll(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < batch.length && ! frames.isEmpty())
+                batch[count++] = next();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a frame
+     * @return The oldest frame, or null once the queue is closed and empty
+     * @throws InterruptedException If the writer is interrupted while waiting
+     */
+    public ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && ! closed)
+                notEmpty.await();
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for at least one frame, then takes as many as fit in the batch
+     * @param batch Array to fill from index 0
+     * @return Number of frames taken, 0 once the queue is closed and empty
+     * @throws InterruptedException If the writer is interrupted while waiting
+     */
+    public int take(ByteBuffer[] batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && ! closed)
+                notEmpty.await();
+            return poll(batch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up a writer waiting in {@link #take()} for good
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of frames waiting to be written
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Most frames that were ever waiting at once
+     */
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of SOUND frames thrown away because the queue was full
+     */
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Bytes the writer took off the queue so far, what the client was sent or is being sent
+     */
+    public long getTakenBytes() {
+        lock.lock();
+        try {
+            return takenBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer next() {
+        ByteBuffer frame = frames.poll();
+        if (frame != null) takenBytes += frame.remaining();
+        return frame;
+    }
+
+    private boolean dropOldestSound() {
+        Iterator<ByteBuffer> iterator = frames.iterator();
+        while (iterator.hasNext()) {
+            // writers take a frame off the queue before writing it, so nothing in here is half written
+            if (isSound(iterator.next())) {
+                iterator.remove();
+                droppedFrames++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSound(ByteBuffer frame) {
+        // the opcode's second byte, right after the length header
+        int opcode = frame.position() + Framing.HEADER_LENGTH + 1;
+        if (frame.limit() <= opcode + 2) return false;
+        // an encrypted envelope names the packet inside it right after its own opcode
+        if (frame.get(opcode) == PacketOpcode.ENCRYPTED.getInt()) opcode += 2;
+        int code = frame.get(opcode);
+        return code == PacketOpcode.SOUND.getInt() || code == PacketOpcode.SEALED_SOUND.getInt();
+    }
+}
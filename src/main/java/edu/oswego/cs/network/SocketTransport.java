@@ -0,0 +1,124 @@
+package edu.oswego.cs.network;
+
+import edu.oswego.cs.crypto.SessionCipher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Original blocking transport. Opens a server socket on the port handed out by the main server, waits for the client
+ * to connect on it and then blocks a thread reading packets until the client goes away. A second thread from the
+ * same factory writes whatever is queued for the client. Runs the same on platform or virtual threads.
+ */
+public class SocketTransport implements Transport, Runnable {
+    private final int PORT;
+    private final TransportListener listener;
+    private final PacketDecoder decoder = new PacketDecoder();
+    private volatile ServerSocketChannel serverChannel;
+    private volatile SocketChannel channel;
+    private final SendQueue sendQueue;
+    private final ThreadFactory writerThreads;
+
+    /**
+     * @param sendQueue Queue for frames sent to this client
+     * @param writerThreads Factory for the thread that drains the queue once the client connects
+     */
+    public SocketTransport(int port, TransportListener listener, SendQueue sendQueue, ThreadFactory writerThreads) {
+        this.PORT = port;
+        this.listener = listener;
+        this.sendQueue = sendQueue;
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Thread runner for reading incoming TCP/IP voicechat packets from client
+     */
+    @Override
+    public void run() {
+        try {
+            // the handoff socket is only needed until the client arrives, keeping it open holds the port forever
+            serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(PORT));
+                channel = serverChannel.accept();
+            } finally {
+                serverChannel.close();
+            }
+            channel.socket().setTcpNoDelay(true);
+            writerThreads.newThread(this::write).start();
+            // ready to accept a new packet at any time - blocks until some bytes are received and hands over
+            // however many whole packets they complete
+            while (channel.read(decoder.buffer()) != -1)
+                decoder.decode(listener);
+        } catch (IOException e) {
+            if (channel != null && channel.isOpen()) e.printStackTrace();
+        } finally {
+            // the client hung up or the read failed, either way nothing more goes out on the channel
+            closeQuietly();
+            listener.onDisconnect(this);
+        }
+    }
+
+    /**
+     * Writer thread runner, blocks on the socket so the threads sending to this client never have to
+     */
+    private void write() {
+        ByteBuffer[] batch = new ByteBuffer[SendQueue.WRITE_BATCH];
+        try {
+            int count;
+            while ((count = sendQueue.take(batch)) > 0) {
+                // everything that piled up goes out in one gathering write
+                int first = 0;
+                while (first < count) {
+                    channel.write(batch, first, count - first);
+                    while (first < count && ! batch[first].hasRemaining())
+                        batch[first++] = null;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the reader notices the closed channel and reports the disconnect
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer bytes) throws IOException {
+        if (sendQueue.isClosed()) throw new IOException("Connection closed");
+        if (! sendQueue.offer(bytes)) {
+            closeQuietly();
+            throw new IOException("Client on port " + PORT + " is too slow, disconnected");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sendQueue.close();
+        if (serverChannel != null) serverChannel.close();
+        if (channel != null) channel.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void setCipher(SessionCipher cipher) {
+        decoder.setCipher(cipher);
+    }
+
+    @Override
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+}
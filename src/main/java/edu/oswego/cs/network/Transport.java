@@ -0,0 +1,42 @@
+package edu.oswego.cs.network;
+
+import edu.oswego.cs.crypto.SessionCipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The wire underneath a client connection. A transport only moves bytes - every decision about what those bytes
+ * mean is made by the {@link TransportListener} it delivers packets to.
+ */
+public interface Transport {
+
+    /**
+     * Queues bytes to be sent to the client exactly as they are - packets have to be framed with {@link Framing}
+     * first. Never blocks on the client reading them.
+     * @param bytes Bytes between the buffer's position and limit, the buffer is owned by the transport afterwards
+     * @throws IOException If the connection is closed, or the client fell so far behind that it was disconnected
+     */
+    void send(ByteBuffer bytes) throws IOException;
+
+    /**
+     * Closes the underlying socket. Safe to call more than once.
+     * @throws IOException If the socket can not be closed
+     */
+    void close() throws IOException;
+
+    boolean isOpen();
+
+    /**
+     * Decrypts everything read from the client from now on. Has to be called on the thread packets are delivered on,
+     * from the listener handling the key exchange. Sending is encrypted by the caller.
+     * @param cipher Cipher of the session
+     */
+    void setCipher(SessionCipher cipher);
+
+    /**
+     * @return The queue of frames waiting to be written, for its counters
+     */
+    SendQueue getSendQueue();
+
+}
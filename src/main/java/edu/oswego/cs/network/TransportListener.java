@@ -0,0 +1,22 @@
+package edu.oswego.cs.network;
+
+import edu.oswego.cs.network.packets.Packet;
+
+/**
+ * Receives the packets read by a {@link Transport}
+ */
+public interface TransportListener {
+
+    /**
+     * Called on the transport's reading thread for every packet parsed from the client
+     * @param packet The parsed packet, never null
+     */
+    void onPacket(Packet packet);
+
+    /**
+     * Called once when the transport has stopped reading, either because the client left or the socket failed
+     * @param transport The transport that stopped, a listener may have moved on to another one since
+     */
+    void onDisconnect(Transport transport);
+
+}
@@ -0,0 +1,97 @@
+package edu.oswego.cs.network.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that does the reads and writes for every {@link NioTransport} registered with it.
+ * Other threads never touch the selector directly - they queue work and wake the loop up. Every loop is also a
+ * shard: the members of a chatroom are all moved to the chatroom's loop, see {@link NioTransport#moveTo(EventLoop)},
+ * so a frame is read and fanned out on one thread without waking up any other.
+ */
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    // cancelled by a task of this round, the transport moved to another loop or was closed
+                    if (! key.isValid()) continue;
+                    NioTransport transport = (NioTransport) key.attachment();
+                    try {
+                        if (key.isReadable()) transport.onReadable();
+                        if (key.isValid() && key.isWritable()) transport.onWritable();
+                    } catch (RuntimeException e) {
+                        // a closed key or a malformed packet only costs that one client, never the whole loop
+                        transport.closeQuietly();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands a freshly accepted channel to this loop
+     * @param channel Accepted, non-blocking client channel
+     * @param transport Transport that will own the channel
+     */
+    public void register(SocketChannel channel, NioTransport transport) {
+        execute(() -> {
+            try {
+                transport.setKey(channel.register(selector, SelectionKey.OP_READ, transport));
+            } catch (IOException e) {
+                transport.closeQuietly();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the loop thread before the next round of reads and writes
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return True if called from this loop's own thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() throws IOException {
+        running = false;
+        selector.close();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+}
@@ -0,0 +1,152 @@
+package edu.oswego.cs.network.nio;
+
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.PacketDecoder;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.TransportListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport driven by an {@link EventLoop}. Reads and writes only ever happen on the loop thread;
+ * {@link #send(ByteBuffer)} may be called from anywhere and just queues the bytes. A send from the loop thread
+ * itself asks for the write straight away, any other thread has to queue a task and wake the loop up.
+ */
+public class NioTransport implements Transport {
+    private final SocketChannel channel;
+    // only changed on the old loop's thread, see moveTo
+    private volatile EventLoop eventLoop;
+    private final TransportListener listener;
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final SendQueue sendQueue;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile SelectionKey key;
+    // frames taken for the current gathering write, first to end are not fully written yet. Loop thread only.
+    private final ByteBuffer[] writing = new ByteBuffer[SendQueue.WRITE_BATCH];
+    private int writingFirst = 0;
+    private int writingEnd = 0;
+    private final Runnable wantWrite = this::wantWrite;
+
+    public NioTransport(SocketChannel channel, EventLoop eventLoop, TransportListener listener, SendQueue sendQueue) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.listener = listener;
+        this.sendQueue = sendQueue;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        // anything sent before registration finished is still waiting
+        if (! sendQueue.isEmpty()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void onReadable() {
+        try {
+            int read = channel.read(decoder.buffer());
+            if (read == -1) {
+                closeQuietly();
+                return;
+            }
+            if (read > 0) decoder.decode(listener);
+        } catch (IOException e) {
+            closeQuietly();
+        }
+    }
+
+    void onWritable() {
+        try {
+            for (;;) {
+                if (writingFirst == writingEnd) {
+                    writingFirst = 0;
+                    writingEnd = sendQueue.poll(writing);
+                    if (writingEnd == 0) break;
+                }
+                channel.write(writing, writingFirst, writingEnd - writingFirst);
+                while (writingFirst < writingEnd && ! writing[writingFirst].hasRemaining())
+                    writing[writingFirst++] = null;
+                // socket buffer is full, wait for the next writable event
+                if (writingFirst < writingEnd) return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // a send may have raced with clearing the write interest
+            if (! sendQueue.isEmpty()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer bytes) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        if (! sendQueue.offer(bytes)) {
+            closeQuietly();
+            throw new IOException("Client is too slow, disconnected");
+        }
+        EventLoop eventLoop = this.eventLoop;
+        if (eventLoop.inEventLoop()) wantWrite();
+        else                         eventLoop.execute(wantWrite);
+    }
+
+    private void wantWrite() {
+        // a key that is not valid was cancelled by a move, the new key asks for the write once it is registered
+        SelectionKey key = this.key;
+        if (key != null && key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Hands the channel to another loop. The move happens on the current loop's thread once the packets read so far
+     * are handled; the partly decoded packet and the frames waiting to be written move along with it.
+     * @param target Loop that reads and writes for this transport from then on
+     */
+    public void moveTo(EventLoop target) {
+        eventLoop.execute(() -> {
+            EventLoop from = eventLoop;
+            // moved again before this ran, follow it to the loop it is on now
+            if (! from.inEventLoop()) {
+                moveTo(target);
+                return;
+            }
+            if (from == target || closed.get()) return;
+            eventLoop = target;
+            key.cancel();
+            target.register(channel, this);
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (! closed.compareAndSet(false, true)) return;
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } finally {
+            listener.onDisconnect(this);
+        }
+    }
+
+    void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public boolean isOpen() {
+        return ! closed.get();
+    }
+
+    @Override
+    public void setCipher(SessionCipher cipher) {
+        decoder.setCipher(cipher);
+    }
+
+    @Override
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+}
@@ -6,7 +6,14 @@ public enum ErrorOpcode {
     CHATROOM_DNE(0),
     CHATROOM_FULL(1),
     CHATROOM_PASS_FALSE(2),
-    CHATROOM_EXISTS(3);;
+    CHATROOM_EXISTS(3),
+    ENCRYPTION_REQUIRED(4),
+    ENCRYPTION_DISABLED(5),
+    SERVER_FULL(6),
+    SERVER_BUSY(7),
+    CODEC_UNSUPPORTED(8),
+    WRONG_NODE(9),
+    TOKEN_INVALID(10);
 
     private final int opcodeInt;
 
@@ -24,6 +31,13 @@ public enum ErrorOpcode {
             case  1: return CHATROOM_FULL;
             case  2: return CHATROOM_PASS_FALSE;
             case  3: return CHATROOM_EXISTS;
+            case  4: return ENCRYPTION_REQUIRED;
+            case  5: return ENCRYPTION_DISABLED;
+            case  6: return SERVER_FULL;
+            case  7: return SERVER_BUSY;
+            case  8: return CODEC_UNSUPPORTED;
+            case  9: return WRONG_NODE;
+            case 10: return TOKEN_INVALID;
 
             default: return UNDEF;
         }
@@ -9,8 +9,10 @@ public enum PacketOpcode {
     PARTICIPANT_ACK(4),
     SOUND(5),
     DEBUG(6),
-    SRQ(7),
-    SACK(8);
+    // 7 and 8 were SRQ and SACK, the whole clip sound transfer that SOUND frames replaced
+    KEY_EXCHANGE(9),
+    ENCRYPTED(10),
+    SEALED_SOUND(11);
 
     private final int opcodeInt;
 
@@ -31,8 +33,9 @@ public enum PacketOpcode {
             case  4: return PARTICIPANT_ACK;
             case  5: return SOUND;
             case  6: return DEBUG;
-            case  7: return SRQ;
-            case  8: return SACK;
+            case  9: return KEY_EXCHANGE;
+            case 10: return ENCRYPTED;
+            case 11: return SEALED_SOUND;
             default: return UNDEF;
         }
     }
@@ -7,7 +7,13 @@ public enum ParticipantOpcode {
     OTHER_JOIN(1),
     CREATE_SERVER(2),
     LIST_SERVERS(3),
-    LEAVE(4);
+    LEAVE(4),
+    ROOM_KEY(5),
+    SUBSCRIBE(6),
+    UNSUBSCRIBE(7),
+    UPDATE(8),
+    RECONNECT(9),
+    RESUME(10);
     private final int opcodeInt;
 
     ParticipantOpcode(int opcodeInt) {
@@ -25,6 +31,12 @@ public enum ParticipantOpcode {
             case  2: return CREATE_SERVER;
             case  3: return LIST_SERVERS;
             case  4: return LEAVE;
+            case  5: return ROOM_KEY;
+            case  6: return SUBSCRIBE;
+            case  7: return UNSUBSCRIBE;
+            case  8: return UPDATE;
+            case  9: return RECONNECT;
+            case 10: return RESUME;
             default: return UNDEF;
         }
     }
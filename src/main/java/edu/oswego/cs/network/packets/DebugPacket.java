@@ -2,10 +2,7 @@ package edu.oswego.cs.network.packets;
 
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 /*
 
@@ -36,15 +33,14 @@ public class DebugPacket extends Packet {
     }
 
     @Override
-    public byte[] getBytes() {
-        List<Byte> byteList = new ArrayList<>();
-        byte[] portBytes = new BigInteger(String.valueOf(port)).toByteArray();
-
-        Collections.addAll(byteList , (byte) 0, (byte) opcode.getInt());
-        if (port > 255) byteList.addAll(Packet.arrayToList(portBytes));
-        else            Collections.addAll(byteList, (byte) 0, (byte) port);
-        byteList.addAll(Packet.arrayToList(msg.getBytes()));
+    public void encode(ByteBuffer buffer) {
+        putCode(buffer, opcode.getInt());
+        putPort(buffer, port);
+        putString(buffer, msg);
+    }
 
-        return Packet.listToArray(byteList);
+    @Override
+    public int encodedLength() {
+        return 4 + stringLength(msg);
     }
 }
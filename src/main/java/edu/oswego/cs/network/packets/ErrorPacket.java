@@ -3,10 +3,7 @@ package edu.oswego.cs.network.packets;
 import edu.oswego.cs.network.opcodes.ErrorOpcode;
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 public class ErrorPacket extends Packet {
 
@@ -33,13 +30,14 @@ public class ErrorPacket extends Packet {
     }
 
     @Override
-    public byte[] getBytes() {
-        List<Byte> byteList = new ArrayList<>();
-
-        Collections.addAll(byteList , (byte) 0, (byte) opcode.getInt());
-        Collections.addAll(byteList , (byte) 0, (byte) errorOpcode.getInt());
-        if (errorMsg != null) byteList.addAll(Packet.arrayToList(errorMsg.getBytes()));
+    public void encode(ByteBuffer buffer) {
+        putCode(buffer, opcode.getInt());
+        putCode(buffer, errorOpcode.getInt());
+        if (errorMsg != null) putString(buffer, errorMsg);
+    }
 
-        return Packet.listToArray(byteList);
+    @Override
+    public int encodedLength() {
+        return 4 + (errorMsg == null ? 0 : stringLength(errorMsg));
     }
 }
@@ -0,0 +1,49 @@
+package edu.oswego.cs.network.packets;
+
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+
+import java.nio.ByteBuffer;
+
+/*
+
+  +-----------------------------------+----------------+
+  |                 |                 |                |
+  |      Opcode     |       Port      |   Public Key   |
+  |                 |                 |                |
+  +-----------------------------------+----------------+
+        2 Bytes           2 Bytes           N Bytes
+
+  The client's half of an ECDH exchange on P-256, answered by the server's half. The key is X.509 (SubjectPublicKeyInfo)
+  DER encoded. Every packet after the server's answer is sent inside an ENCRYPTED envelope, see SessionCipher.
+
+ */
+public class KeyExchangePacket extends Packet {
+    private final int port;
+    private final byte[] publicKey;
+
+    public KeyExchangePacket(int port, byte[] publicKey) {
+        super(PacketOpcode.KEY_EXCHANGE);
+        this.port = port;
+        this.publicKey = publicKey;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        putCode(buffer, opcode.getInt());
+        putPort(buffer, port);
+        buffer.put(publicKey);
+    }
+
+    @Override
+    public int encodedLength() {
+        return 4 + publicKey.length;
+    }
+}
@@ -4,12 +4,16 @@ import edu.oswego.cs.network.opcodes.ErrorOpcode;
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 import edu.oswego.cs.network.opcodes.ParticipantOpcode;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base of every packet. Packets are encoded into and decoded from caller supplied {@link ByteBuffer}s, heap or
+ * direct, with big-endian fixed width fields:
+ *  - opcodes are 2 bytes, a zero byte followed by the opcode byte (so UNDEF stays 0x00FF on the wire)
+ *  - ports are 2 byte unsigned values
+ *  - strings are UTF-8 with no length prefix, params are each terminated by a zero byte
+ */
 public abstract class Packet {
 
     protected final PacketOpcode opcode;
@@ -18,22 +22,46 @@ public abstract class Packet {
         this.opcode = opcode;
     }
 
-    abstract public byte[] getBytes();
+    /**
+     * Writes this packet at the buffer's position
+     * @param buffer Buffer with at least {@link #encodedLength()} bytes remaining
+     */
+    abstract public void encode(ByteBuffer buffer);
+
+    /**
+     * @return Number of bytes {@link #encode(ByteBuffer)} will write
+     */
+    abstract public int encodedLength();
+
+    public byte[] getBytes() {
+        byte[] bytes = new byte[encodedLength()];
+        encode(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
 
     public static Packet parse(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
 
-        PacketOpcode opcode = PacketOpcode.getOpcode( bytes[1] );
+    /**
+     * Reads one packet from the buffer's position up to its limit, leaving the position at the limit
+     * @param buffer Buffer holding exactly one packet between position and limit
+     * @return The packet or null if the opcode is not one the server understands
+     */
+    public static Packet decode(ByteBuffer buffer) {
+        PacketOpcode opcode = PacketOpcode.getOpcode( getCode(buffer) );
         switch (opcode) {
-            case SOUND: return PacketFactory.parseSoundDataPacket(bytes);
-            case PARTICIPANT: return PacketFactory.parseParticipantDataPacket(bytes);
-            case END: return PacketFactory.parseEndPacket(bytes);
-            case ERR: return PacketFactory.parseErrorPacket(bytes);
-            case PARTICIPANT_ACK: return PacketFactory.parseParticipantACKPacket(bytes);
-            case DEBUG: return PacketFactory.parseDebugPacket(bytes);
-            case SRQ : return PacketFactory.parseSoundDataPacket(bytes);
-            case SACK: return PacketFactory.parseSoundDataPacket(bytes);
+            case SOUND: return PacketFactory.parseSoundDataPacket(buffer);
+            case SEALED_SOUND: return PacketFactory.parseSealedSoundDataPacket(buffer);
+            case PARTICIPANT: return PacketFactory.parseParticipantDataPacket(buffer);
+            case END: return PacketFactory.parseEndPacket(buffer);
+            case ERR: return PacketFactory.parseErrorPacket(buffer);
+            case PARTICIPANT_ACK: return PacketFactory.parseParticipantACKPacket(buffer);
+            case DEBUG: return PacketFactory.parseDebugPacket(buffer);
+            case KEY_EXCHANGE: return PacketFactory.parseKeyExchangePacket(buffer);
             default: ;
         }
+        buffer.position(buffer.limit());
         return null;
     }
 
@@ -41,93 +69,166 @@ public abstract class Packet {
         return opcode;
     }
 
-    protected static byte[] listToArray(List<Byte> byteList) {
-        byte[] bytes = new byte[byteList.size()];
-        for (int b = 0; b < byteList.size(); b++)
-            bytes[b] = byteList.get(b);
+    protected static void putCode(ByteBuffer buffer, int code) {
+        buffer.put((byte) 0).put((byte) code);
+    }
 
-        return bytes;
+    protected static int getCode(ByteBuffer buffer) {
+        return (byte) buffer.getShort();
     }
 
-    protected static List<Byte> arrayToList(byte[] bytes) {
-        List<Byte> byteList = new ArrayList<>();
-        for (byte b : bytes)
-            byteList.add(b);
+    protected static void putPort(ByteBuffer buffer, int port) {
+        buffer.putShort((short) port);
+    }
 
-        return byteList;
+    protected static int getPort(ByteBuffer buffer) {
+        return buffer.getShort() & 0xFFFF;
     }
 
-    private static class PacketFactory {
+    /**
+     * @return Number of bytes the string takes up in UTF-8
+     */
+    protected static int stringLength(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) length++;
+            // anything outside plain ascii is rare enough to take the slow path
+            else return string.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return length;
+    }
 
-        public static ParticipantACK parseParticipantACKPacket(byte[] bytes) {
-            int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
-            ParticipantOpcode participantOpcode = ParticipantOpcode.getOpcode( new BigInteger(new byte[]{bytes[4], bytes[5]}).intValue() );
-            String [] parameters = null;
-            if (bytes.length > 6) {
-                byte[] subArray = Arrays.copyOfRange(bytes, 6, bytes.length);
-                parameters = parseParam(subArray);
+    protected static void putString(ByteBuffer buffer, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                buffer.put(string.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
             }
-            if (parameters != null) return new ParticipantACK(participantOpcode, port, parameters);
+            buffer.put((byte) c);
+        }
+    }
+
+    protected static String getString(ByteBuffer buffer, int length) {
+        String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    protected static int paramsLength(String[] params) {
+        int length = 0;
+        for (String param : params)
+            length += stringLength(param) + 1;
+        return length;
+    }
+
+    protected static void putParams(ByteBuffer buffer, String[] params) {
+        for (String param : params) {
+            putString(buffer, param);
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static class PacketFactory {
+
+        public static ParticipantACK parseParticipantACKPacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
+            ParticipantOpcode participantOpcode = ParticipantOpcode.getOpcode( getCode(buffer) );
+            if (buffer.hasRemaining()) return new ParticipantACK(participantOpcode, port, parseParam(buffer));
             return new ParticipantACK(participantOpcode, port);
         }
 
-        public static ParticipantData parseParticipantDataPacket(byte[] bytes) {
-            int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
-            ParticipantOpcode participantOpcode = ParticipantOpcode.getOpcode( new BigInteger(new byte[]{bytes[4], bytes[5]}).intValue() );
-            String [] parameters = null;
-            if (bytes.length > 6) {
-                byte[] subArray = Arrays.copyOfRange(bytes, 6, bytes.length);
-                parameters = parseParam(subArray);
-            }
-            if (parameters != null) return new ParticipantData(participantOpcode, port, parameters);
+        public static ParticipantData parseParticipantDataPacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
+            ParticipantOpcode participantOpcode = ParticipantOpcode.getOpcode( getCode(buffer) );
+            if (buffer.hasRemaining()) return new ParticipantData(participantOpcode, port, parseParam(buffer));
             return new ParticipantData(participantOpcode, port);
         }
 
-        public static SoundPacket parseSoundDataPacket(byte[] bytes) {
-            PacketOpcode opcode = PacketOpcode.getOpcode(new BigInteger(new byte[]{bytes[0], bytes[1]}).intValue());
-            int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
+        public static SoundData parseSoundDataPacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
+            int sequenceNumber = buffer.getInt();
+            int timestamp = buffer.getInt();
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
 
-            return new SoundPacket(opcode, port);
+            return new SoundData(port, sequenceNumber, timestamp, data);
         }
 
-        public static DebugPacket parseDebugPacket(byte[] bytes) {
-            int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
-            String msg = new String(Arrays.copyOfRange(bytes, 4, bytes.length));
+        public static SealedSoundData parseSealedSoundDataPacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
+            int roomId = buffer.getInt();
+            int keyEpoch = buffer.getShort() & 0xFFFF;
+            int sequenceNumber = buffer.getInt();
+            int timestamp = buffer.getInt();
+            byte[] sealedData = new byte[buffer.remaining()];
+            buffer.get(sealedData);
+
+            return new SealedSoundData(port, roomId, keyEpoch, sequenceNumber, timestamp, sealedData);
+        }
+
+        public static DebugPacket parseDebugPacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
+            String msg = getString(buffer, buffer.remaining());
 
             return new DebugPacket(port, msg);
         }
 
-        public static EndPacket parseEndPacket(byte[] bytes) {
-            int port = new BigInteger( new byte[]{bytes[2], bytes[3]} ).intValue();
+        public static KeyExchangePacket parseKeyExchangePacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
+            byte[] publicKey = new byte[buffer.remaining()];
+            buffer.get(publicKey);
+
+            return new KeyExchangePacket(port, publicKey);
+        }
+
+        public static EndPacket parseEndPacket(ByteBuffer buffer) {
+            int port = getPort(buffer);
 
             return new EndPacket(port);
         }
 
-        public static ErrorPacket parseErrorPacket(byte[] bytes) {
-            ErrorOpcode errorOpcode = ErrorOpcode.getOpcode(new BigInteger(new byte[]{bytes[2], bytes[3]}).intValue()) ;
-            if (bytes.length > 4) {
-                String errorMsg = new String(Arrays.copyOfRange(bytes, 4, bytes.length));
+        public static ErrorPacket parseErrorPacket(ByteBuffer buffer) {
+            ErrorOpcode errorOpcode = ErrorOpcode.getOpcode( getCode(buffer) );
+            if (buffer.hasRemaining()) {
+                String errorMsg = getString(buffer, buffer.remaining());
                 return new ErrorPacket(errorOpcode, errorMsg);
             }
             return new ErrorPacket(errorOpcode);
         }
 
-        private static String[] parseParam(byte[] subArray) {
-            ArrayList<String> parameters = new ArrayList<>();
-            ArrayList<Byte> bytes = new ArrayList<>();
-            for (byte b : subArray) {
-                if (b == (byte) 0) {
-                    if (bytes.size() == 0) break;
-                    parameters.add(new String(listToArray(bytes)));
-                    bytes = new ArrayList<>();
-                    continue;
-                }
-                bytes.add(b);
+        /**
+         * Reads zero terminated params until the end of the packet or an empty param
+         */
+        private static String[] parseParam(ByteBuffer buffer) {
+            // count first so the array is the only allocation besides the strings themselves
+            int count = 0;
+            for (int i = buffer.position(), start = i; i < buffer.limit(); i++) {
+                if (buffer.get(i) != 0) continue;
+                if (i == start) break;
+                count++;
+                start = i + 1;
+            }
+
+            String[] parameters = new String[count];
+            for (int p = 0; p < count; p++) {
+                int end = buffer.position();
+                while (buffer.get(end) != 0) end++;
+                parameters[p] = getString(buffer, end - buffer.position());
+                buffer.get();
             }
-            return parameters.toArray(new String[0]);
+            buffer.position(buffer.limit());
+            return parameters;
         }
 
     }
 
 }
-
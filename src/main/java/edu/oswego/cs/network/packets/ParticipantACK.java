@@ -3,10 +3,7 @@ package edu.oswego.cs.network.packets;
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 import edu.oswego.cs.network.opcodes.ParticipantOpcode;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 /*
 
@@ -24,6 +21,8 @@ public class ParticipantACK extends Packet {
     private final ParticipantOpcode participantOpcode;
     private final int destPort;
     private String[] params = new String[]{};
+    // params already encoded, zero terminators included, sent as they are instead of params
+    private byte[] encodedParams;
 
     public ParticipantACK(ParticipantOpcode participantOpcode, int destPort) {
         super(PacketOpcode.PARTICIPANT_ACK);
@@ -38,26 +37,36 @@ public class ParticipantACK extends Packet {
         this.params = params;
     }
 
+    /**
+     * ACK whose params were encoded up front, see RoomDirectory. Only for sending, getParams stays empty
+     * @param encodedParams Zero terminated params back to back
+     */
+    public ParticipantACK(ParticipantOpcode participantOpcode, int destPort, byte[] encodedParams) {
+        super(PacketOpcode.PARTICIPANT_ACK);
+        this.participantOpcode = participantOpcode;
+        this.destPort = destPort;
+        this.encodedParams = encodedParams;
+    }
+
+    public ParticipantOpcode getParticipantOpcode() {
+        return participantOpcode;
+    }
+
     public String[] getParams() {
         return params;
     }
 
     @Override
-    public byte[] getBytes() {
-        List<Byte> byteList = new ArrayList<>();
-        byte[] destPortBytes = new BigInteger(String.valueOf(destPort)).toByteArray();
-
-        Collections.addAll( byteList, (byte) 0, (byte) opcode.getInt() );
-        if (destPort > 255) byteList.addAll(Packet.arrayToList(destPortBytes));
-        else               Collections.addAll(byteList, (byte) 0, (byte) destPort);
-
-        Collections.addAll( byteList, (byte) 0, (byte) participantOpcode.getInt() );
-
-        for (String param : params) {
-            byteList.addAll(Packet.arrayToList(param.getBytes()));
-            byteList.add( (byte) 0);
-        }
+    public void encode(ByteBuffer buffer) {
+        putCode(buffer, opcode.getInt());
+        putPort(buffer, destPort);
+        putCode(buffer, participantOpcode.getInt());
+        if (encodedParams != null) buffer.put(encodedParams);
+        else                       putParams(buffer, params);
+    }
 
-        return Packet.listToArray(byteList);
+    @Override
+    public int encodedLength() {
+        return 6 + (encodedParams != null ? encodedParams.length : paramsLength(params));
     }
 }
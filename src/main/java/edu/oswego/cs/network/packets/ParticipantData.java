@@ -3,10 +3,7 @@ package edu.oswego.cs.network.packets;
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 import edu.oswego.cs.network.opcodes.ParticipantOpcode;
 
-import java.math.BigInteger;
-import java.util.Collections;
-import java.util.List;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
 /*
 
@@ -48,20 +45,15 @@ public class ParticipantData extends DataPacket {
     }
 
     @Override
-    public byte[] getBytes() {
-        List<Byte> byteList = new ArrayList<>();
-        byte[] portBytes = new BigInteger(String.valueOf(port)).toByteArray();
-
-        Collections.addAll( byteList, (byte) 0, (byte) opcode.getInt() );
-        if (port > 255) byteList.addAll(Packet.arrayToList(portBytes));
-        else               Collections.addAll(byteList, (byte) 0, (byte) port);
-        Collections.addAll( byteList, (byte) 0, (byte) participantOpcode.getInt() );
-
-        for (String param : params) {
-            byteList.addAll(Packet.arrayToList(param.getBytes()));
-            byteList.add( (byte) 0);
-        }
+    public void encode(ByteBuffer buffer) {
+        putCode(buffer, opcode.getInt());
+        putPort(buffer, port);
+        putCode(buffer, participantOpcode.getInt());
+        putParams(buffer, params);
+    }
 
-        return Packet.listToArray(byteList);
+    @Override
+    public int encodedLength() {
+        return 6 + paramsLength(params);
     }
 }
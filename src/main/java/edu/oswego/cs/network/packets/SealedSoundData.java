@@ -0,0 +1,90 @@
+package edu.oswego.cs.network.packets;
+
+import edu.oswego.cs.network.opcodes.PacketOpcode;
+
+import java.nio.ByteBuffer;
+
+/*
+
+  +-----------------------------------+-----------------+---------+-----------------+-----------------+-------------+
+  |                 |                 |                 |   Key   |                 |                 |   Sealed    |
+  |      Opcode     |     Src Port    |     Room Id     |  Epoch  | Sequence Number |    Timestamp    | Sound Data  |
+  |                 |                 |                 |         |                 |                 |             |
+  +-----------------------------------+-----------------+---------+-----------------+-----------------+-------------+
+        2 Bytes           2 Bytes           4 Bytes       2 Bytes       4 Bytes           4 Bytes         N Bytes
+
+  A SoundData frame encrypted end to end with the key of the chatroom (see RoomCipher), so the server forwards it
+  without decrypting. Everything before the sealed data is in the clear for routing and authenticated with it.
+  Sealed frames are never wrapped in a connection's ENCRYPTED envelope.
+
+ */
+public class SealedSoundData extends DataPacket {
+    public static final int HEADER_LENGTH = 18;
+
+    private final int port;
+    private final int roomId;
+    private final int keyEpoch;
+    private final int sequenceNumber;
+    private final int timestamp;
+    private final byte[] sealedData;
+
+    public SealedSoundData(int port, int roomId, int keyEpoch, int sequenceNumber, int timestamp, byte[] sealedData) {
+        super(PacketOpcode.SEALED_SOUND);
+        this.port = port;
+        this.roomId = roomId;
+        this.keyEpoch = keyEpoch;
+        this.sequenceNumber = sequenceNumber;
+        this.timestamp = timestamp;
+        this.sealedData = sealedData;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public int getKeyEpoch() {
+        return keyEpoch;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return Encrypted sound data followed by the tag
+     */
+    public byte[] getSealedData() {
+        return sealedData;
+    }
+
+    /**
+     * Writes the clear header, the part of the packet that is authenticated but not encrypted
+     */
+    public void encodeHeader(ByteBuffer buffer) {
+        putCode(buffer, opcode.getInt());
+        putPort(buffer, port);
+        buffer.putInt(roomId);
+        buffer.putShort((short) keyEpoch);
+        buffer.putInt(sequenceNumber);
+        buffer.putInt(timestamp);
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        encodeHeader(buffer);
+        buffer.put(sealedData);
+    }
+
+    @Override
+    public int encodedLength() {
+        return HEADER_LENGTH + sealedData.length;
+    }
+}
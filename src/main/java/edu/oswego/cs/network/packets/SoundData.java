@@ -2,22 +2,93 @@ package edu.oswego.cs.network.packets;
 
 import edu.oswego.cs.network.opcodes.PacketOpcode;
 
-import java.io.Serializable;
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
 
+/*
 
-public class SoundData  implements Serializable {
+  +-----------------------------------+-----------------------------------+----------------+
+  |                 |                 |                 |                 |                |
+  |      Opcode     |     Src Port    | Sequence Number |    Timestamp    |   Sound Data   |
+  |                 |                 |                 |                 |                |
+  +-----------------------------------+-----------------------------------+----------------+
+        2 Bytes           2 Bytes           4 Bytes           4 Bytes           N Bytes
 
+  One frame of a speaker's voice stream. Sequence numbers count frames sent from the start of the stream, the
+  timestamp is the capture time in milliseconds since the start of the stream. Both are unsigned and wrap around.
+
+  A frame with a single byte of sound data is a comfort noise marker (RFC 3389): the speaker went silent and sends
+  nothing more until it speaks again, the byte is the level of its background noise in -dBov for the listener to
+  play in the gap. The next frame's timestamp jumps over the silence.
+
+ */
+public class SoundData extends DataPacket {
+
+    // every frame carries this much audio
+    public static final int FRAME_DURATION_MS = 20;
+    // opcode, src port, sequence number and timestamp
+    public static final int HEADER_LENGTH = 12;
+    // sound data of a comfort noise marker, the noise level
+    public static final int COMFORT_NOISE_LENGTH = 1;
+
+    private final int port;
+    private final int sequenceNumber;
+    private final int timestamp;
     private final byte[] data;
 
-    public SoundData(byte[] data) {
+    public SoundData(int port, int sequenceNumber, int timestamp, byte[] data) {
+        super(PacketOpcode.SOUND);
+        this.port = port;
+        this.sequenceNumber = sequenceNumber;
+        this.timestamp = timestamp;
         this.data = data;
     }
 
+    /**
+     * @param noiseLevel Level of the speaker's background noise in -dBov, 0 to 127
+     * @return A marker telling listeners the speaker went silent
+     */
+    public static SoundData comfortNoise(int port, int sequenceNumber, int timestamp, int noiseLevel) {
+        return new SoundData(port, sequenceNumber, timestamp, new byte[]{(byte) noiseLevel});
+    }
+
+    public boolean isComfortNoise() {
+        return data.length == COMFORT_NOISE_LENGTH;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
     public byte[] getData() {
         return data;
     }
+
+    /**
+     * Writes everything but the sound data, for frames whose samples are written straight into the buffer
+     */
+    public static void encodeHeader(ByteBuffer buffer, int port, int sequenceNumber, int timestamp) {
+        putCode(buffer, PacketOpcode.SOUND.getInt());
+        putPort(buffer, port);
+        buffer.putInt(sequenceNumber);
+        buffer.putInt(timestamp);
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        encodeHeader(buffer, port, sequenceNumber, timestamp);
+        buffer.put(data);
+    }
+
+    @Override
+    public int encodedLength() {
+        return HEADER_LENGTH + data.length;
+    }
 }
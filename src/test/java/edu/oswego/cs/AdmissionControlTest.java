@@ -0,0 +1,32 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import org.junit.Test;
+
+public class AdmissionControlTest
+{
+    @Test
+    public void turnsClientsAwayPastTheConnectionLimit()
+    {
+        AdmissionControl admission = new AdmissionControl(2, 0);
+        assertNull(admission.admit());
+        assertNull(admission.admit());
+        assertEquals(ErrorOpcode.SERVER_FULL, admission.admit());
+
+        admission.release();
+        assertNull(admission.admit());
+        assertEquals(2, admission.getConnections());
+    }
+
+    @Test
+    public void turnsClientsAwayPastTheAcceptRate()
+    {
+        AdmissionControl admission = new AdmissionControl(0, 5);
+        for (int i = 0; i < 5; i++)
+            assertNull(admission.admit());
+        assertEquals(ErrorOpcode.SERVER_BUSY, admission.admit());
+    }
+}
@@ -0,0 +1,121 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ParticipantData;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChatroomTest
+{
+    @Test
+    public void onlyOneCreateOfANameSucceeds()
+    {
+        VoicechatServer server = new VoicechatServer("localhost", 0, 0);
+        Chatroom chatroom = server.createChatroom("room", 4);
+
+        assertNotNull(chatroom);
+        assertNull(server.createChatroom("room", 8));
+        assertSame(chatroom, server.findChatroomByName("room"));
+        assertNull(server.findChatroomByName("other"));
+    }
+
+    @Test
+    public void aClientThatHungUpIsNotAddedByAJoinFinishedLater()
+    {
+        VoicechatServer server = new VoicechatServer("localhost", 0, 0);
+        Chatroom chatroom = server.createChatroom("room", 4);
+        ClientConnection client = new ClientConnection(5000, server);
+
+        // it hangs up while its join waits for the edge of a spanning chatroom to open
+        client.onDisconnect(null);
+        client.completeJoin(chatroom, new ParticipantData(ParticipantOpcode.JOIN, 5000, new String[]{"room"}));
+        assertEquals(0, chatroom.getChatroomSize());
+        assertNull(client.getChatroom());
+    }
+
+    @Test
+    public void concurrentJoinsNeverOverfillTheRoom() throws InterruptedException
+    {
+        Chatroom chatroom = new Chatroom("room", 10);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger joined = new AtomicInteger();
+        Thread[] threads = new Thread[50];
+        for (int i = 0; i < threads.length; i++) {
+            int port = 5000 + i;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (chatroom.addClientConnection(port, new ClientConnection(port, null))) joined.incrementAndGet();
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(10, joined.get());
+        assertEquals(10, chatroom.getChatroomSize());
+    }
+
+    @Test
+    public void aBurstOfJoinsRotatesTheRoomKeyOnce() throws InterruptedException
+    {
+        ScheduledExecutorService keyClock = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Chatroom chatroom = new Chatroom("room", 50);
+            chatroom.setKeyClock(keyClock);
+            for (int port = 5000; port < 5050; port++)
+                chatroom.addClientConnection(port, new ClientConnection(port, null));
+            assertEquals(0, chatroom.getKeyEpoch());
+
+            Thread.sleep(Chatroom.KEY_ROTATION_DELAY_MS * 3);
+            assertEquals(1, chatroom.getKeyEpoch());
+        } finally {
+            keyClock.shutdownNow();
+        }
+    }
+
+    @Test
+    public void onlyTheFirstComfortNoiseOfASilenceIsRelayed()
+    {
+        Chatroom chatroom = new Chatroom("room", 10);
+        ClientConnection speaker = new ClientConnection(5000, null);
+        chatroom.addClientConnection(5000, speaker);
+        ByteBuffer comfortNoise = ByteBuffer.wrap(new byte[SoundData.COMFORT_NOISE_LENGTH]);
+
+        assertTrue(chatroom.isForwarded(speaker, comfortNoise));
+        assertFalse(chatroom.isForwarded(speaker, comfortNoise));
+        assertTrue(chatroom.isForwarded(speaker, ByteBuffer.wrap(new byte[1764])));
+        assertTrue(chatroom.isForwarded(speaker, comfortNoise));
+    }
+
+    @Test
+    public void theFirstMemberPicksTheCodec()
+    {
+        Chatroom chatroom = new Chatroom("room", 10);
+
+        assertSame(AudioCodecs.IMA_ADPCM, chatroom.negotiateCodec(new String[]{"opus", "ima-adpcm", "pcmu"}));
+        chatroom.addClientConnection(5000, new ClientConnection(5000, null));
+        assertSame(AudioCodecs.IMA_ADPCM, chatroom.negotiateCodec(new String[]{"pcmu", "ima-adpcm"}));
+        assertNull(chatroom.negotiateCodec(new String[]{"pcmu"}));
+        // a client that offers nothing only speaks pcm
+        assertNull(chatroom.negotiateCodec(null));
+    }
+}
@@ -0,0 +1,119 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DirectoryFeedTest
+{
+    private final DirectoryFeed feed = new DirectoryFeed();
+    private final RoomDirectory directory = new RoomDirectory();
+
+    public DirectoryFeedTest()
+    {
+        directory.setFeed(feed);
+    }
+
+    @Test
+    public void aBurstOfJoinsIsOneUpdatePerSubscriber()
+    {
+        Chatroom chatroom = room("room");
+        RecordingTransport lobby = subscriber(6000);
+        RecordingTransport watcher = subscriber(6001);
+        feed.subscribeLobby(lobby.connection);
+        feed.subscribeRoom("room", watcher.connection);
+
+        for (int port = 5000; port < 5020; port++)
+            chatroom.addClientConnection(port, new ClientConnection(port, null));
+        feed.flush();
+
+        assertEquals(1, lobby.packets.size());
+        assertArrayEquals(new String[]{"room;room;20/50"}, lobby.params(0));
+        assertEquals(1, watcher.packets.size());
+        assertEquals(20, watcher.params(0).length);
+        assertEquals("joined;room;5000", watcher.params(0)[0]);
+    }
+
+    @Test
+    public void aJoinAndLeaveInOneTickCancelOut()
+    {
+        Chatroom chatroom = room("room");
+        RecordingTransport watcher = subscriber(6001);
+        feed.subscribeRoom("room", watcher.connection);
+
+        chatroom.addClientConnection(5000, new ClientConnection(5000, null));
+        chatroom.addClientConnection(5001, new ClientConnection(5001, null));
+        chatroom.removeClientConnection(5000);
+        feed.flush();
+        feed.flush();
+
+        assertEquals(1, watcher.packets.size());
+        assertArrayEquals(new String[]{"joined;room;5001"}, watcher.params(0));
+    }
+
+    private Chatroom room(String name)
+    {
+        Chatroom chatroom = new Chatroom(name, 50, directory);
+        chatroom.publish();
+        return chatroom;
+    }
+
+    private RecordingTransport subscriber(int port)
+    {
+        RecordingTransport transport = new RecordingTransport(new ClientConnection(port, null));
+        transport.connection.attach(transport);
+        return transport;
+    }
+
+    private static class RecordingTransport implements Transport
+    {
+        final ClientConnection connection;
+        final List<Packet> packets = new ArrayList<>();
+
+        RecordingTransport(ClientConnection connection)
+        {
+            this.connection = connection;
+        }
+
+        String[] params(int index)
+        {
+            return ((ParticipantACK) packets.get(index)).getParams();
+        }
+
+        @Override
+        public void send(ByteBuffer bytes)
+        {
+            bytes.position(bytes.position() + Framing.HEADER_LENGTH);
+            packets.add(Packet.decode(bytes));
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void setCipher(SessionCipher cipher) {}
+
+        @Override
+        public SendQueue getSendQueue()
+        {
+            return null;
+        }
+    }
+}
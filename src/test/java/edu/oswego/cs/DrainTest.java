@@ -0,0 +1,134 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.crypto.ResumptionTokens;
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ErrorPacket;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.ParticipantData;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drains one server of two sharing a resumption secret, in this JVM on loopback
+ */
+public class DrainTest
+{
+    private final List<VoicechatServer> servers = new ArrayList<>();
+    private final List<Integer> ports = new ArrayList<>();
+    private final List<LoopbackClient> clients = new ArrayList<>();
+    private ServerMode mode;
+
+    /**
+     * Starts both servers. In the socket modes each needs ports of its own for its clients.
+     */
+    private void start(ServerMode mode) throws IOException
+    {
+        this.mode = mode;
+        for (int i = 0; i < 2; i++) {
+            try (ServerSocket free = new ServerSocket(0)) {
+                ports.add(free.getLocalPort());
+            }
+            VoicechatServer server = new VoicechatServer("localhost", ports.get(i), 44000 + i * 1000, mode, 1, 0);
+            server.setResumptionSecret("secret");
+            servers.add(server);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException stopped) {
+                    // the server socket was closed by stop
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @After
+    public void stop() throws IOException
+    {
+        for (LoopbackClient client : clients)
+            client.close();
+        for (VoicechatServer server : servers)
+            server.stop();
+    }
+
+    @Test
+    public void aMemberResumesItsChatroomOnAnotherServerAndTheDrainEnds() throws Exception
+    {
+        start(ServerMode.NIO);
+        resumesOnAnotherServer();
+    }
+
+    @Test
+    public void aSocketModeMemberResumesItsChatroomOnAnotherServerAndTheDrainEnds() throws Exception
+    {
+        start(ServerMode.SOCKET);
+        resumesOnAnotherServer();
+    }
+
+    private void resumesOnAnotherServer() throws Exception
+    {
+        LoopbackClient client = connect(ports.get(0));
+        client.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, client.getId(), new String[]{"room", "4"}));
+        client.send(new ParticipantData(ParticipantOpcode.JOIN, client.getId(),
+                new String[]{"room", "codecs=pcmu"}));
+        assertEquals(ParticipantOpcode.JOIN, ((ParticipantACK) client.read()).getParticipantOpcode());
+
+        Thread drain = new Thread(() -> servers.get(0).drain(10000));
+        drain.start();
+        ParticipantACK reconnect = (ParticipantACK) client.read();
+        assertEquals(ParticipantOpcode.RECONNECT, reconnect.getParticipantOpcode());
+        String token = LoopbackClient.param(reconnect, "token=");
+        assertNotNull(token);
+        assertEquals(String.valueOf(VoicechatServer.RECONNECT_DELAY_MILLIS),
+                LoopbackClient.param(reconnect, "delay="));
+
+        // the chatroom is created again on the other server with the settings it had
+        LoopbackClient resumed = connect(ports.get(1));
+        resumed.send(new ParticipantData(ParticipantOpcode.RESUME, resumed.getId(), new String[]{token}));
+        ParticipantACK join = (ParticipantACK) resumed.read();
+        assertEquals(ParticipantOpcode.JOIN, join.getParticipantOpcode());
+        assertEquals("pcmu", LoopbackClient.param(join, "codec="));
+        assertEquals(4, servers.get(1).findChatroomByName("room").getMaxParticipants());
+
+        // the drain is over as soon as the old connection is gone, well before its timeout
+        client.close();
+        drain.join(5000);
+        assertFalse(drain.isAlive());
+        assertTrue(servers.get(0).isDraining());
+    }
+
+    @Test
+    public void aTokenThatWasTamperedWithIsRefused() throws Exception
+    {
+        start(ServerMode.NIO);
+        LoopbackClient client = connect(ports.get(0));
+        client.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, client.getId(), new String[]{"room", "4"}));
+        client.send(new ParticipantData(ParticipantOpcode.JOIN, client.getId(), new String[]{"room"}));
+        client.read();
+        client.send(new ParticipantData(ParticipantOpcode.LEAVE, client.getId()));
+        String token = servers.get(0).getResumptionTokens()
+                .issue(new ResumptionTokens.Ticket(0, 0, "other", 100, false, false, "pcm"));
+
+        client.send(new ParticipantData(ParticipantOpcode.RESUME, client.getId(), new String[]{"x" + token}));
+        assertEquals(ErrorOpcode.TOKEN_INVALID, ((ErrorPacket) client.read()).getErrorOpcode());
+    }
+
+    private LoopbackClient connect(int port) throws Exception
+    {
+        LoopbackClient client = LoopbackClient.connect(port, mode);
+        clients.add(client);
+        return client;
+    }
+}
@@ -0,0 +1,127 @@
+package edu.oswego.cs;
+
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Plaintext client of a server running in the same JVM, for the tests that talk to a server over loopback. Unlike
+ * {@link edu.oswego.cs.cluster.NodeClient} it never exchanges keys, so a test sees exactly what the server sends.
+ */
+public class LoopbackClient implements Closeable
+{
+    private final Socket socket;
+    private final DataInputStream in;
+    private final int id;
+
+    private LoopbackClient(Socket socket, int id) throws IOException
+    {
+        this.socket = socket;
+        this.in = new DataInputStream(socket.getInputStream());
+        this.id = id;
+    }
+
+    /**
+     * Connects and reads the greeting. In the socket modes the server hangs up after it and the client goes on on
+     * the port it was given.
+     * @param port Server port, the server may still be starting
+     * @param mode Mode the server runs in
+     */
+    public static LoopbackClient connect(int port, ServerMode mode) throws Exception
+    {
+        Socket socket = open(port);
+        int id = greeting(socket);
+        if (mode != ServerMode.NIO) {
+            socket.close();
+            socket = open(id);
+        }
+        return new LoopbackClient(socket, id);
+    }
+
+    private static Socket open(int port) throws Exception
+    {
+        for (int attempt = 0;; attempt++) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setSoTimeout(10000);
+                return socket;
+            } catch (ConnectException e) {
+                // the server or the client's own port is still being opened
+                if (attempt == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * @return The id the server greets with, read a byte at a time so nothing after it is taken
+     */
+    private static int greeting(Socket socket) throws IOException
+    {
+        InputStream greeting = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = greeting.read()) != -1 && b != '\n')
+            line.append((char) b);
+        return Integer.parseInt(line.toString().trim());
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public void send(Packet packet) throws IOException
+    {
+        ByteBuffer frame = Framing.frame(packet);
+        socket.getOutputStream().write(frame.array(), 0, frame.limit());
+    }
+
+    public Packet read() throws IOException
+    {
+        byte[] packet = new byte[in.readInt()];
+        in.readFully(packet);
+        return Packet.decode(ByteBuffer.wrap(packet));
+    }
+
+    /**
+     * Skips whatever else the server sends until the ACK of a request
+     */
+    public ParticipantACK readAck(ParticipantOpcode participantOpcode) throws IOException
+    {
+        while (true) {
+            Packet packet = read();
+            if (packet instanceof ParticipantACK
+                    && ((ParticipantACK) packet).getParticipantOpcode() == participantOpcode)
+                return (ParticipantACK) packet;
+        }
+    }
+
+    /**
+     * @return Value of a key=value param of an ACK, or null if it has none
+     */
+    public static String param(ParticipantACK participantACK, String key)
+    {
+        for (String param : participantACK.getParams())
+            if (param.startsWith(key)) return param.substring(key.length());
+        return null;
+    }
+
+    /**
+     * Hangs up
+     */
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
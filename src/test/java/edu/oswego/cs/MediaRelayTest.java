@@ -0,0 +1,160 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import edu.oswego.cs.crypto.KeyExchange;
+import edu.oswego.cs.crypto.RoomCipher;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.packets.DebugPacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SealedSoundData;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+public class MediaRelayTest
+{
+    private MediaRelay relay;
+    private final Chatroom chatroom = new Chatroom("room", 3);
+    private final ClientConnection speaker = member(5000);
+    private final ClientConnection listener = member(5001);
+    private DatagramSocket speakerSocket;
+    private DatagramSocket listenerSocket;
+
+    @Before
+    public void start() throws IOException
+    {
+        relay = new MediaRelay(0);
+        new Thread(relay, "media-relay").start();
+        speakerSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        listenerSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        listenerSocket.setSoTimeout(5000);
+    }
+
+    @After
+    public void stop() throws IOException
+    {
+        relay.close();
+        speakerSocket.close();
+        listenerSocket.close();
+    }
+
+    @Test
+    public void forwardsFramesWithoutTheToken() throws IOException
+    {
+        long speakerToken = relay.openSession(speaker);
+        send(listenerSocket, relay.openSession(listener), null);
+
+        SoundData frame = new SoundData(5000, 1, 20, new byte[]{1, 2, 3});
+        send(speakerSocket, speakerToken, frame);
+
+        assertArrayEquals(frame.getBytes(), receive());
+    }
+
+    @Test
+    public void dropsFramesWithAWrongToken() throws IOException
+    {
+        long speakerToken = relay.openSession(speaker);
+        send(listenerSocket, relay.openSession(listener), null);
+
+        send(speakerSocket, speakerToken ^ (1L << 40), new SoundData(5000, 1, 20, new byte[]{1}));
+        // a frame naming another sender is dropped too
+        send(speakerSocket, speakerToken, new SoundData(5001, 2, 40, new byte[]{2}));
+        send(speakerSocket, speakerToken, new SoundData(5000, 3, 60, new byte[]{3}));
+
+        assertEquals(3, ((SoundData) Packet.parse(receive())).getSequenceNumber());
+    }
+
+    @Test
+    public void stopsRelayingOnceTheSessionIsClosed() throws IOException
+    {
+        long speakerToken = relay.openSession(speaker);
+        send(listenerSocket, relay.openSession(listener), null);
+
+        relay.closeSession(speaker);
+        send(speakerSocket, speakerToken, new SoundData(5000, 1, 20, new byte[]{1}));
+        long reopened = relay.openSession(speaker);
+        send(speakerSocket, reopened, new SoundData(5000, 2, 40, new byte[]{2}));
+
+        assertEquals(2, ((SoundData) Packet.parse(receive())).getSequenceNumber());
+    }
+
+    @Test
+    public void forwardsSealedSoundWithoutOpeningIt() throws IOException
+    {
+        long speakerToken = relay.openSession(speaker);
+        send(listenerSocket, relay.openSession(listener), null);
+
+        RoomCipher roomCipher = new RoomCipher(chatroom.getRoomId(), 1, RoomCipher.generateKey());
+        SealedSoundData elsewhere = new RoomCipher(chatroom.getRoomId() + 1, 1, RoomCipher.generateKey())
+                .seal(new SoundData(5000, 1, 20, new byte[]{1}));
+        SealedSoundData sealed = roomCipher.seal(new SoundData(5000, 2, 40, new byte[]{1, 2, 3}));
+        // a frame naming another room is dropped
+        send(speakerSocket, speakerToken, elsewhere);
+        send(speakerSocket, speakerToken, sealed);
+
+        byte[] received = receive();
+        assertArrayEquals(sealed.getBytes(), received);
+        assertArrayEquals(new byte[]{1, 2, 3}, roomCipher.open((SealedSoundData) Packet.parse(received)).getData());
+    }
+
+    @Test
+    public void onlyAnOpenedEnvelopeMovesAnEncryptedSessionsAddress() throws Exception
+    {
+        KeyPair clientKeys = KeyExchange.generateKeyPair();
+        KeyPair serverKeys = KeyExchange.generateKeyPair();
+        SessionCipher client = KeyExchange.clientSession(clientKeys, serverKeys.getPublic().getEncoded());
+        listener.useCipher(KeyExchange.serverSession(serverKeys, clientKeys.getPublic().getEncoded()));
+        long speakerToken = relay.openSession(speaker);
+        long listenerToken = relay.openSession(listener);
+
+        ByteBuffer registration = ByteBuffer.allocate(2048).putLong(listenerToken);
+        client.sealDatagram(ByteBuffer.wrap(new DebugPacket(5001, "").getBytes()), registration);
+        listenerSocket.send(new DatagramPacket(registration.array(), registration.position(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), relay.getPort())));
+        // anyone who saw the token in the clear could send it on its own
+        try (DatagramSocket elsewhere = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            send(elsewhere, listenerToken, null);
+        }
+        send(speakerSocket, speakerToken, new SoundData(5000, 1, 20, new byte[]{1}));
+
+        ByteBuffer received = ByteBuffer.wrap(receive());
+        client.openDatagram(received);
+        assertEquals(1, ((SoundData) Packet.decode(received)).getSequenceNumber());
+    }
+
+    private ClientConnection member(int port)
+    {
+        ClientConnection connection = new ClientConnection(port, null);
+        chatroom.addClientConnection(port, connection);
+        connection.setChatroom(chatroom);
+        return connection;
+    }
+
+    private void send(DatagramSocket socket, long token, Packet frame) throws IOException
+    {
+        int length = MediaRelay.TOKEN_LENGTH + (frame == null ? 0 : frame.encodedLength());
+        ByteBuffer buffer = ByteBuffer.allocate(length).putLong(token);
+        if (frame != null) frame.encode(buffer);
+        socket.send(new DatagramPacket(buffer.array(), length,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), relay.getPort())));
+    }
+
+    private byte[] receive() throws IOException
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        listenerSocket.receive(packet);
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+}
@@ -0,0 +1,72 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PortAllocatorTest
+{
+    @Test
+    public void handsOutEveryPortOnceThenReportsExhaustion()
+    {
+        PortAllocator allocator = new PortAllocator(5000, 100);
+        Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 100; i++) {
+            int port = allocator.allocate();
+            assertTrue(port >= 5000 && port < 5100);
+            assertTrue(ports.add(port));
+        }
+        assertEquals(-1, allocator.allocate());
+
+        allocator.release(5042);
+        assertEquals(5042, allocator.allocate());
+        assertEquals(100, allocator.getAllocated());
+    }
+
+    @Test
+    public void aReservedPortIsNeverHandedOut()
+    {
+        PortAllocator allocator = new PortAllocator(5000, 4);
+        allocator.reserve(5001);
+        allocator.reserve(6000);
+        Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        for (int port; (port = allocator.allocate()) != -1;)
+            ports.add(port);
+        assertEquals(Set.of(5000, 5002, 5003), ports);
+        assertEquals(3, allocator.getAllocated());
+    }
+
+    @Test
+    public void theServersOwnPortsAreNotClientIds()
+    {
+        VoicechatServer server = new VoicechatServer("localhost", 5001, 5000, ServerMode.SOCKET, 1, 5002);
+        server.setConnectionPortRange(4);
+        assertEquals(5000, server.allocatePort());
+        assertEquals(5003, server.allocatePort());
+        assertEquals(-1, server.allocatePort());
+    }
+
+    @Test
+    public void concurrentAllocationsNeverShareAPort() throws InterruptedException
+    {
+        PortAllocator allocator = new PortAllocator(1024, 8000);
+        Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++)
+                    assertTrue(ports.add(allocator.allocate()));
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(8000, ports.size());
+        assertEquals(-1, allocator.allocate());
+    }
+}
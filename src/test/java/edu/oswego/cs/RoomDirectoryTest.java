@@ -0,0 +1,71 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import org.junit.Test;
+
+public class RoomDirectoryTest
+{
+    private final RoomDirectory directory = new RoomDirectory();
+
+    @Test
+    public void listsRoomsByNameWithTheirSize()
+    {
+        Chatroom lobby = room("lobby", 4);
+        room("games", 8);
+        lobby.addClientConnection(5000, new ClientConnection(5000, null));
+
+        assertArrayEquals(new String[]{"games;0/8", "lobby;1/4"}, list());
+        lobby.removeClientConnection(5000);
+        assertArrayEquals(new String[]{"games;0/8", "lobby;0/4"}, list());
+    }
+
+    @Test
+    public void pagesAndFiltersByPrefix()
+    {
+        for (String name : new String[]{"a1", "b1", "b2", "b3", "c1"})
+            room(name, 2);
+
+        assertArrayEquals(new String[]{"b1;0/2", "b2;0/2", RoomDirectory.MORE}, list("prefix=b", "limit=2"));
+        assertArrayEquals(new String[]{"b3;0/2"}, list("prefix=b", "limit=2", "after=b2"));
+        assertArrayEquals(new String[]{"c1;0/2"}, list("after=b3"));
+        assertArrayEquals(new String[0], list("prefix=d"));
+    }
+
+    @Test
+    public void aPageCutShortByItsSizeStillSaysThereIsMore()
+    {
+        String padding = "x".repeat(200);
+        for (int i = 0; i < 100; i++)
+            room(String.format("%03d", i) + padding, 2);
+
+        String[] page = list();
+        assertTrue(page.length < RoomDirectory.DEFAULT_PAGE_SIZE);
+        assertEquals(RoomDirectory.MORE, page[page.length - 1]);
+        int listed = 0;
+        while (page[page.length - 1].equals(RoomDirectory.MORE)) {
+            listed += page.length - 1;
+            String last = page[page.length - 2];
+            page = list("after=" + last.substring(0, last.lastIndexOf(';')));
+        }
+        assertEquals(100, listed + page.length);
+    }
+
+    private Chatroom room(String name, int maxParticipants)
+    {
+        Chatroom chatroom = new Chatroom(name, maxParticipants, directory);
+        chatroom.publish();
+        return chatroom;
+    }
+
+    private String[] list(String... params)
+    {
+        ParticipantACK reply = new ParticipantACK(ParticipantOpcode.LIST_SERVERS, 5000, directory.list(params));
+        return ((ParticipantACK) Packet.parse(reply.getBytes())).getParams();
+    }
+}
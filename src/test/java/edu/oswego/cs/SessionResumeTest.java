@@ -0,0 +1,175 @@
+package edu.oswego.cs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import edu.oswego.cs.crypto.EncryptionMode;
+import edu.oswego.cs.crypto.ResumptionTokens;
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ErrorPacket;
+import edu.oswego.cs.network.packets.ParticipantData;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops a member's connection and resumes its session on a new one, against a server in this JVM on loopback
+ */
+public class SessionResumeTest
+{
+    private VoicechatServer server;
+    private int port;
+    private ServerMode mode;
+    private final List<LoopbackClient> clients = new ArrayList<>();
+
+    private void start(ServerMode mode, long graceMillis) throws IOException
+    {
+        this.mode = mode;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        server = new VoicechatServer("localhost", port, 43000, mode, 1, 0);
+        server.setSessionGrace(graceMillis);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException stopped) {
+                // the server socket was closed by stop
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void stop() throws IOException
+    {
+        for (LoopbackClient client : clients)
+            client.close();
+        if (server != null) server.stop();
+    }
+
+    @Test
+    public void aDroppedMemberKeepsItsPlaceAndItsFramesUntilItResumes() throws Exception
+    {
+        start(ServerMode.NIO, 10000);
+        resumesWithItsFrames();
+    }
+
+    @Test
+    public void aDroppedSocketModeMemberKeepsItsPlaceAndItsFramesUntilItResumes() throws Exception
+    {
+        start(ServerMode.SOCKET, 10000);
+        resumesWithItsFrames();
+    }
+
+    @Test
+    public void aSocketModeMemberThatDoesNotComeBackLeavesAfterTheGracePeriod() throws Exception
+    {
+        start(ServerMode.SOCKET, 200);
+        LoopbackClient a = connect();
+        a.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, a.getId(), new String[]{"room", "4"}));
+        a.send(new ParticipantData(ParticipantOpcode.JOIN, a.getId(), new String[]{"room"}));
+        a.readAck(ParticipantOpcode.JOIN);
+        LoopbackClient b = connect();
+        b.send(new ParticipantData(ParticipantOpcode.JOIN, b.getId(), new String[]{"room"}));
+        b.readAck(ParticipantOpcode.JOIN);
+
+        a.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.findConnection(a.getId()) != null && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertNull(server.findConnection(a.getId()));
+        assertEquals(1, server.findChatroomByName("room").getChatroomSize());
+    }
+
+    @Test
+    public void aTokenOnlyTakesOverASessionWaitingForItsClientAndOnlyOnce() throws Exception
+    {
+        start(ServerMode.NIO, 10000);
+        LoopbackClient a = connect();
+        a.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, a.getId(), new String[]{"room", "8"}));
+        a.send(new ParticipantData(ParticipantOpcode.JOIN, a.getId(), new String[]{"room"}));
+        String token = LoopbackClient.param(a.readAck(ParticipantOpcode.JOIN), "token=");
+
+        // a is still connected, the token only gets another member into the chatroom
+        LoopbackClient early = connect();
+        early.send(new ParticipantData(ParticipantOpcode.RESUME, early.getId(), new String[]{token}));
+        early.readAck(ParticipantOpcode.JOIN);
+        assertNotNull(server.findConnection(early.getId()));
+
+        a.close();
+        Thread.sleep(500);
+        LoopbackClient resumed = connect();
+        resumed.send(new ParticipantData(ParticipantOpcode.RESUME, resumed.getId(), new String[]{token}));
+        resumed.readAck(ParticipantOpcode.RESUME);
+
+        LoopbackClient replayed = connect();
+        replayed.send(new ParticipantData(ParticipantOpcode.RESUME, replayed.getId(), new String[]{token}));
+        replayed.readAck(ParticipantOpcode.JOIN);
+        assertNotNull(server.findConnection(replayed.getId()));
+        assertEquals(3, server.findChatroomByName("room").getChatroomSize());
+    }
+
+    @Test
+    public void aTokenDoesNotGetAPlaintextClientIntoAServerThatRequiresEncryption() throws Exception
+    {
+        start(ServerMode.NIO, 10000);
+        server.setEncryptionMode(EncryptionMode.REQUIRED);
+        // a token of a session that is gone, so the client would be put back into its chatroom as if it joined
+        String token = server.getResumptionTokens().issue(new ResumptionTokens.Ticket(43999, 1, "room", 4, false,
+                false, "pcm"));
+
+        LoopbackClient client = connect();
+        client.send(new ParticipantData(ParticipantOpcode.RESUME, client.getId(), new String[]{token}));
+        assertEquals(ErrorOpcode.ENCRYPTION_REQUIRED, ((ErrorPacket) client.read()).getErrorOpcode());
+        assertNull(server.findChatroomByName("room"));
+    }
+
+    private void resumesWithItsFrames() throws Exception
+    {
+        LoopbackClient a = connect();
+        a.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, a.getId(), new String[]{"room", "4"}));
+        a.send(new ParticipantData(ParticipantOpcode.JOIN, a.getId(), new String[]{"room"}));
+        String token = LoopbackClient.param(a.readAck(ParticipantOpcode.JOIN), "token=");
+        assertNotNull(token);
+        LoopbackClient b = connect();
+        b.send(new ParticipantData(ParticipantOpcode.JOIN, b.getId(), new String[]{"room"}));
+        b.readAck(ParticipantOpcode.JOIN);
+        ClientConnection session = server.findConnection(a.getId());
+
+        // the frames b sends while a is gone wait in a's send queue
+        a.close();
+        Thread.sleep(500);
+        for (int sequence = 0; sequence < 3; sequence++)
+            b.send(new SoundData(b.getId(), sequence, sequence * SoundData.FRAME_DURATION_MS, new byte[320]));
+        Thread.sleep(200);
+        assertEquals(2, server.findChatroomByName("room").getChatroomSize());
+
+        LoopbackClient resumed = connect();
+        resumed.send(new ParticipantData(ParticipantOpcode.RESUME, resumed.getId(), new String[]{token}));
+        assertNotNull(LoopbackClient.param(resumed.readAck(ParticipantOpcode.RESUME), "token="));
+        for (int sequence = 0; sequence < 3; sequence++)
+            assertEquals(sequence, ((SoundData) resumed.read()).getSequenceNumber());
+
+        // the session kept its id, the new connection's id is free again
+        assertSame(session, server.findConnection(a.getId()));
+        assertNull(server.findConnection(resumed.getId()));
+        assertEquals(2, server.findChatroomByName("room").getChatroomSize());
+    }
+
+    private LoopbackClient connect() throws Exception
+    {
+        LoopbackClient client = LoopbackClient.connect(port, mode);
+        clients.add(client);
+        return client;
+    }
+}
@@ -0,0 +1,111 @@
+package edu.oswego.cs.audio;
+
+import static org.junit.Assert.assertEquals;
+
+import edu.oswego.cs.Chatroom;
+import edu.oswego.cs.ClientConnection;
+import edu.oswego.cs.crypto.SessionCipher;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.SendQueue;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AudioMixerTest
+{
+    private final Chatroom chatroom = new Chatroom("room", 10);
+    private final AudioMixer mixer = new AudioMixer(chatroom, null);
+
+    @Test
+    public void everySpeakerHearsEveryoneButItself()
+    {
+        RecordingTransport first = member(5000);
+        RecordingTransport second = member(5001);
+        RecordingTransport listener = member(5002);
+
+        mixer.submit(5000, 0, 0, frame(100));
+        mixer.submit(5001, 0, 0, frame(32700));
+        mixer.tick();
+
+        assertEquals(32700, first.lastSample());
+        assertEquals(100, second.lastSample());
+        // 32800 clipped to the largest sample
+        assertEquals(Short.MAX_VALUE, listener.lastSample());
+        assertEquals(AudioMixer.MIX_PORT, ((SoundData) listener.packets.get(0)).getPort());
+    }
+
+    @Test
+    public void aLoneSpeakerIsNotSentSilence()
+    {
+        RecordingTransport speaker = member(5000);
+        RecordingTransport listener = member(5001);
+
+        mixer.submit(5000, 0, 0, frame(42));
+        // the speaker says it went silent, so the gap is not concealed
+        mixer.submit(5000, 1, 20, ByteBuffer.wrap(new byte[SoundData.COMFORT_NOISE_LENGTH]));
+        mixer.tick();
+        mixer.tick();
+
+        assertEquals(0, speaker.packets.size());
+        assertEquals(1, listener.packets.size());
+        assertEquals(42, listener.lastSample());
+    }
+
+    private RecordingTransport member(int port)
+    {
+        ClientConnection connection = new ClientConnection(port, null);
+        RecordingTransport transport = new RecordingTransport();
+        connection.attach(transport);
+        chatroom.addClientConnection(port, connection);
+        return transport;
+    }
+
+    private static ByteBuffer frame(int sample)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+        for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+            frame.putShort((short) sample);
+        return frame.flip();
+    }
+
+    private static class RecordingTransport implements Transport
+    {
+        final List<Packet> packets = new ArrayList<>();
+
+        int lastSample()
+        {
+            byte[] data = ((SoundData) packets.get(packets.size() - 1)).getData();
+            return ByteBuffer.wrap(data).getShort(data.length - 2);
+        }
+
+        @Override
+        public void send(ByteBuffer bytes)
+        {
+            bytes.position(bytes.position() + Framing.HEADER_LENGTH);
+            packets.add(Packet.decode(bytes));
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void setCipher(SessionCipher cipher) {}
+
+        @Override
+        public SendQueue getSendQueue()
+        {
+            return null;
+        }
+    }
+}
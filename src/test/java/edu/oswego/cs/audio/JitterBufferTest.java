@@ -0,0 +1,117 @@
+package edu.oswego.cs.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Replays traces of frame arrivals through a jitter buffer polled every 20 ms, and reports how much delay the buffer
+ * added on top of the network's and how many of the frames played had to be concealed.
+ */
+public class JitterBufferTest
+{
+    private static final int FRAME_MS = SoundData.FRAME_DURATION_MS;
+    private static final int BASE_DELAY_MS = 30;
+
+    @Test
+    public void aSteadyStreamIsPlayedAsItCame()
+    {
+        Report report = replay(trace(1500, 0, 0, 1));
+        assertEquals(0, report.concealmentRate, 0);
+        assertTrue(report.toString(), report.addedLatency <= 2 * FRAME_MS);
+    }
+
+    @Test
+    public void jitterIsAbsorbedAndLossConcealed()
+    {
+        Report jitter = replay(trace(1500, 60, 0, 2));
+        assertTrue(jitter.toString(), jitter.concealmentRate < 0.03);
+        assertTrue(jitter.toString(), jitter.addedLatency < 150);
+
+        Report loss = replay(trace(1500, 60, 0.05, 3));
+        assertTrue(loss.toString(), loss.concealmentRate < 0.09);
+        assertTrue(loss.toString(), loss.addedLatency < 150);
+    }
+
+    /**
+     * @param frames Frames sent, one every 20 ms
+     * @param jitterMillis Most a frame is delayed on top of the base delay, uniformly spread
+     * @param loss Share of frames that never arrive
+     * @return Arrival time of every frame, -1 for a lost one
+     */
+    private static long[] trace(int frames, int jitterMillis, double loss, long seed)
+    {
+        Random random = new Random(seed);
+        long[] arrivals = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            boolean lost = random.nextDouble() < loss;
+            arrivals[i] = lost ? -1 : (long) i * FRAME_MS + BASE_DELAY_MS + random.nextInt(jitterMillis + 1);
+        }
+        return arrivals;
+    }
+
+    private static Report replay(long[] arrivals)
+    {
+        JitterBuffer buffer = new JitterBuffer();
+        Integer[] order = new Integer[arrivals.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(arrivals[a], arrivals[b]));
+
+        // every frame carries its own index as its samples so the played one can be told apart
+        ByteBuffer frame = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+        short[] samples = new short[AudioMixer.SAMPLES_PER_FRAME];
+        long played = 0, concealed = 0, latency = 0;
+        int next = 0;
+        long end = (long) arrivals.length * FRAME_MS + 1000;
+        // the speaker goes quiet at the end, as AudioCapture would tell it
+        long quiet = (long) arrivals.length * FRAME_MS + BASE_DELAY_MS;
+        ByteBuffer comfortNoise = ByteBuffer.wrap(new byte[SoundData.COMFORT_NOISE_LENGTH]);
+        // the player's clock is not in step with the sender's
+        for (long now = 7; now < end; now += FRAME_MS) {
+            while (next < order.length && arrivals[order[next]] <= now) {
+                int index = order[next++];
+                if (arrivals[index] < 0) continue;
+                for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+                    frame.putShort(s * 2, (short) index);
+                buffer.put(index, index * FRAME_MS, AudioCodecs.PCM, frame, arrivals[index]);
+            }
+            if (now - FRAME_MS < quiet && now >= quiet)
+                buffer.put(arrivals.length, arrivals.length * FRAME_MS, AudioCodecs.PCM, comfortNoise, now);
+            switch (buffer.poll(samples)) {
+                case PLAYED:    { played++; latency += now - (long) samples[0] * FRAME_MS - BASE_DELAY_MS; break; }
+                case CONCEALED: { concealed++; break; }
+                default: break;
+            }
+        }
+        Report report = new Report(latency / (double) played, concealed / (double) (played + concealed));
+        System.out.println("jitter buffer: " + report + ", target depth " + buffer.getTargetDepth()
+                + ", late " + buffer.getLate() + ", skipped " + buffer.getSkipped());
+        return report;
+    }
+
+    private static class Report
+    {
+        final double addedLatency;
+        final double concealmentRate;
+
+        Report(double addedLatency, double concealmentRate)
+        {
+            this.addedLatency = addedLatency;
+            this.concealmentRate = concealmentRate;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("added latency %.1f ms, %.2f%% concealed", addedLatency, concealmentRate * 100);
+        }
+    }
+}
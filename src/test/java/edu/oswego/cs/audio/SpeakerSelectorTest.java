@@ -0,0 +1,55 @@
+package edu.oswego.cs.audio;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.audio.codec.AudioCodecs;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+public class SpeakerSelectorTest
+{
+    private static final long FRAME = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final SpeakerSelector selector = new SpeakerSelector(2);
+
+    @Test
+    public void onlyTheFirstLoudMembersTakeAPlace()
+    {
+        assertFalse(selector.isForwarded(5000, frame(10), AudioCodecs.PCM, 0));
+        assertTrue(selector.isForwarded(5001, frame(3000), AudioCodecs.PCM, 0));
+        assertTrue(selector.isForwarded(5002, frame(2000), AudioCodecs.PCM, 0));
+        // no louder by enough to push anyone out
+        assertFalse(selector.isForwarded(5003, frame(2500), AudioCodecs.PCM, FRAME));
+    }
+
+    @Test
+    public void aShortPauseKeepsThePlaceAndALongOneLosesIt()
+    {
+        long now = 0;
+        assertTrue(selector.isForwarded(5000, frame(3000), AudioCodecs.PCM, now));
+        assertTrue(selector.isForwarded(5001, frame(3000), AudioCodecs.PCM, now));
+
+        // 300 ms of silence, still held
+        for (int i = 0; i < 15; i++) {
+            now += FRAME;
+            assertTrue(selector.isForwarded(5000, frame(0), AudioCodecs.PCM, now));
+            assertFalse(selector.isForwarded(5002, frame(3000), AudioCodecs.PCM, now));
+        }
+
+        // past the hold the place goes to the next loud member
+        now += TimeUnit.MILLISECONDS.toNanos(SpeakerSelector.HOLD_MILLIS);
+        assertFalse(selector.isForwarded(5000, frame(0), AudioCodecs.PCM, now));
+        assertTrue(selector.isForwarded(5002, frame(3000), AudioCodecs.PCM, now));
+    }
+
+    private static ByteBuffer frame(int sample)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+        for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+            frame.putShort((short) (s % 2 == 0 ? sample : -sample));
+        return frame.flip();
+    }
+}
@@ -0,0 +1,56 @@
+package edu.oswego.cs.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class VoiceActivityDetectorTest
+{
+    private final VoiceActivityDetector detector = new VoiceActivityDetector();
+    private final Random random = new Random(1);
+
+    @Test
+    public void steadyNoiseBecomesTheFloor()
+    {
+        // a loud fan switched on, about -45 dBFS, sounds like speech for a moment
+        for (int i = 0; i < 100; i++)
+            detector.isSpeech(noise(250), AudioMixer.FRAME_LENGTH);
+        for (int i = 0; i < 500; i++)
+            assertFalse(detector.isSpeech(noise(250), AudioMixer.FRAME_LENGTH));
+        assertEquals(45, detector.getNoiseLevel(), 3);
+    }
+
+    @Test
+    public void speechOverNoiseIsSentWithItsHangover()
+    {
+        for (int i = 0; i < 50; i++)
+            detector.isSpeech(noise(40), AudioMixer.FRAME_LENGTH);
+
+        for (int i = 0; i < 20; i++)
+            assertTrue(detector.isSpeech(tone(4000), AudioMixer.FRAME_LENGTH));
+        for (int i = 0; i < VoiceActivityDetector.HANGOVER_FRAMES; i++)
+            assertTrue(detector.isSpeech(noise(40), AudioMixer.FRAME_LENGTH));
+        assertFalse(detector.isSpeech(noise(40), AudioMixer.FRAME_LENGTH));
+    }
+
+    private byte[] noise(double deviation)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+        for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+            frame.putShort((short) (random.nextGaussian() * deviation));
+        return frame.array();
+    }
+
+    private static byte[] tone(int amplitude)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(AudioMixer.FRAME_LENGTH);
+        for (int s = 0; s < AudioMixer.SAMPLES_PER_FRAME; s++)
+            frame.putShort((short) (Math.sin(2 * Math.PI * 200 * s / AudioMixer.SAMPLE_RATE) * amplitude));
+        return frame.array();
+    }
+}
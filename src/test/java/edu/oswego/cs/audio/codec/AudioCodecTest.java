@@ -0,0 +1,59 @@
+package edu.oswego.cs.audio.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.audio.AudioMixer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class AudioCodecTest
+{
+    private final short[] speech = new short[AudioMixer.SAMPLES_PER_FRAME];
+
+    public AudioCodecTest()
+    {
+        // two tones, loud and quiet, so both ends of the logarithmic scales are used
+        for (int s = 0; s < speech.length; s++)
+            speech[s] = (short) (Math.sin(2 * Math.PI * 220 * s / AudioMixer.SAMPLE_RATE) * 12000
+                    + Math.sin(2 * Math.PI * 1500 * s / AudioMixer.SAMPLE_RATE) * 300);
+    }
+
+    @Test
+    public void pcmIsLosslessAndG711KnowsSilence()
+    {
+        assertArrayEquals(speech, roundTrip(AudioCodecs.PCM, speech.length));
+        assertEquals((byte) 0xFF, MuLawCodec.encode((short) 0));
+        assertEquals((byte) 0xD5, ALawCodec.encode((short) 0));
+    }
+
+    @Test
+    public void compressingCodecsKeepTheSignal()
+    {
+        for (AudioCodec codec : new AudioCodec[]{AudioCodecs.MU_LAW, AudioCodecs.A_LAW, AudioCodecs.IMA_ADPCM}) {
+            // an odd number of samples leaves ADPCM a padding nibble
+            for (int count : new int[]{speech.length, speech.length - 1}) {
+                short[] decoded = roundTrip(codec, count);
+                double signal = 0, noise = 0;
+                for (int s = 0; s < count; s++) {
+                    signal += (double) speech[s] * speech[s];
+                    noise += (double) (speech[s] - decoded[s]) * (speech[s] - decoded[s]);
+                }
+                double snr = 10 * Math.log10(signal / noise);
+                assertTrue(codec.getName() + " SNR " + snr, snr > 25);
+            }
+        }
+    }
+
+    private short[] roundTrip(AudioCodec codec, int count)
+    {
+        ByteBuffer encoded = ByteBuffer.allocate(codec.encodedLength(count));
+        codec.encode(speech, count, encoded);
+        assertEquals(codec.encodedLength(count), encoded.position());
+        short[] decoded = new short[speech.length];
+        assertEquals(count, codec.decode(encoded.flip(), decoded));
+        return decoded;
+    }
+}
@@ -0,0 +1,294 @@
+package edu.oswego.cs.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.LoopbackClient;
+import edu.oswego.cs.MediaRelay;
+import edu.oswego.cs.ServerMode;
+import edu.oswego.cs.VoicechatServer;
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ErrorPacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.ParticipantData;
+import edu.oswego.cs.network.packets.SealedSoundData;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs three nodes of a cluster in this JVM, each on a loopback port of its own
+ */
+public class ClusterTest
+{
+    private final List<String> nodes = new ArrayList<>();
+    private final List<VoicechatServer> servers = new ArrayList<>();
+    private final List<LoopbackClient> clients = new ArrayList<>();
+    private final List<NodeClient> encrypted = new ArrayList<>();
+    private ServerMode mode;
+
+    private void start(ServerMode mode) throws IOException
+    {
+        start(mode, false);
+    }
+
+    /**
+     * Starts the three nodes. In the socket modes every node needs ports of its own for its clients.
+     * @param media True to give every node a media port
+     */
+    private void start(ServerMode mode, boolean media) throws IOException
+    {
+        this.mode = mode;
+        for (int i = 0; i < 3; i++) {
+            try (ServerSocket free = new ServerSocket(0)) {
+                nodes.add("localhost:" + free.getLocalPort());
+            }
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            int mediaPort = 0;
+            if (media) {
+                try (DatagramSocket free = new DatagramSocket(0)) {
+                    mediaPort = free.getLocalPort();
+                }
+            }
+            VoicechatServer server = new VoicechatServer("localhost", port(nodes.get(i)), 40000 + i * 1000, mode, 1,
+                    mediaPort);
+            server.setCluster(nodes);
+            servers.add(server);
+            Thread thread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException stopped) {
+                    // the server socket was closed by stop
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @After
+    public void stop() throws IOException
+    {
+        for (LoopbackClient client : clients)
+            client.close();
+        for (NodeClient client : encrypted)
+            client.close();
+        for (VoicechatServer server : servers)
+            server.stop();
+    }
+
+    @Test
+    public void aClientIsSentToTheChatroomsNodeAndEveryNodeListsIt() throws Exception
+    {
+        start(ServerMode.NIO);
+        sendsClientsToTheChatroomsNode();
+    }
+
+    @Test
+    public void socketModeNodesSendClientsToTheChatroomsNodeAndListIt() throws Exception
+    {
+        start(ServerMode.SOCKET);
+        sendsClientsToTheChatroomsNode();
+    }
+
+    private void sendsClientsToTheChatroomsNode() throws Exception
+    {
+        String owner = nodes.get(1);
+        String name = nameOwnedBy(owner);
+
+        LoopbackClient elsewhere = connect(nodes.get(0));
+        elsewhere.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, elsewhere.getId(), new String[]{name, "4"}));
+        ErrorPacket redirect = (ErrorPacket) elsewhere.read();
+        assertEquals(ErrorOpcode.WRONG_NODE, redirect.getErrorOpcode());
+        assertEquals(owner, redirect.getErrorMsg().trim());
+
+        LoopbackClient client = connect(owner);
+        client.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, client.getId(), new String[]{name, "4"}));
+        client.send(new ParticipantData(ParticipantOpcode.JOIN, client.getId(), new String[]{name}));
+        assertEquals(ParticipantOpcode.JOIN, ((ParticipantACK) client.read()).getParticipantOpcode());
+
+        // the other nodes list the chatroom once their links to its node have copied it
+        for (String node : Arrays.asList(nodes.get(0), nodes.get(2)))
+            assertTrue(node + " lists " + name, eventuallyLists(connect(node), name + ";1/4"));
+    }
+
+    @Test
+    public void aSpanningChatroomRelaysFramesBetweenNodes() throws Exception
+    {
+        start(ServerMode.NIO);
+        String owner = nodes.get(1);
+        String name = nameOwnedBy(owner);
+
+        LoopbackClient here = connect(owner);
+        here.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, here.getId(), new String[]{name, "4", "span"}));
+        here.send(new ParticipantData(ParticipantOpcode.JOIN, here.getId(), new String[]{name}));
+        assertEquals(ParticipantOpcode.JOIN, ((ParticipantACK) here.read()).getParticipantOpcode());
+
+        // joined on another node, which opens an edge of the chatroom instead of sending the client away
+        LoopbackClient elsewhere = connect(nodes.get(2));
+        elsewhere.send(new ParticipantData(ParticipantOpcode.JOIN, elsewhere.getId(), new String[]{name}));
+        assertEquals(ParticipantOpcode.JOIN, ((ParticipantACK) elsewhere.read()).getParticipantOpcode());
+
+        elsewhere.send(new SoundData(elsewhere.getId(), 0, 0, new byte[]{1, 2}));
+        SoundData up = (SoundData) here.read();
+        assertEquals(elsewhere.getId(), up.getPort());
+        here.send(new SoundData(here.getId(), 0, 0, new byte[]{3, 4}));
+        SoundData down = (SoundData) elsewhere.read();
+        assertEquals(here.getId(), down.getPort());
+    }
+
+    @Test
+    public void framesSentToTheMediaPortCrossNodesOverTheUplinks() throws Exception
+    {
+        start(ServerMode.NIO, true);
+        String owner = nodes.get(1);
+        String name = nameOwnedBy(owner);
+
+        LoopbackClient here = connect(owner);
+        here.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, here.getId(), new String[]{name, "4", "span"}));
+        here.send(new ParticipantData(ParticipantOpcode.JOIN, here.getId(), new String[]{name}));
+        ParticipantACK hereJoined = here.readAck(ParticipantOpcode.JOIN);
+        LoopbackClient elsewhere = connect(nodes.get(2));
+        elsewhere.send(new ParticipantData(ParticipantOpcode.JOIN, elsewhere.getId(), new String[]{name}));
+        ParticipantACK elsewhereJoined = elsewhere.readAck(ParticipantOpcode.JOIN);
+
+        try (DatagramSocket udp = new DatagramSocket()) {
+            sendDatagram(udp, hereJoined, new SoundData(here.getId(), 0, 0, new byte[]{1, 2}));
+            assertEquals(here.getId(), readSound(elsewhere).getPort());
+            sendDatagram(udp, elsewhereJoined, new SoundData(elsewhere.getId(), 0, 0, new byte[]{3, 4}));
+            assertEquals(elsewhere.getId(), readSound(here).getPort());
+        }
+    }
+
+    @Test
+    public void encryptedMembersOnEveryNodeShareTheRoomKeyAndHearSealedFrames() throws Exception
+    {
+        start(ServerMode.NIO);
+        String owner = nodes.get(1);
+        String name = nameOwnedBy(owner);
+
+        NodeClient here = connectEncrypted(owner);
+        here.send(new ParticipantData(ParticipantOpcode.CREATE_SERVER, here.getId(), new String[]{name, "4", "span"}));
+        here.send(new ParticipantData(ParticipantOpcode.JOIN, here.getId(), new String[]{name}));
+        int roomId = Integer.parseInt(readRoomKey(here).getParams()[0]);
+
+        // the edge hands on the key of the chatroom's node instead of making one of its own
+        NodeClient elsewhere = connectEncrypted(nodes.get(2));
+        elsewhere.send(new ParticipantData(ParticipantOpcode.JOIN, elsewhere.getId(), new String[]{name}));
+        ParticipantACK roomKey = readRoomKey(elsewhere);
+        assertEquals(roomId, Integer.parseInt(roomKey.getParams()[0]));
+
+        int epoch = Integer.parseInt(roomKey.getParams()[1]);
+        elsewhere.send(new SealedSoundData(elsewhere.getId(), roomId, epoch, 0, 0, new byte[32]));
+        assertEquals(elsewhere.getId(), readSealedSound(here).getPort());
+        here.send(new SealedSoundData(here.getId(), roomId, epoch, 0, 0, new byte[32]));
+        assertEquals(here.getId(), readSealedSound(elsewhere).getPort());
+    }
+
+    /**
+     * Sends a packet to the media port a JOIN ACK names, behind the token it hands out
+     */
+    private static void sendDatagram(DatagramSocket udp, ParticipantACK joined, Packet packet) throws IOException
+    {
+        int mediaPort = Integer.parseInt(joined.getParams()[0]);
+        long token = Long.parseUnsignedLong(joined.getParams()[1], 16);
+        ByteBuffer frame = Framing.frame(packet).position(Framing.HEADER_LENGTH);
+        ByteBuffer datagram = ByteBuffer.allocate(MediaRelay.TOKEN_LENGTH + frame.remaining()).putLong(token).put(frame);
+        udp.send(new DatagramPacket(datagram.array(), datagram.position(), new InetSocketAddress("localhost", mediaPort)));
+    }
+
+    private static SoundData readSound(LoopbackClient client) throws IOException
+    {
+        while (true) {
+            Packet packet = client.read();
+            if (packet instanceof SoundData) return (SoundData) packet;
+        }
+    }
+
+    private static ParticipantACK readRoomKey(NodeClient client) throws IOException
+    {
+        while (true) {
+            Packet packet = client.read();
+            if (packet instanceof ParticipantACK
+                    && ((ParticipantACK) packet).getParticipantOpcode() == ParticipantOpcode.ROOM_KEY)
+                return (ParticipantACK) packet;
+        }
+    }
+
+    private static SealedSoundData readSealedSound(NodeClient client) throws IOException
+    {
+        while (true) {
+            Packet packet = client.read();
+            if (packet instanceof SealedSoundData) return (SealedSoundData) packet;
+        }
+    }
+
+    /**
+     * @return Name of a chatroom the hash ring puts on a node
+     */
+    private String nameOwnedBy(String owner)
+    {
+        HashRing ring = new HashRing(nodes);
+        String name = "room-0";
+        for (int i = 1; ! ring.nodeFor(name).equals(owner); i++)
+            name = "room-" + i;
+        return name;
+    }
+
+    private boolean eventuallyLists(LoopbackClient client, String entry) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            client.send(new ParticipantData(ParticipantOpcode.LIST_SERVERS, client.getId()));
+            if (Arrays.asList(((ParticipantACK) client.read()).getParams()).contains(entry)) return true;
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    private LoopbackClient connect(String node) throws Exception
+    {
+        LoopbackClient client = LoopbackClient.connect(port(node), mode);
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * @return A client that exchanged keys with the node, closed after the test
+     */
+    private NodeClient connectEncrypted(String node) throws Exception
+    {
+        for (int attempt = 0;; attempt++) {
+            try {
+                NodeClient client = NodeClient.connect(node);
+                client.getChannel().socket().setSoTimeout(10000);
+                encrypted.add(client);
+                return client;
+            } catch (ConnectException e) {
+                // the node is still starting
+                if (attempt == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static int port(String node)
+    {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+}
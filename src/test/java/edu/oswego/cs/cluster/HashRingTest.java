@@ -0,0 +1,40 @@
+package edu.oswego.cs.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HashRingTest
+{
+    private static final List<String> NODES = Arrays.asList("a:9000", "b:9000", "c:9000", "d:9000");
+
+    @Test
+    public void everyNodeGetsCloseToItsShare()
+    {
+        HashRing ring = new HashRing(NODES);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10000; i++)
+            counts.merge(ring.nodeFor("room-" + i), 1, Integer::sum);
+
+        assertEquals(NODES.size(), counts.size());
+        for (int count : counts.values())
+            assertTrue("share of " + count, count > 1750 && count < 3250);
+    }
+
+    @Test
+    public void removingANodeOnlyMovesItsOwnChatrooms()
+    {
+        HashRing before = new HashRing(NODES);
+        HashRing after = new HashRing(NODES.subList(0, 3));
+        for (int i = 0; i < 10000; i++) {
+            String owner = before.nodeFor("room-" + i);
+            if (! owner.equals("d:9000")) assertEquals(owner, after.nodeFor("room-" + i));
+        }
+    }
+}
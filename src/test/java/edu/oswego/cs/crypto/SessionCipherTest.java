@@ -0,0 +1,136 @@
+package edu.oswego.cs.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import edu.oswego.cs.network.Framing;
+import edu.oswego.cs.network.PacketDecoder;
+import edu.oswego.cs.network.Transport;
+import edu.oswego.cs.network.TransportListener;
+import edu.oswego.cs.network.packets.DebugPacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SessionCipherTest
+{
+    private final List<Packet> packets = new ArrayList<>();
+    private final TransportListener listener = new TransportListener() {
+        public void onPacket(Packet packet) { packets.add(packet); }
+        public void onDisconnect(Transport transport) {}
+    };
+    private SessionCipher client;
+    private SessionCipher server;
+    private PacketDecoder decoder;
+
+    @Before
+    public void exchangeKeys() throws Exception
+    {
+        KeyPair clientKeys = KeyExchange.generateKeyPair();
+        KeyPair serverKeys = KeyExchange.generateKeyPair();
+        client = KeyExchange.clientSession(clientKeys, serverKeys.getPublic().getEncoded());
+        server = KeyExchange.serverSession(serverKeys, clientKeys.getPublic().getEncoded());
+        decoder = new PacketDecoder();
+        decoder.setCipher(server);
+    }
+
+    @Test
+    public void decodesSealedFramesInPlace() throws Exception
+    {
+        ByteBuffer frame = Framing.frame(new DebugPacket(5000, "secret"));
+        ByteBuffer first = client.seal(frame);
+        ByteBuffer second = client.seal(Framing.frame(new SoundData(5000, 7, 140, new byte[]{1, 2, 3})));
+
+        // the frame itself is left alone so a broadcast can seal it again for the next member
+        assertEquals(0, frame.position());
+        assertEquals(Framing.HEADER_LENGTH + frame.getInt(0) + SessionCipher.OVERHEAD, first.remaining());
+
+        decoder.buffer().put(first).put(second);
+        decoder.decode(listener);
+
+        assertEquals("secret", ((DebugPacket) packets.get(0)).getMsg());
+        assertArrayEquals(new byte[]{1, 2, 3}, ((SoundData) packets.get(1)).getData());
+    }
+
+    @Test
+    public void keysDifferPerDirection() throws Exception
+    {
+        // a frame the server sealed must not open as if the client had sent it
+        expectRejected(server.seal(Framing.frame(new DebugPacket(5000, "echo"))));
+    }
+
+    @Test
+    public void rejectsTamperedFrames() throws Exception
+    {
+        ByteBuffer sealed = client.seal(Framing.frame(new DebugPacket(5000, "secret")));
+        sealed.put(sealed.limit() - 20, (byte) (sealed.get(sealed.limit() - 20) ^ 1));
+        expectRejected(sealed);
+    }
+
+    @Test
+    public void rejectsReplayedFrames() throws Exception
+    {
+        ByteBuffer sealed = client.seal(Framing.frame(new DebugPacket(5000, "once")));
+        ByteBuffer replay = sealed.duplicate();
+        decoder.buffer().put(sealed);
+        decoder.decode(listener);
+        expectRejected(replay);
+    }
+
+    @Test
+    public void rejectsPlaintextOnceEncrypted() throws Exception
+    {
+        expectRejected(Framing.frame(new DebugPacket(5000, "plain")));
+    }
+
+    @Test
+    public void datagramsMayArriveOutOfOrderButOnlyOnce() throws Exception
+    {
+        ByteBuffer[] datagrams = new ByteBuffer[3];
+        for (int i = 0; i < datagrams.length; i++) {
+            ByteBuffer packet = ByteBuffer.wrap(new SoundData(5000, i, i * 20, new byte[]{(byte) i}).getBytes());
+            datagrams[i] = ByteBuffer.allocateDirect(packet.remaining() + SessionCipher.OVERHEAD);
+            client.sealDatagram(packet, datagrams[i]);
+            datagrams[i].flip();
+        }
+        ByteBuffer replay = copy(datagrams[0]);
+
+        assertEquals(2, openDatagram(datagrams[2]).getSequenceNumber());
+        assertEquals(0, openDatagram(datagrams[0]).getSequenceNumber());
+        assertEquals(1, openDatagram(datagrams[1]).getSequenceNumber());
+        try {
+            server.openDatagram(replay);
+            fail("Replayed datagram was accepted");
+        } catch (ProtocolException expected) {}
+    }
+
+    private SoundData openDatagram(ByteBuffer datagram) throws ProtocolException
+    {
+        server.openDatagram(datagram);
+        return (SoundData) Packet.decode(datagram);
+    }
+
+    private void expectRejected(ByteBuffer frame)
+    {
+        decoder.buffer().put(frame);
+        try {
+            decoder.decode(listener);
+            fail("Frame was accepted");
+        } catch (ProtocolException expected) {}
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer)
+    {
+        ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+}
@@ -0,0 +1,99 @@
+package edu.oswego.cs.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.DebugPacket;
+import edu.oswego.cs.network.packets.Packet;
+import edu.oswego.cs.network.packets.ParticipantData;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PacketDecoderTest
+{
+    private final List<Packet> packets = new ArrayList<>();
+    private final TransportListener listener = new TransportListener() {
+        public void onPacket(Packet packet) { packets.add(packet); }
+        public void onDisconnect(Transport transport) {}
+    };
+
+    @Test
+    public void decodesCoalescedFrames() throws Exception
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame(new DebugPacket(5000, "first")));
+        stream.write(frame(new ParticipantData(ParticipantOpcode.JOIN, 5000, new String[]{"room"})));
+        stream.write(frame(new DebugPacket(5000, "third")));
+
+        PacketDecoder decoder = new PacketDecoder();
+        decoder.buffer().put(stream.toByteArray());
+        decoder.decode(listener);
+
+        assertEquals(3, packets.size());
+        assertEquals("first", ((DebugPacket) packets.get(0)).getMsg());
+        assertArrayEquals(new String[]{"room"}, ((ParticipantData) packets.get(1)).getParams());
+        assertEquals("third", ((DebugPacket) packets.get(2)).getMsg());
+    }
+
+    @Test
+    public void decodesFramesSplitAcrossReads() throws Exception
+    {
+        byte[] frame = frame(new DebugPacket(5000, "split across every byte"));
+        PacketDecoder decoder = new PacketDecoder();
+        ByteBuffer buffer = decoder.buffer();
+
+        for (byte b : frame) {
+            assertTrue(packets.isEmpty());
+            decoder.buffer().put(b);
+            decoder.decode(listener);
+        }
+
+        assertEquals(1, packets.size());
+        assertEquals("split across every byte", ((DebugPacket) packets.get(0)).getMsg());
+        // partial frames that fit are buffered in place
+        assertTrue(buffer == decoder.buffer());
+    }
+
+    @Test
+    public void growsForFramesLargerThanTheBuffer() throws Exception
+    {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 5000; i++) msg.append((char) ('a' + i % 26));
+        byte[] frame = frame(new DebugPacket(5000, msg.toString()));
+
+        PacketDecoder decoder = new PacketDecoder(64);
+        for (int offset = 0; offset < frame.length; ) {
+            ByteBuffer buffer = decoder.buffer();
+            int length = Math.min(buffer.remaining(), frame.length - offset);
+            buffer.put(frame, offset, length);
+            offset += length;
+            decoder.decode(listener);
+        }
+
+        assertEquals(1, packets.size());
+        assertEquals(msg.toString(), ((DebugPacket) packets.get(0)).getMsg());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOversizedFrames() throws Exception
+    {
+        PacketDecoder decoder = new PacketDecoder();
+        decoder.buffer().putInt(Framing.MAX_PACKET_LENGTH + 1);
+        decoder.decode(listener);
+    }
+
+    private static byte[] frame(Packet packet)
+    {
+        ByteBuffer frame = Framing.frame(packet);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,83 @@
+package edu.oswego.cs.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import edu.oswego.cs.network.packets.ParticipantACK;
+import edu.oswego.cs.network.packets.SoundData;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SendQueueTest
+{
+    @Test
+    public void dropsTheOldestSoundFrameWhenFull()
+    {
+        SendQueue queue = new SendQueue(3, OverflowPolicy.DROP_OLDEST);
+        ByteBuffer ack = ack();
+        ByteBuffer first = sound(1);
+        ByteBuffer second = sound(2);
+        ByteBuffer third = sound(3);
+
+        assertTrue(queue.offer(ack));
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+
+        assertEquals(1, queue.getDroppedFrames());
+        assertEquals(3, queue.getMaxDepth());
+        assertSame(ack, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void disconnectsOnlyWhenNothingCanBeDropped()
+    {
+        SendQueue queue = new SendQueue(2, OverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer(ack()));
+        assertTrue(queue.offer(ack()));
+
+        // a new sound frame is dropped itself, a packet that has to arrive can not be
+        assertTrue(queue.offer(sound(1)));
+        assertEquals(1, queue.getDroppedFrames());
+        assertFalse(queue.offer(ack()));
+    }
+
+    @Test
+    public void disconnectPolicyNeverDrops()
+    {
+        SendQueue queue = new SendQueue(1, OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(sound(1)));
+        assertFalse(queue.offer(sound(2)));
+        assertEquals(0, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void takeReturnsNullOnceClosedAndEmpty() throws Exception
+    {
+        SendQueue queue = new SendQueue(2, OverflowPolicy.DROP_OLDEST);
+        ByteBuffer frame = sound(1);
+        queue.offer(frame);
+        queue.close();
+
+        assertSame(frame, queue.take());
+        assertNull(queue.take());
+    }
+
+    private static ByteBuffer ack()
+    {
+        return Framing.frame(new ParticipantACK(ParticipantOpcode.JOIN, 5000));
+    }
+
+    private static ByteBuffer sound(int sequenceNumber)
+    {
+        return Framing.frame(new SoundData(5000, sequenceNumber, sequenceNumber * 20, new byte[]{1, 2}));
+    }
+}
@@ -0,0 +1,72 @@
+package edu.oswego.cs.network.packets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import edu.oswego.cs.network.opcodes.ErrorOpcode;
+import edu.oswego.cs.network.opcodes.ParticipantOpcode;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class PacketCodecTest
+{
+    @Test
+    public void encodesTheOriginalWireLayout()
+    {
+        assertArrayEquals(new byte[]{0, 1, 0x13, (byte) 0x88, 0, 0, 'r', 'o', 'o', 'm', 0},
+                new ParticipantData(ParticipantOpcode.JOIN, 5000, new String[]{"room"}).getBytes());
+        assertArrayEquals(new byte[]{0, 4, 0, 42, 0, 3, 'a', ';', '1', '/', '2', 0},
+                new ParticipantACK(ParticipantOpcode.LIST_SERVERS, 42, new String[]{"a;1/2"}).getBytes());
+        assertArrayEquals(new byte[]{0, 6, 0, (byte) 200, 'h', 'i'}, new DebugPacket(200, "hi").getBytes());
+        assertArrayEquals(new byte[]{0, 3, 0, 1}, new ErrorPacket(ErrorOpcode.CHATROOM_FULL).getBytes());
+        assertArrayEquals(new byte[]{0, 3, 0, (byte) 0xFF, 'x'}, new ErrorPacket(ErrorOpcode.UNDEF, "x").getBytes());
+        assertArrayEquals(new byte[]{0, 5, 0x13, (byte) 0x88, 0, 0, 0, 2, 0, 0, 0, 40, 7, 8},
+                new SoundData(5000, 2, 40, new byte[]{7, 8}).getBytes());
+    }
+
+    @Test
+    public void roundTripsThroughHeapAndDirectBuffers()
+    {
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(256), ByteBuffer.allocateDirect(256)}) {
+            ParticipantData data = (ParticipantData) roundTrip(buffer,
+                    new ParticipantData(ParticipantOpcode.CREATE_SERVER, 40000, new String[]{"café", "12"}));
+            assertEquals(ParticipantOpcode.CREATE_SERVER, data.getParticipantOpcode());
+            assertArrayEquals(new String[]{"café", "12"}, data.getParams());
+
+            DebugPacket debug = (DebugPacket) roundTrip(buffer, new DebugPacket(65535, "hello"));
+            assertEquals(65535, debug.getPort());
+            assertEquals("hello", debug.getMsg());
+
+            SoundData sound = (SoundData) roundTrip(buffer, new SoundData(5001, -1, 20, new byte[]{1, 2, 3}));
+            assertEquals(5001, sound.getPort());
+            assertEquals(-1, sound.getSequenceNumber());
+            assertEquals(20, sound.getTimestamp());
+            assertArrayEquals(new byte[]{1, 2, 3}, sound.getData());
+
+            ErrorPacket error = (ErrorPacket) roundTrip(buffer, new ErrorPacket(ErrorOpcode.CHATROOM_EXISTS, "taken"));
+            assertEquals(ErrorOpcode.CHATROOM_EXISTS, error.getErrorOpcode());
+            assertEquals("taken", error.getErrorMsg());
+        }
+    }
+
+    @Test
+    public void stopsParamsAtAnEmptyParam()
+    {
+        ParticipantData data = (ParticipantData) Packet.parse(
+                new byte[]{0, 1, 0, 1, 0, 0, 'r', 'o', 'o', 'm', 0, 0, 0, 0});
+        assertArrayEquals(new String[]{"room"}, data.getParams());
+    }
+
+    private static Packet roundTrip(ByteBuffer buffer, Packet packet)
+    {
+        buffer.clear();
+        packet.encode(buffer);
+        assertEquals(packet.encodedLength(), buffer.position());
+        buffer.flip();
+        Packet decoded = Packet.decode(buffer);
+        assertEquals(packet.getOpcode(), decoded.getOpcode());
+        assertEquals(buffer.limit(), buffer.position());
+        return decoded;
+    }
+}